@@ -0,0 +1,27 @@
+package com.maxdemarzi.shortest;
+
+/**
+ * Read access to the relationships of a node, independent of where they are stored.
+ *
+ * Implementations hand out a single reusable cursor, so positioning it on another node ends the previous iteration.
+ * An Adjacency belongs to one request thread.
+ */
+public interface Adjacency {
+
+    /**
+     * @param nodeId: the node to list the relationships (in both directions) of
+     * @return a cursor over the relationships, empty if the node does not exist
+     */
+    public AdjacencyCursor relationships(long nodeId);
+
+    /**
+     * @param types: the relationship type ids to list, none lists nothing
+     * @return a cursor over the relationships (in both directions) of those types, empty if the node does not exist
+     */
+    public AdjacencyCursor relationships(long nodeId, int[] types);
+
+    /**
+     * @return the number of relationships (in both directions) of the node
+     */
+    public int degree(long nodeId);
+}
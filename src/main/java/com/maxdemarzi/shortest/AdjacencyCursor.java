@@ -0,0 +1,16 @@
+package com.maxdemarzi.shortest;
+
+public interface AdjacencyCursor {
+
+    public boolean next();
+
+    /**
+     * @return the id of the node on the other end of the current relationship
+     */
+    public long otherNode();
+
+    /**
+     * @return the relationship type id of the current relationship
+     */
+    public int type();
+}
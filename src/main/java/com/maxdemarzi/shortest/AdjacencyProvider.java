@@ -0,0 +1,352 @@
+package com.maxdemarzi.shortest;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+import org.neo4j.kernel.GraphDatabaseAPI;
+import org.neo4j.kernel.api.ReadOperations;
+import org.neo4j.kernel.impl.core.ThreadToStatementContextBridge;
+import org.neo4j.kernel.impl.transaction.log.TransactionIdStore;
+
+/**
+ * Decides whether a request reads relationships through the kernel, from the in-memory snapshot ("snapshot")
+ * or from the snapshot persisted next to the store and memory mapped ("mapped").
+ *
+ * No request waits for a snapshot, the first one asking for a kind starts reading the store for it in the background
+ * and goes through the kernel until it is there. From then on a TransactionEventHandler hands the relationships every
+ * commit creates and deletes to each kind, which applies them on top of its snapshot (see DeltaSnapshot) once a
+ * request finds it stale, rather than reading the whole store again. Until that is done requests keep reading the
+ * stale snapshot, as long as it was brought up to date at most max stale millis ago, and go through the kernel after
+ * that. Once enough nodes changed they are folded into a new in-memory snapshot, or written to a new mapped file.
+ * Each kind is kept by its own thread, writing the mapped file doesn't hold up the in-memory snapshot.
+ */
+public final class AdjacencyProvider {
+
+    public static final String KERNEL = "kernel";
+    public static final String SNAPSHOT = "snapshot";
+    public static final String MAPPED = "mapped";
+
+    public static final long DEFAULT_MAX_STALE_MILLIS = 5000;
+
+    // Commits waiting to be applied to a kind before its thread applies them without being asked by a request
+    private static final int MAX_QUEUED_CHANGES = 1024;
+    // The last transaction of a snapshot that may miss the changes of one still handing them over
+    private static final long UNKNOWN_TX_ID = -1;
+
+    private static AdjacencyProvider instance = null;
+
+    public static synchronized AdjacencyProvider getInstance(GraphDatabaseService db) {
+        if (instance == null || instance.db != db) {
+            if (instance != null) {
+                instance.stop();
+            }
+            instance = new AdjacencyProvider((GraphDatabaseAPI) db);
+        }
+        return instance;
+    }
+
+    public static long lastCommittedTxId(GraphDatabaseAPI db) {
+        return db.getDependencyResolver().resolveDependency(TransactionIdStore.class).getLastCommittedTransactionId();
+    }
+
+    private final GraphDatabaseAPI db;
+    private final Kept snapshot;
+    private final Kept mapped;
+    private final TransactionEventHandler<DeltaSnapshot.Changes> tracker;
+    // Transactions between their beforeCommit and afterCommit, which may have committed without handing their changes over
+    private final AtomicInteger committing;
+    // Set once a kind reads the store, no commit needs to be recorded before
+    private volatile boolean tracking;
+
+    private volatile String defaultMode;
+    private volatile long maxStaleNanos = DEFAULT_MAX_STALE_MILLIS * 1_000_000;
+
+    private AdjacencyProvider(GraphDatabaseAPI db) {
+        this.db = db;
+        this.snapshot = new Kept(SNAPSHOT);
+        this.mapped = new Kept(MAPPED);
+        this.committing = new AtomicInteger();
+        final ThreadToStatementContextBridge ctx = db.getDependencyResolver().resolveDependency(ThreadToStatementContextBridge.class);
+        this.tracker = new TransactionEventHandler<DeltaSnapshot.Changes>() {
+            public DeltaSnapshot.Changes beforeCommit(TransactionData data) throws Exception {
+                committing.incrementAndGet();
+                if (!tracking) {
+                    // may still be handed to a kind that started reading the store since, which reads it again
+                    return DeltaSnapshot.Changes.UNKNOWN;
+                }
+                try {
+                    return DeltaSnapshot.Changes.of(data, ctx.get().readOperations());
+                } catch (RuntimeException e) {
+                    // the ends of a deleted relationship can't always be read, both kinds read the store again
+                    return DeltaSnapshot.Changes.UNKNOWN;
+                }
+            }
+
+            public void afterCommit(TransactionData data, DeltaSnapshot.Changes changes) {
+                try {
+                    snapshot.committed(changes);
+                    mapped.committed(changes);
+                } finally {
+                    committing.decrementAndGet();
+                }
+            }
+
+            public void afterRollback(TransactionData data, DeltaSnapshot.Changes changes) {
+                if (changes != null) {
+                    committing.decrementAndGet();
+                }
+            }
+        };
+        this.defaultMode = KERNEL;
+        // registered up front, as a handler registered while a transaction commits breaks that commit
+        db.registerTransactionEventHandler(this.tracker);
+    }
+
+    public void setDefaultMode(String mode) {
+        this.defaultMode = isSnapshot(mode) ? mode : KERNEL;
+    }
+
+    public String getDefaultMode() {
+        return defaultMode;
+    }
+
+    /**
+     * @param millis: how long after it was brought up to date a stale snapshot may still be read, 0 never
+     */
+    public void setMaxStaleMillis(long millis) {
+        this.maxStaleNanos = Math.max(0, millis) * 1_000_000;
+    }
+
+    /**
+     * @param readOps: the read operations of the request's transaction, used when reading through the kernel
+     * @param mode: "kernel", "snapshot", "mapped" or null for the server default
+     */
+    public Adjacency adjacency(ReadOperations readOps, String mode) {
+        AdjacencySnapshot snapshot = snapshot(mode);
+        return snapshot != null ? snapshot.adjacency() : new KernelAdjacency(readOps);
+    }
+
+    /**
+     * @param mode: "kernel", "snapshot", "mapped" or null for the server default
+     * @return the snapshot a request in this mode should read from, or null to read through the kernel
+     */
+    public AdjacencySnapshot snapshot(String mode) {
+        final String kind = mode == null ? defaultMode : mode;
+        if (!isSnapshot(kind)) {
+            return null;
+        }
+        return kept(kind).snapshot();
+    }
+
+    /**
+     * Maps the snapshot file left by a previous run, as long as nothing was committed since it was written
+     * @return whether the persisted snapshot is usable
+     */
+    public boolean load() {
+        return mapped.load();
+    }
+
+    /**
+     * Brings the snapshot of the given kind up to date if it is stale, reading the store if there is none to update
+     * @return the fresh snapshot, or null if the graph can't be snapshotted
+     */
+    public AdjacencySnapshot refresh(String mode) {
+        return kept(mode).refresh();
+    }
+
+    public void refreshInBackground(String mode) {
+        kept(mode).refreshInBackground();
+    }
+
+    public void stop() {
+        snapshot.refresher.shutdownNow();
+        mapped.refresher.shutdownNow();
+        try {
+            db.unregisterTransactionEventHandler(tracker);
+        } catch (IllegalStateException e) {
+            // the database was shut down, which dropped the handler already
+        }
+    }
+
+    private Kept kept(String mode) {
+        return MAPPED.equals(mode) ? mapped : snapshot;
+    }
+
+    private File snapshotFile() {
+        return new File(db.getStoreDir(), MappedSnapshot.FILE_NAME);
+    }
+
+    private boolean isFresh(AdjacencySnapshot snapshot) {
+        return snapshot != null && snapshot.lastTxId() == lastCommittedTxId(db);
+    }
+
+    private static boolean isSnapshot(String mode) {
+        return SNAPSHOT.equals(mode) || MAPPED.equals(mode);
+    }
+
+    /**
+     * One kind of snapshot and the commits not applied to it yet, refreshed by a thread of its own
+     */
+    private final class Kept {
+        private final String mode;
+        private final ExecutorService refresher;
+        private final AtomicBoolean refreshing;
+        private final AtomicInteger queued;
+
+        // what was committed since the snapshot was brought up to date, null until the store is read for one
+        private volatile Queue<DeltaSnapshot.Changes> changes;
+        private volatile AdjacencySnapshot current;
+        // when the snapshot was brought up to date, it has the changes of every transaction committed before
+        private volatile long takenAt;
+
+        Kept(final String mode) {
+            this.mode = mode;
+            this.refresher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "shortest-paths-" + mode);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            this.refreshing = new AtomicBoolean(false);
+            this.queued = new AtomicInteger();
+        }
+
+        AdjacencySnapshot snapshot() {
+            final AdjacencySnapshot current = this.current;
+            if (isFresh(current)) {
+                return current;
+            }
+            refreshInBackground();
+            if (current != null && System.nanoTime() - this.takenAt <= maxStaleNanos) {
+                return current;
+            }
+            return null;
+        }
+
+        void refreshInBackground() {
+            if (refreshing.compareAndSet(false, true)) {
+                refresher.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            refresh();
+                        } finally {
+                            refreshing.set(false);
+                        }
+                    }
+                });
+            }
+        }
+
+        void committed(DeltaSnapshot.Changes committed) {
+            final Queue<DeltaSnapshot.Changes> changes = this.changes;
+            if (changes != null && !committed.isEmpty()) {
+                changes.add(committed);
+                if (queued.incrementAndGet() > MAX_QUEUED_CHANGES) {
+                    refreshInBackground();
+                }
+            }
+        }
+
+        synchronized boolean load() {
+            final File file = snapshotFile();
+            if (!file.exists()) {
+                return false;
+            }
+            // every transaction up to lastTxId handed its changes over before they are tracked, none can be in the queue
+            final long lastTxId = lastCommittedTxId(db);
+            if (committing.get() != 0) {
+                return false;
+            }
+            startTracking();
+            try {
+                MappedSnapshot persisted = MappedSnapshot.open(file);
+                if (persisted.storeId() == db.storeId().getRandomId() && persisted.lastTxId() == lastTxId
+                        && lastCommittedTxId(db) == lastTxId && committing.get() == 0) {
+                    this.current = persisted;
+                    this.takenAt = System.nanoTime();
+                    return true;
+                }
+            } catch (IOException | IllegalStateException e) {
+                // unreadable, from an older format, truncated or corrupt, it will be rebuilt
+            }
+            this.changes = null;
+            return false;
+        }
+
+        synchronized AdjacencySnapshot refresh() {
+            final AdjacencySnapshot current = this.current;
+            if (isFresh(current)) {
+                return current;
+            }
+            if (current != null && this.changes != null) {
+                try {
+                    final long takenAt = System.nanoTime();
+                    final DeltaSnapshot delta = current instanceof DeltaSnapshot ? (DeltaSnapshot) current : new DeltaSnapshot(current);
+                    return install(update(delta, null), takenAt);
+                } catch (IOException | IllegalStateException e) {
+                    // a commit that can't be applied, read the store again
+                }
+            }
+            // once more when tracking starts now, in case a transaction committed across its start
+            final int attempts = tracking ? 1 : 2;
+            for (int attempt = 0; attempt < attempts; attempt++) {
+                try {
+                    final long takenAt = System.nanoTime();
+                    startTracking();
+                    final CsrSnapshot.Read read = CsrSnapshot.read(db);
+                    final DeltaSnapshot delta = update(new DeltaSnapshot(read.snapshot), read.relationshipIds);
+                    return install(MAPPED.equals(mode) ? MappedSnapshot.write(delta, db.storeId().getRandomId(), snapshotFile()) : delta, takenAt);
+                } catch (IOException | IllegalStateException e) {
+                    this.changes = null;
+                }
+            }
+            return null;
+        }
+
+        private void startTracking() {
+            tracking = true;
+            this.changes = new ConcurrentLinkedQueue<>();
+            this.queued.set(0);
+        }
+
+        /*
+         * Applies what was committed since, the result has every transaction up to the last one committed before
+         * only if none was still handing its changes over
+         */
+        private DeltaSnapshot update(DeltaSnapshot delta, long[] read) {
+            final long lastTxId = lastCommittedTxId(db);
+            final boolean handedOver = committing.get() == 0;
+            final List<DeltaSnapshot.Changes> changes = new ArrayList<>();
+            DeltaSnapshot.Changes committed;
+            while ((committed = this.changes.poll()) != null) {
+                queued.decrementAndGet();
+                changes.add(committed);
+            }
+            final long previous = read == null ? delta.lastTxId() : UNKNOWN_TX_ID;
+            return delta.apply(changes, read, handedOver ? lastTxId : previous);
+        }
+
+        private AdjacencySnapshot install(AdjacencySnapshot snapshot, long takenAt) throws IOException {
+            if (snapshot instanceof DeltaSnapshot && ((DeltaSnapshot) snapshot).outgrown()) {
+                snapshot = MAPPED.equals(mode) ? MappedSnapshot.write(snapshot, db.storeId().getRandomId(), snapshotFile())
+                    : CsrSnapshot.copy(snapshot);
+            }
+            this.current = snapshot;
+            this.takenAt = takenAt;
+            return snapshot;
+        }
+    }
+}
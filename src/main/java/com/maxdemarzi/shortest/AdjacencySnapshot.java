@@ -0,0 +1,27 @@
+package com.maxdemarzi.shortest;
+
+/**
+ * A read-only copy of the relationships of the whole graph, valid until the next transaction is committed
+ */
+public interface AdjacencySnapshot {
+
+    /**
+     * @return the last transaction the snapshot has the changes of, and of every one before, -1 if not known
+     */
+    public long lastTxId();
+
+    /**
+     * @return one more than the highest node id with relationships in the snapshot
+     */
+    public int nodeCount();
+
+    /**
+     * @return the number of relationship entries, every relationship counted at both of its ends
+     */
+    public long relationshipEntries();
+
+    /**
+     * @return a new view on the snapshot with its own cursor, for use by a single thread
+     */
+    public Adjacency adjacency();
+}
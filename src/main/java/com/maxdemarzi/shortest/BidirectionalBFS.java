@@ -0,0 +1,202 @@
+package com.maxdemarzi.shortest;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import net.openhft.koloboke.collect.map.LongIntCursor;
+import net.openhft.koloboke.collect.map.hash.HashLongIntMap;
+import net.openhft.koloboke.collect.map.hash.HashLongIntMaps;
+import net.openhft.koloboke.collect.set.LongSet;
+import net.openhft.koloboke.collect.set.hash.HashLongSets;
+
+/**
+ * Level synchronous breadth first search that grows from the center and from a target at the same time,
+ * always expanding whichever frontier is smaller, until the two sides meet.
+ *
+ * Every shortest path of length centerDepth + targetDepth + 1 crosses exactly one relationship between the
+ * current center frontier and the current target frontier, so multiplying the path counts on either side of
+ * the meeting level gives the exact number of shortest paths.
+ *
+ * The levels grown out of the center are kept and shared by every target searched with the same instance.
+ */
+public final class BidirectionalBFS {
+
+    private final Adjacency adjacency;
+    private final long centerNodeId;
+    private final LongSet bibliographyNodeIds;
+    private final int maxLength;
+    private final Budget budget;
+    private long expanded;
+
+    private final List<HashLongIntMap> centerLevels;
+    private NodeSet centerSeen;
+
+    /*
+     * Results are packed into a long the same way Dijkstra packs cost and paths:
+     *             count                            length
+     *  11111111111111111111111111111111|11111111111111111111111111111111
+     */
+    public static final long NOT_FOUND = 0L;
+
+    public static int length(long lengthCount) {
+        return (int) lengthCount;
+    }
+
+    public static int count(long lengthCount) {
+        return (int) (lengthCount >>> 32);
+    }
+
+    private static long lengthCount(int length, int count) {
+        return (((long) count) << 32) | (length & 0xffffffffL);
+    }
+
+    public BidirectionalBFS(Adjacency adjacency, long centerNodeId, Collection<Long> bibliographyNodeIds, int maxLength) {
+        this(adjacency, centerNodeId, bibliographyNodeIds, maxLength, Budget.UNLIMITED);
+    }
+
+    /**
+     * @param budget: shared by every target searched, once it runs out every search returns NOT_FOUND
+     */
+    public BidirectionalBFS(Adjacency adjacency, long centerNodeId, Collection<Long> bibliographyNodeIds, int maxLength, Budget budget) {
+        this.adjacency = Profile.adjacency(budget, adjacency);
+        this.budget = budget;
+        this.centerNodeId = centerNodeId;
+        this.bibliographyNodeIds = HashLongSets.newImmutableSet(bibliographyNodeIds);
+        this.maxLength = maxLength;
+        this.centerLevels = new ArrayList<>();
+        this.centerLevels.add(HashLongIntMaps.newMutableMapOf(centerNodeId, 1));
+        // outlives the thread's state, it is hashed and costs what it holds until its nodes are dense
+        this.centerSeen = new StampedNodeSet();
+    }
+
+    /**
+     * @return the length and number of shortest paths between the center and the target packed into a long,
+     * or NOT_FOUND if there is no path within maxLength
+     */
+    public long shortestPaths(long targetNodeId) {
+        if (targetNodeId == centerNodeId || budget.isExhausted()) {
+            return NOT_FOUND;
+        }
+        final TraversalState state = TraversalState.acquire();
+        try {
+            return shortestPaths(targetNodeId, state);
+        } finally {
+            state.release();
+        }
+    }
+
+    /*
+     * The target's side of the search is only needed until it meets the center's, it lives in the thread's state
+     */
+    private long shortestPaths(long targetNodeId, TraversalState state) {
+        int centerDepth = 0;
+        int targetDepth = 0;
+        HashLongIntMap targetFrontier = state.next(null);
+        targetFrontier.put(targetNodeId, 1);
+        NodeSet targetSeen = state.visited();
+
+        while (centerDepth + targetDepth < maxLength) {
+            final HashLongIntMap centerFrontier = centerLevels.get(centerDepth);
+            if (centerFrontier.isEmpty() || targetFrontier.isEmpty()) {
+                return NOT_FOUND;
+            }
+
+            final int count;
+            // A center level someone else already paid for is free, otherwise grow the smaller side
+            if (centerLevels.size() > centerDepth + 1 || centerFrontier.size() <= targetFrontier.size()) {
+                centerDepth++;
+                count = meet(centerLevel(centerDepth), targetFrontier);
+            } else {
+                final HashLongIntMap next = expand(targetFrontier, targetDepth, targetSeen, false, state.next(targetFrontier));
+                targetSeen = state.visited(targetSeen, next.size());
+                targetSeen.addAll(targetFrontier);
+                targetFrontier = next;
+                targetDepth++;
+                count = meet(centerFrontier, targetFrontier);
+            }
+
+            if (budget.isExhausted()) {
+                // the level that was being expanded is incomplete
+                return NOT_FOUND;
+            }
+            if (count > 0) {
+                return lengthCount(centerDepth + targetDepth, count);
+            }
+        }
+        return NOT_FOUND;
+    }
+
+    private HashLongIntMap centerLevel(int depth) {
+        if (depth < centerLevels.size()) {
+            return centerLevels.get(depth);
+        }
+        final HashLongIntMap frontier = centerLevels.get(depth - 1);
+        final HashLongIntMap next = expand(frontier, depth - 1, centerSeen, depth == 1, HashLongIntMaps.newMutableMap());
+        if (NodeBitmap.dense(centerSeen, next.size())) {
+            final NodeBitmap bitmap = new NodeBitmap();
+            centerSeen.addTo(bitmap);
+            centerSeen = bitmap;
+        }
+        centerSeen.addAll(frontier);
+        centerLevels.add(next);
+        return next;
+    }
+
+    /*
+     * Get the nodes one level further out, counting the number of times they are reached.
+     * Bibliography entries pretend to have a relationship to the center, so the center level 1 gets them
+     * and expanding a bibliography entry on the target side reaches the center.
+     *
+     * @param depth: how far the frontier is from the center or the target
+     * @param next: the empty map to put the next level in
+     */
+    private HashLongIntMap expand(HashLongIntMap frontier, int depth, NodeSet seen, boolean fromCenter, HashLongIntMap next) {
+        if (budget.profile() != null) {
+            budget.profile().frontier(depth, frontier.size());
+        }
+        final long expandedBefore = expanded;
+        long relationships = 0;
+        final LongIntCursor longIntCursor = frontier.cursor();
+        while (longIntCursor.moveNext() && budget.check(++expanded, Math.max(seen.size(), next.size()))) {
+            final long nodeId = longIntCursor.key();
+            final int pathCount = longIntCursor.value();
+            boolean reachedCenter = false;
+
+            final AdjacencyCursor relationshipCursor = adjacency.relationships(nodeId);
+            while (relationshipCursor.next()) {
+                relationships++;
+                final long otherId = relationshipCursor.otherNode();
+                if (!seen.contains(otherId)) {
+                    next.addValue(otherId, pathCount, 0);
+                }
+                reachedCenter |= otherId == centerNodeId;
+            }
+
+            if (!fromCenter && !reachedCenter && !seen.contains(centerNodeId) && bibliographyNodeIds.contains(nodeId)) {
+                next.addValue(centerNodeId, pathCount, 0);
+            }
+        }
+
+        if (fromCenter) {
+            for (long bibId : bibliographyNodeIds) {
+                next.putIfAbsent(bibId, 1);
+            }
+        }
+        budget.spent(expanded - expandedBefore, relationships, frontier.size(), Math.max(seen.size(), next.size()));
+        return next;
+    }
+
+    private static int meet(HashLongIntMap a, HashLongIntMap b) {
+        if (a.size() > b.size()) {
+            return meet(b, a);
+        }
+        int count = 0;
+        final LongIntCursor longIntCursor = a.cursor();
+        while (longIntCursor.moveNext()) {
+            final int other = b.getOrDefault(longIntCursor.key(), 0);
+            count += longIntCursor.value() * other;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,358 @@
+package com.maxdemarzi.shortest;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+
+import net.openhft.koloboke.collect.map.IntIntMap;
+import net.openhft.koloboke.collect.map.hash.HashLongIntMap;
+import net.openhft.koloboke.collect.map.hash.HashLongIntMaps;
+import net.openhft.koloboke.collect.map.hash.HashLongLongMap;
+import net.openhft.koloboke.collect.map.hash.HashLongLongMaps;
+
+import org.neo4j.kernel.api.cursor.NodeItem;
+
+/**
+ * Lowest cost paths from a set of start nodes to a set of targets, searching from both ends.
+ *
+ * The forward search grows out of the start nodes. A single backward search grows out of all the targets at once,
+ * every entry in it is keyed by node id and the index of the target it came from, so each target still gets its
+ * own costs and path counts, but all of them share one map and one queue. Whichever side has the smaller queue
+ * takes the next step. A target is done once the lowest unexplored costs of both sides add up to more than the
+ * best path seen for it (or the max cost), at which point no cheaper path can be left, and its backward entries
+ * are skipped from then on.
+ *
+ * To count paths exactly, every lowest cost path is attributed to the one relationship (u, v) on it where
+ * the forward cost crosses the forward frontier: u is explored forward and cheaper than the frontier, v is not.
+ * By the time a target is done, v is always explored backward, so the path counts on both sides are final.
+ * This relies on every relationship costing more than 0.
+ *
+ * The callback is called once for every target that can be reached within max cost, with nodeId being the target.
+ */
+public final class BidirectionalDijkstra extends Traversal {
+
+    private static final int MAX_TARGET_BITS = 28;
+
+    private final Adjacency adjacency;
+    private final IntIntMap relationshipCosts;
+    private final CostTypes costTypes;
+    private final int maxCost;
+    private final int maxStartCost;
+    private final NodeCallback nodeCallback;
+
+    private final Dijkstra forward;
+    private final boolean forwardFrozen;
+    private final int frozenFrontier;
+
+    private final HashLongIntMap targetIndexes;
+    private final long[] targetIds;
+    private final int[] bestCosts;
+    private final boolean[] done;
+    private final HashLongLongMap results;
+    private int remaining;
+    private int minBestCost;
+
+    /*
+     * Backward keys are (node id << targetBits) | target index, node ids take at most 35 bits
+     */
+    private final int targetBits;
+    private final long targetMask;
+    private final CostQueue backwardQueue;
+    private final HashLongLongMap backwardPaths;
+    // Lends the backward map, and the forward one unless the forward search is frozen, until the search is run
+    private final TraversalState state;
+
+    // Explored backward entries, chained per target
+    private final int[] exploredHeads;
+    private long[] exploredNodes = new long[128];
+    private long[] exploredCostPaths = new long[128];
+    private int[] exploredNext = new int[128];
+    private int exploredCount;
+
+    private long backwardRelationships;
+    private int peakBackwardQueue;
+
+    public BidirectionalDijkstra(Adjacency adjacency, IntIntMap relationshipCosts, Map<Long, Integer> startNodes, Collection<Long> targets, int maxCost, NodeCallback callback) {
+        this(adjacency, relationshipCosts, startNodes, null, 0, targets, maxCost, callback);
+    }
+
+    /**
+     * Searches backward only, against a forward search that is no longer advanced and is only read from,
+     * so several of these can share it from different threads.
+     *
+     * @param frozenForward: a forward search that has explored its start nodes and every target it can report
+     * @param frontier: its lowest unexplored cost, taken when it stopped
+     */
+    BidirectionalDijkstra(Adjacency adjacency, IntIntMap relationshipCosts, Dijkstra frozenForward, int frontier, Collection<Long> targets, int maxCost, NodeCallback callback) {
+        this(adjacency, relationshipCosts, null, frozenForward, frontier, targets, maxCost, callback);
+    }
+
+    private BidirectionalDijkstra(Adjacency adjacency, IntIntMap relationshipCosts, Map<Long, Integer> startNodes, Dijkstra frozenForward, int frontier,
+                                  Collection<Long> targets, int maxCost, NodeCallback callback) {
+        super();
+        this.adjacency = adjacency;
+        this.relationshipCosts = relationshipCosts;
+        this.costTypes = new CostTypes(relationshipCosts);
+        this.maxCost = maxCost;
+        this.nodeCallback = callback;
+        this.forwardFrozen = frozenForward != null;
+        this.frozenFrontier = frontier;
+
+        int maxStartCost = 0;
+        if (startNodes != null) {
+            for (Integer cost : startNodes.values()) {
+                maxStartCost = Math.max(maxStartCost, cost.intValue());
+            }
+        }
+        this.maxStartCost = maxStartCost;
+
+        this.targetIndexes = HashLongIntMaps.newMutableMap(targets.size());
+        for (Long target : targets) {
+            this.targetIndexes.putIfAbsent(target.longValue(), this.targetIndexes.size());
+        }
+        final int targetCount = this.targetIndexes.size();
+        this.targetBits = targetCount <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(targetCount - 1);
+        if (this.targetBits > MAX_TARGET_BITS) {
+            throw new IllegalArgumentException("Too many targets: " + targetCount);
+        }
+        this.targetMask = (1L << this.targetBits) - 1;
+
+        this.targetIds = new long[targetCount];
+        this.bestCosts = new int[targetCount];
+        this.done = new boolean[targetCount];
+        this.exploredHeads = new int[targetCount];
+        this.results = HashLongLongMaps.newMutableMap(targetCount);
+        this.remaining = targetCount;
+        this.minBestCost = maxCost;
+        this.backwardQueue = CostQueue.forMaxCost(maxCost);
+        this.state = TraversalState.acquire();
+        this.backwardPaths = this.state.backwardPaths();
+
+        for (Long target : this.targetIndexes.keySet()) {
+            final int index = this.targetIndexes.get(target.longValue());
+            final long key = (target.longValue() << this.targetBits) | index;
+            this.targetIds[index] = target.longValue();
+            this.bestCosts[index] = Integer.MAX_VALUE;
+            this.exploredHeads[index] = -1;
+            this.backwardPaths.put(key, Dijkstra.costPaths(0, 1));
+            this.backwardQueue.offer(key, 0);
+        }
+
+        if (this.forwardFrozen) {
+            this.forward = frozenForward;
+            return;
+        }
+        this.forward = new Dijkstra(adjacency, relationshipCosts, startNodes, maxCost, new NodeCallback() {
+            public void explored(Traversal traversal, NodeItem node, long nodeId, int cost, int paths) {
+                // reaching a target from the start nodes gives the answer straight away
+                if (targetIndexes.containsKey(nodeId)) {
+                    final int index = targetIndexes.get(nodeId);
+                    if (!done[index]) {
+                        found(index, cost, paths);
+                    }
+                }
+            }
+        }, this.state.paths());
+    }
+
+    /**
+     * Gives the maps back to the thread's state once done, only what was found can be asked for after that
+     */
+    @Override
+    public void run(Budget budget) {
+        try {
+            super.run(budget);
+        } finally {
+            this.state.release();
+        }
+    }
+
+    public void step() {
+        if (this.remaining == 0) {
+            this.finish();
+            return;
+        }
+        final long forwardCost = this.forwardFrozen ? this.frozenFrontier : this.forward.peekCost();
+        // Explore every start node first, so every path leaves the forward side through a relationship
+        if (!this.forwardFrozen && forwardCost <= this.maxStartCost) {
+            this.forward.step();
+            return;
+        }
+        final long backwardCost = this.backwardQueue.isEmpty() ? Integer.MAX_VALUE : this.backwardQueue.peekCost();
+        if (forwardCost + backwardCost > this.minBestCost) {
+            finishTargets(forwardCost + backwardCost, (int) forwardCost);
+        } else if (!this.forwardFrozen && (backwardCost == Integer.MAX_VALUE
+                || (forwardCost != Integer.MAX_VALUE && this.forward.queueSize() <= this.backwardQueue.size()))) {
+            this.forward.step();
+        } else {
+            stepBackward();
+        }
+    }
+
+    private void stepBackward() {
+        final long key = this.backwardQueue.poll();
+        final long exploredCostPaths = this.backwardPaths.get(key);
+        final int index = (int) (key & this.targetMask);
+        if (Dijkstra.explored(exploredCostPaths) || this.done[index]) {
+            return;
+        }
+        final long nodeId = key >>> this.targetBits;
+        final int paths = Dijkstra.paths(exploredCostPaths);
+        final int cost = Dijkstra.cost(exploredCostPaths);
+        if (this.profile != null) {
+            this.profile.frontier(cost, 1);
+        }
+
+        if (cost < this.maxCost) {
+            final AdjacencyCursor relationshipCursor = this.costTypes.relationships(this.adjacency, nodeId, this.maxCost - cost);
+            while (relationshipCursor.next()) {
+                this.backwardRelationships++;
+                final int stepCost = this.relationshipCosts.get(relationshipCursor.type()) + cost;
+                // past max cost, or so far past it the int wrapped around
+                if (stepCost > this.maxCost || stepCost < cost) {
+                    continue;
+                }
+                final long otherKey = (relationshipCursor.otherNode() << this.targetBits) | index;
+                final long newVal = Dijkstra.costPaths(stepCost, paths);
+
+                final long result = this.backwardPaths.merge(otherKey, newVal, Dijkstra.updateSeenFunc);
+                if (result == newVal) {
+                    this.backwardQueue.offer(otherKey, stepCost);
+                }
+            }
+        }
+        this.backwardPaths.put(key, Dijkstra.setExplored(exploredCostPaths));
+        if (this.backwardQueue.size() > this.peakBackwardQueue) {
+            this.peakBackwardQueue = this.backwardQueue.size();
+        }
+
+        if (this.exploredCount == this.exploredNodes.length) {
+            this.exploredNodes = Arrays.copyOf(this.exploredNodes, this.exploredCount * 2);
+            this.exploredCostPaths = Arrays.copyOf(this.exploredCostPaths, this.exploredCount * 2);
+            this.exploredNext = Arrays.copyOf(this.exploredNext, this.exploredCount * 2);
+        }
+        this.exploredNodes[this.exploredCount] = nodeId;
+        this.exploredCostPaths[this.exploredCount] = exploredCostPaths;
+        this.exploredNext[this.exploredCount] = this.exploredHeads[index];
+        this.exploredHeads[index] = this.exploredCount++;
+
+        if (this.forward.hasSeen(nodeId)) {
+            final int meetingCost = cost + this.forward.getCost(nodeId);
+            if (meetingCost < this.bestCosts[index]) {
+                this.bestCosts[index] = meetingCost;
+                this.minBestCost = Math.min(this.minBestCost, meetingCost);
+            }
+        }
+    }
+
+    /*
+     * Every target whose best path is cheaper than what is left to explore is done
+     */
+    private void finishTargets(long unexploredCost, int frontier) {
+        int minBestCost = this.maxCost;
+        for (int index = 0; index < this.done.length && !this.isFinished(); index++) {
+            if (this.done[index]) {
+                continue;
+            }
+            final int bestCost = Math.min(this.bestCosts[index], this.maxCost);
+            if (unexploredCost > bestCost) {
+                final long result = crossingPaths(index, frontier);
+                if (result == 0) {
+                    markDone(index);
+                } else {
+                    found(index, Dijkstra.cost(result), Dijkstra.paths(result));
+                }
+            } else {
+                minBestCost = Math.min(minBestCost, bestCost);
+            }
+        }
+        this.minBestCost = minBestCost;
+    }
+
+    /*
+     * Adds up the paths over every relationship crossing the forward frontier into a node the target explored
+     */
+    private long crossingPaths(int index, int frontier) {
+        int minCost = Integer.MAX_VALUE;
+        int totalPaths = 0;
+        for (int i = this.exploredHeads[index]; i >= 0; i = this.exploredNext[i]) {
+            final int backwardCost = Dijkstra.cost(this.exploredCostPaths[i]);
+            final int backwardPaths = Dijkstra.paths(this.exploredCostPaths[i]);
+
+            final AdjacencyCursor relationshipCursor = this.costTypes.relationships(this.adjacency, this.exploredNodes[i], this.maxCost - backwardCost);
+            while (relationshipCursor.next()) {
+                this.backwardRelationships++;
+                final long otherId = relationshipCursor.otherNode();
+                if (!this.forward.hasExplored(otherId)) {
+                    continue;
+                }
+                final int forwardCost = this.forward.getCost(otherId);
+                final int crossingCost = forwardCost + this.relationshipCosts.get(relationshipCursor.type());
+                if (forwardCost >= frontier || crossingCost < frontier) {
+                    continue;
+                }
+                final int cost = crossingCost + backwardCost;
+                if (cost > this.maxCost || cost > minCost) {
+                    continue;
+                }
+                final int paths = this.forward.getPaths(otherId) * backwardPaths;
+                if (cost < minCost) {
+                    minCost = cost;
+                    totalPaths = paths;
+                } else {
+                    totalPaths += paths;
+                }
+            }
+        }
+        return minCost == Integer.MAX_VALUE ? 0 : Dijkstra.costPaths(minCost, totalPaths);
+    }
+
+    private void found(int index, int cost, int paths) {
+        this.results.put(this.targetIds[index], Dijkstra.costPaths(cost, paths));
+        markDone(index);
+        this.nodeCallback.explored(this, null, this.targetIds[index], cost, paths);
+    }
+
+    private void markDone(int index) {
+        this.done[index] = true;
+        this.exploredHeads[index] = -1;
+        this.remaining--;
+    }
+
+    /*
+     * A frozen forward search is shared, whoever ran it profiled it
+     */
+    void useProfile(Profile profile) {
+        super.useProfile(profile);
+        if (!this.forwardFrozen) {
+            this.forward.useProfile(profile);
+        }
+    }
+
+    protected long visited() {
+        return Math.max(this.forward.visited(), this.backwardPaths.size());
+    }
+
+    /*
+     * A frozen forward search is shared, whoever ran it counted its relationships
+     */
+    protected long relationships() {
+        return this.backwardRelationships + (this.forwardFrozen ? 0 : this.forward.relationships());
+    }
+
+    protected long peakFrontier() {
+        return Math.max(this.peakBackwardQueue, this.forwardFrozen ? 0 : this.forward.peakFrontier());
+    }
+
+    protected boolean hasExplored(long nodeId) {
+        return this.results.containsKey(nodeId);
+    }
+
+    protected int getCost(long nodeId) {
+        return Dijkstra.cost(this.results.get(nodeId));
+    }
+
+    protected int getPaths(long nodeId) {
+        return Dijkstra.paths(this.results.get(nodeId));
+    }
+}
@@ -0,0 +1,61 @@
+package com.maxdemarzi.shortest;
+
+import java.util.Arrays;
+
+/**
+ * A monotone bucket queue (Dial's algorithm): one stack of node ids per cost, from 0 up to the max cost.
+ *
+ * Dijkstra only ever offers costs at or above the cost it last polled, so the lowest non-empty bucket can be
+ * found by moving forward, making both offer and poll O(1) amortized, without allocating an object per entry.
+ */
+public final class BucketCostQueue implements CostQueue {
+
+    public static final int MAX_COST = 1 << 12;
+
+    private final long[][] buckets;
+    private final int[] sizes;
+    private int current;
+    private int size;
+
+    public BucketCostQueue(int maxCost) {
+        this.buckets = new long[maxCost + 1][];
+        this.sizes = new int[maxCost + 1];
+        this.current = 0;
+        this.size = 0;
+    }
+
+    public void offer(long nodeId, int cost) {
+        if (cost < this.current || cost >= this.buckets.length) {
+            throw new IllegalArgumentException("Cost " + cost + " is outside of " + this.current + " - " + (this.buckets.length - 1));
+        }
+        long[] bucket = this.buckets[cost];
+        if (bucket == null) {
+            bucket = this.buckets[cost] = new long[8];
+        } else if (this.sizes[cost] == bucket.length) {
+            bucket = this.buckets[cost] = Arrays.copyOf(bucket, bucket.length * 2);
+        }
+        bucket[this.sizes[cost]++] = nodeId;
+        this.size++;
+    }
+
+    public long poll() {
+        final int cost = peekCost();
+        this.size--;
+        return this.buckets[cost][--this.sizes[cost]];
+    }
+
+    public int peekCost() {
+        while (this.sizes[this.current] == 0) {
+            this.current++;
+        }
+        return this.current;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+}
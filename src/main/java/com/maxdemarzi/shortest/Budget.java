@@ -0,0 +1,186 @@
+package com.maxdemarzi.shortest;
+
+import java.util.Map;
+
+/**
+ * How much a single request may spend searching: wall clock time, nodes expanded and entries in a visited map.
+ *
+ * Searches call check() as they go, with the number of nodes they expanded so far and the size of their largest
+ * visited map. The clock is only read every TIME_CHECK_INTERVAL nodes, so checking is cheap enough for every node.
+ * Once any limit is hit the budget stays exhausted, which also stops the other workers of a parallel search.
+ * Each worker counts its own expanded nodes.
+ *
+ * When the budget runs out the request either ends with the results found so far and a truncation marker
+ * ("partial", the default), or fails with Exceptions.timedOut ("fail").
+ *
+ * Searches also hand in what they spent once they are done, which Metrics reads when the request ends, and
+ * carry on the request's Profile, if it has one.
+ */
+public final class Budget {
+
+    public static final String PARTIAL = "partial";
+    public static final String FAIL = "fail";
+
+    public static final String TIME = "time";
+    public static final String EXPANDED = "expanded";
+    public static final String VISITED = "visited";
+
+    private static final long TIME_CHECK_INTERVAL = 256;
+
+    public static final Budget UNLIMITED = new Budget(0, 0, 0, false);
+
+    private static volatile long defaultTimeMillis;
+    private static volatile long defaultMaxExpanded;
+    private static volatile long defaultMaxVisited;
+    private static volatile boolean defaultFail;
+
+    /**
+     * @param timeMillis, maxExpanded, maxVisited: the server wide limits, 0 for none
+     * @param onExhausted: "partial" or "fail"
+     */
+    public static void setDefaults(long timeMillis, long maxExpanded, long maxVisited, String onExhausted) {
+        defaultTimeMillis = timeMillis;
+        defaultMaxExpanded = maxExpanded;
+        defaultMaxVisited = maxVisited;
+        defaultFail = FAIL.equals(onExhausted);
+    }
+
+    /**
+     * @param budget: the request's "budget" object, any of time_ms, max_expanded, max_visited and on_exhausted
+     * override the server defaults, can be null
+     */
+    public static Budget forRequest(Map<String, Object> budget) {
+        if (budget == null) {
+            return new Budget(defaultTimeMillis, defaultMaxExpanded, defaultMaxVisited, defaultFail);
+        }
+        return new Budget(
+            limit(budget, "time_ms", defaultTimeMillis),
+            limit(budget, "max_expanded", defaultMaxExpanded),
+            limit(budget, "max_visited", defaultMaxVisited),
+            budget.containsKey("on_exhausted") ? FAIL.equals(budget.get("on_exhausted")) : defaultFail);
+    }
+
+    private static long limit(Map<String, Object> budget, String key, long defaultLimit) {
+        return budget.containsKey(key) ? ((Number) budget.get(key)).longValue() : defaultLimit;
+    }
+
+    private final long deadline;
+    private final long maxExpanded;
+    private final long maxVisited;
+    private final boolean fail;
+    private volatile String exhaustedBy;
+    private volatile Profile profile;
+
+    // What the searches spent, guarded by this
+    private long expanded;
+    private long relationships;
+    private long peakFrontier;
+    private long peakVisited;
+
+    private Budget(long timeMillis, long maxExpanded, long maxVisited, boolean fail) {
+        this.deadline = timeMillis > 0 ? System.nanoTime() + timeMillis * 1000000L : Long.MAX_VALUE;
+        this.maxExpanded = maxExpanded > 0 ? maxExpanded : Long.MAX_VALUE;
+        this.maxVisited = maxVisited > 0 ? maxVisited : Long.MAX_VALUE;
+        this.fail = fail;
+    }
+
+    /**
+     * @param expanded: the nodes the caller expanded so far
+     * @param visited: the size of the caller's largest visited map
+     * @return whether the caller can keep searching
+     */
+    public boolean check(long expanded, long visited) {
+        if (expanded > this.maxExpanded) {
+            return exhaust(EXPANDED);
+        }
+        if (visited > this.maxVisited) {
+            return exhaust(VISITED);
+        }
+        if (expanded % TIME_CHECK_INTERVAL == 0) {
+            return checkTime();
+        }
+        return this.exhaustedBy == null;
+    }
+
+    /**
+     * Reads the clock, for searches that can't count their nodes
+     * @return whether the caller can keep searching
+     */
+    public boolean checkTime() {
+        if (this.deadline != Long.MAX_VALUE && System.nanoTime() > this.deadline) {
+            return exhaust(TIME);
+        }
+        return this.exhaustedBy == null;
+    }
+
+    private boolean exhaust(String limit) {
+        if (this.exhaustedBy == null) {
+            this.exhaustedBy = limit;
+        }
+        return false;
+    }
+
+    public boolean isExhausted() {
+        return this.exhaustedBy != null;
+    }
+
+    /**
+     * @return "time", "expanded" or "visited", null while there is budget left
+     */
+    public String exhaustedBy() {
+        return this.exhaustedBy;
+    }
+
+    public boolean failsWhenExhausted() {
+        return this.fail;
+    }
+
+    /**
+     * Called once by each search, or each worker of a parallel search, when it stops
+     * @param expanded: the nodes it expanded
+     * @param relationships: the relationships it read
+     * @param peakFrontier: the largest its queue or level got
+     * @param peakVisited: the largest its visited map got
+     */
+    public void spent(long expanded, long relationships, long peakFrontier, long peakVisited) {
+        if (this == UNLIMITED) {
+            return;
+        }
+        synchronized (this) {
+            this.expanded += expanded;
+            this.relationships += relationships;
+            this.peakFrontier = Math.max(this.peakFrontier, peakFrontier);
+            this.peakVisited = Math.max(this.peakVisited, peakVisited);
+        }
+    }
+
+    /**
+     * @return the profile of a request with "profile": true, null otherwise
+     */
+    public Profile profile() {
+        return this.profile;
+    }
+
+    public void profile(Profile profile) {
+        if (this == UNLIMITED) {
+            throw new IllegalStateException("The unlimited budget is shared, it can't be profiled");
+        }
+        this.profile = profile;
+    }
+
+    public synchronized long expanded() {
+        return this.expanded;
+    }
+
+    public synchronized long relationships() {
+        return this.relationships;
+    }
+
+    public synchronized long peakFrontier() {
+        return this.peakFrontier;
+    }
+
+    public synchronized long peakVisited() {
+        return this.peakVisited;
+    }
+}
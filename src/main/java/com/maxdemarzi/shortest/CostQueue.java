@@ -0,0 +1,36 @@
+package com.maxdemarzi.shortest;
+
+/**
+ * The queue of nodes waiting to be explored by Dijkstra, lowest cost first.
+ *
+ * A node can be offered again when a cheaper path to it is found, so it may be polled more than once.
+ */
+public interface CostQueue {
+
+    public void offer(long nodeId, int cost);
+
+    /**
+     * @return the id of a node with the lowest cost in the queue, the queue must not be empty
+     */
+    public long poll();
+
+    /**
+     * @return the lowest cost in the queue, the queue must not be empty
+     */
+    public int peekCost();
+
+    public int size();
+
+    public boolean isEmpty();
+
+    /**
+     * Costs are small integers and a Dijkstra never looks past its max cost, so unless that is huge
+     * a bucket per cost beats a binary heap
+     */
+    public static CostQueue forMaxCost(int maxCost) {
+        if (maxCost >= 0 && maxCost <= BucketCostQueue.MAX_COST) {
+            return new BucketCostQueue(maxCost);
+        }
+        return new HeapCostQueue();
+    }
+}
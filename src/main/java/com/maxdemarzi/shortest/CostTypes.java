@@ -0,0 +1,78 @@
+package com.maxdemarzi.shortest;
+
+import java.util.Arrays;
+
+import net.openhft.koloboke.collect.map.IntIntCursor;
+import net.openhft.koloboke.collect.map.IntIntMap;
+
+/**
+ * The relationship types a lowest cost search can still follow from a node, by how much of its max cost is left.
+ *
+ * Types not listed in the costs take the default cost, usually set so high that they are never followed. While
+ * the default still fits every relationship has to be read, after that only the listed types cheaper than the
+ * default are asked for, fewer and fewer of them as the cost left shrinks.
+ */
+final class CostTypes {
+
+    private static final int[] NONE = new int[0];
+
+    private final int defaultCost;
+    // Ascending, the costs of the listed types cheaper than the default, and all types costing at most each
+    private final int[] costs;
+    private final int[][] types;
+
+    CostTypes(IntIntMap relationshipCosts) {
+        this.defaultCost = relationshipCosts.defaultValue();
+
+        final long[] byCost = new long[relationshipCosts.size()];
+        int listed = 0;
+        final IntIntCursor cursor = relationshipCosts.cursor();
+        while (cursor.moveNext()) {
+            if (cursor.value() < this.defaultCost) {
+                byCost[listed++] = ((long) cursor.value() << 32) | (cursor.key() & 0xffffffffL);
+            }
+        }
+        Arrays.sort(byCost, 0, listed);
+
+        int distinct = 0;
+        final int[] costs = new int[listed];
+        final int[][] types = new int[listed][];
+        for (int i = 0; i < listed; i++) {
+            final int cost = (int) (byCost[i] >> 32);
+            if (i + 1 < listed && (int) (byCost[i + 1] >> 32) == cost) {
+                continue;
+            }
+            costs[distinct] = cost;
+            types[distinct] = new int[i + 1];
+            for (int j = 0; j <= i; j++) {
+                types[distinct][j] = (int) byCost[j];
+            }
+            distinct++;
+        }
+        this.costs = Arrays.copyOf(costs, distinct);
+        this.types = Arrays.copyOf(types, distinct);
+    }
+
+    /**
+     * @param remaining: what is left of the max cost at the node
+     * @return the types to read, null if every relationship could still be followed
+     */
+    int[] fitting(int remaining) {
+        if (this.defaultCost <= remaining) {
+            return null;
+        }
+        int fitting = this.costs.length;
+        while (fitting > 0 && this.costs[fitting - 1] > remaining) {
+            fitting--;
+        }
+        return fitting == 0 ? NONE : this.types[fitting - 1];
+    }
+
+    /**
+     * @return the node's relationships that could still be followed, read through typed cursors when not all could
+     */
+    AdjacencyCursor relationships(Adjacency adjacency, long nodeId, int remaining) {
+        final int[] types = fitting(remaining);
+        return types == null ? adjacency.relationships(nodeId) : adjacency.relationships(nodeId, types);
+    }
+}
@@ -0,0 +1,290 @@
+package com.maxdemarzi.shortest;
+
+import java.util.Arrays;
+import java.util.List;
+
+import net.openhft.koloboke.collect.map.LongObjCursor;
+import net.openhft.koloboke.collect.map.hash.HashLongObjMap;
+import net.openhft.koloboke.collect.map.hash.HashLongObjMaps;
+import net.openhft.koloboke.collect.set.hash.HashLongSet;
+import net.openhft.koloboke.collect.set.hash.HashLongSets;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.kernel.api.ReadOperations;
+
+/**
+ * A snapshot with the relationships committed after it was read applied on top, so it can be kept up to date
+ * without reading the whole store again.
+ *
+ * Every node a commit touched gets the full list of its relationships, as (other node << 16 | type), which is read
+ * instead of the base snapshot, every other node is read from the base. Applying commits copies the lists it changes,
+ * a DeltaSnapshot never changes once it was handed out.
+ */
+final class DeltaSnapshot implements AdjacencySnapshot {
+
+    // Once the lists of touched nodes hold this many entries, or a 64th of the base, it's time to fold them into it
+    private static final long MIN_FOLDED_ENTRIES = 1 << 16;
+
+    /**
+     * What a transaction did to relationships, four longs per relationship: id, start node, end node and type
+     */
+    static final class Changes {
+
+        // a transaction whose changes couldn't be read, a snapshot can't be kept up to date past it
+        static final Changes UNKNOWN = new Changes(null, null);
+
+        private final long[] created;
+        private final long[] deleted;
+
+        private Changes(long[] created, long[] deleted) {
+            this.created = created;
+            this.deleted = deleted;
+        }
+
+        /**
+         * @param ops: the read operations of the committing transaction, to look the relationship type ids up
+         */
+        static Changes of(TransactionData data, ReadOperations ops) {
+            return new Changes(relationships(data.createdRelationships(), ops), relationships(data.deletedRelationships(), ops));
+        }
+
+        boolean isEmpty() {
+            return created != null && created.length == 0 && deleted.length == 0;
+        }
+
+        private static long[] relationships(Iterable<Relationship> relationships, ReadOperations ops) {
+            long[] changed = new long[16];
+            int size = 0;
+            for (Relationship relationship : relationships) {
+                if (size == changed.length) {
+                    changed = Arrays.copyOf(changed, size * 2);
+                }
+                changed[size++] = relationship.getId();
+                changed[size++] = relationship.getStartNode().getId();
+                changed[size++] = relationship.getEndNode().getId();
+                changed[size++] = ops.relationshipTypeGetForName(relationship.getType().name());
+            }
+            return Arrays.copyOf(changed, size);
+        }
+    }
+
+    private final AdjacencySnapshot base;
+    private final long lastTxId;
+    private final int nodeCount;
+    private final long relationshipEntries;
+    // never changed once the snapshot is constructed
+    private final HashLongObjMap<long[]> touched;
+    private final long touchedEntries;
+
+    DeltaSnapshot(AdjacencySnapshot base) {
+        this(base, base.lastTxId(), base.nodeCount(), base.relationshipEntries(), HashLongObjMaps.<long[]>newMutableMap(), 0);
+    }
+
+    private DeltaSnapshot(AdjacencySnapshot base, long lastTxId, int nodeCount, long relationshipEntries, HashLongObjMap<long[]> touched, long touchedEntries) {
+        this.base = base;
+        this.lastTxId = lastTxId;
+        this.nodeCount = nodeCount;
+        this.relationshipEntries = relationshipEntries;
+        this.touched = touched;
+        this.touchedEntries = touchedEntries;
+    }
+
+    public long lastTxId() {
+        return lastTxId;
+    }
+
+    public int nodeCount() {
+        return nodeCount;
+    }
+
+    public long relationshipEntries() {
+        return relationshipEntries;
+    }
+
+    public Adjacency adjacency() {
+        return new View(base.adjacency());
+    }
+
+    /**
+     * @return whether the touched nodes grew big enough to be folded into a new base
+     */
+    boolean outgrown() {
+        return touchedEntries > Math.max(MIN_FOLDED_ENTRIES, base.relationshipEntries() / 64);
+    }
+
+    /**
+     * Applies the changes in the order they were committed. The base may have been read while some of them were
+     * committed, the sorted ids of the relationships it read tell whether it already has one of those.
+     *
+     * @param read: the sorted ids of the relationships read into the base, or null if it was read before any of these
+     * @param lastTxId: the last transaction the result has every change of
+     * @throws IllegalStateException if the changes of a transaction are unknown, a node id is too big, or a relationship
+     * is deleted that isn't in the snapshot
+     */
+    DeltaSnapshot apply(List<Changes> changes, long[] read, long lastTxId) {
+        if (changes.isEmpty() && lastTxId == this.lastTxId) {
+            return this;
+        }
+        final Adjacency baseAdjacency = base.adjacency();
+        final HashLongObjMap<Entries> lists = HashLongObjMaps.newMutableMap();
+        // relationships an earlier transaction of these already changed, and whether they are there after it
+        final HashLongSet decided = HashLongSets.newMutableSet();
+        final HashLongSet present = HashLongSets.newMutableSet();
+        int nodeCount = this.nodeCount;
+        long relationshipEntries = this.relationshipEntries;
+
+        for (Changes committed : changes) {
+            if (committed.created == null) {
+                throw new IllegalStateException("Lost track of the relationships a transaction changed");
+            }
+            for (int deleting = 0; deleting < 2; deleting++) {
+                final long[] relationships = deleting == 0 ? committed.created : committed.deleted;
+                for (int i = 0; i < relationships.length; i += 4) {
+                    final long relationshipId = relationships[i];
+                    final boolean there = decided.contains(relationshipId) ? present.contains(relationshipId)
+                        : read != null ? Arrays.binarySearch(read, relationshipId) >= 0 : deleting == 1;
+                    if (there == (deleting == 0)) {
+                        // created while the base was read and it saw it, or deleted before it got to it
+                        continue;
+                    }
+                    final int start = CsrSnapshot.nodeId(relationships[i + 1]);
+                    final int end = CsrSnapshot.nodeId(relationships[i + 2]);
+                    final long type = relationships[i + 3];
+                    nodeCount = Math.max(nodeCount, Math.max(start, end) + 1);
+                    relationshipEntries += change(lists, baseAdjacency, start, ((long) end << 16) | type, deleting == 1);
+                    if (start != end) {
+                        relationshipEntries += change(lists, baseAdjacency, end, ((long) start << 16) | type, deleting == 1);
+                    }
+                    if (read != null) {
+                        decided.add(relationshipId);
+                        if (deleting == 0) {
+                            present.add(relationshipId);
+                        } else {
+                            present.removeLong(relationshipId);
+                        }
+                    }
+                }
+            }
+        }
+
+        final HashLongObjMap<long[]> touched = HashLongObjMaps.newMutableMap(this.touched);
+        long touchedEntries = this.touchedEntries;
+        final LongObjCursor<Entries> changed = lists.cursor();
+        while (changed.moveNext()) {
+            final long[] previous = touched.put(changed.key(), Arrays.copyOf(changed.value().entries, changed.value().size));
+            touchedEntries += changed.value().size - (previous == null ? 0 : previous.length);
+        }
+        return new DeltaSnapshot(base, lastTxId, nodeCount, relationshipEntries, touched, touchedEntries);
+    }
+
+    /*
+     * @return by how much the number of relationship entries changed
+     */
+    private int change(HashLongObjMap<Entries> lists, Adjacency baseAdjacency, int nodeId, long entry, boolean delete) {
+        Entries entries = lists.get(nodeId);
+        if (entries == null) {
+            entries = new Entries(this.touched.get(nodeId), baseAdjacency, nodeId);
+            lists.put(nodeId, entries);
+        }
+        if (!delete) {
+            entries.add(entry);
+            return 1;
+        }
+        if (!entries.remove(entry)) {
+            throw new IllegalStateException("Deleted a relationship the snapshot doesn't have");
+        }
+        return -1;
+    }
+
+    /*
+     * The relationships of a node being changed, one growable list per node
+     */
+    private static final class Entries {
+        private long[] entries;
+        private int size;
+
+        Entries(long[] touched, Adjacency baseAdjacency, long nodeId) {
+            if (touched != null) {
+                this.entries = Arrays.copyOf(touched, touched.length + 4);
+                this.size = touched.length;
+                return;
+            }
+            this.entries = new long[baseAdjacency.degree(nodeId) + 4];
+            final AdjacencyCursor cursor = baseAdjacency.relationships(nodeId);
+            while (cursor.next()) {
+                add((cursor.otherNode() << 16) | cursor.type());
+            }
+        }
+
+        void add(long entry) {
+            if (size == entries.length) {
+                entries = Arrays.copyOf(entries, size * 2);
+            }
+            entries[size++] = entry;
+        }
+
+        boolean remove(long entry) {
+            for (int i = 0; i < size; i++) {
+                if (entries[i] == entry) {
+                    entries[i] = entries[--size];
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private final class View implements Adjacency, AdjacencyCursor {
+        private final Adjacency baseAdjacency;
+        private AdjacencyCursor baseCursor;
+        private long[] entries;
+        private int position;
+        private int[] onlyTypes;
+
+        View(Adjacency baseAdjacency) {
+            this.baseAdjacency = baseAdjacency;
+        }
+
+        public AdjacencyCursor relationships(long nodeId) {
+            this.entries = touched.isEmpty() ? null : touched.get(nodeId);
+            if (this.entries == null) {
+                return baseAdjacency.relationships(nodeId);
+            }
+            this.position = -1;
+            this.onlyTypes = null;
+            return this;
+        }
+
+        public AdjacencyCursor relationships(long nodeId, int[] types) {
+            this.entries = touched.isEmpty() ? null : touched.get(nodeId);
+            if (this.entries == null) {
+                return baseAdjacency.relationships(nodeId, types);
+            }
+            this.position = -1;
+            this.onlyTypes = types;
+            return this;
+        }
+
+        public int degree(long nodeId) {
+            final long[] entries = touched.isEmpty() ? null : touched.get(nodeId);
+            return entries != null ? entries.length : baseAdjacency.degree(nodeId);
+        }
+
+        public boolean next() {
+            while (++this.position < this.entries.length) {
+                if (this.onlyTypes == null || CsrSnapshot.listed(this.onlyTypes, type())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public long otherNode() {
+            return this.entries[this.position] >>> 16;
+        }
+
+        public int type() {
+            return (int) (this.entries[this.position] & 0xffff);
+        }
+    }
+}
@@ -2,18 +2,13 @@ package com.maxdemarzi.shortest;
 
 import java.util.Collection;
 import java.util.Map.Entry;
-import java.util.PriorityQueue;
 import java.util.Map;
 
-import org.neo4j.cursor.Cursor;
-import org.neo4j.graphdb.Direction;
-import org.neo4j.kernel.api.ReadOperations;
-import org.neo4j.kernel.api.cursor.NodeItem;
-import org.neo4j.kernel.api.cursor.RelationshipItem;
-
 import net.openhft.koloboke.collect.map.IntIntMap;
 import net.openhft.koloboke.collect.map.hash.HashLongLongMap;
 import net.openhft.koloboke.collect.map.hash.HashLongLongMaps;
+import net.openhft.koloboke.collect.set.LongSet;
+import net.openhft.koloboke.collect.set.hash.HashLongSets;
 import net.openhft.koloboke.function.LongBinaryOperator;
 
 import com.maxdemarzi.shortest.Traversal;
@@ -22,12 +17,17 @@ public final class Dijkstra extends Traversal {
 
 
     private final int maxCost;
-    private final ReadOperations readOps;
+    private final Adjacency adjacency;
     private final NodeCallback nodeCallback;
     private final IntIntMap relationshipCosts;
+    private final CostTypes costTypes;
 
-    private final PriorityQueue<Step> queue;
+    private final CostQueue queue;
     private final HashLongLongMap paths;
+    private final LongSet startNodes;
+
+    private long relationships;
+    private int peakQueue;
 
     /*
      * To avoid having to store a map of NodeId -> Cost + Paths + Explored
@@ -41,27 +41,27 @@ public final class Dijkstra extends Traversal {
      */
     private static final long exploredMask = 0x80000000L;
 
-    private static final long costPaths(int cost, int paths) {
+    static final long costPaths(int cost, int paths) {
         return (((long)paths) << 32) | (cost & 0xffffffffL);
     }
 
-    private static final long setExplored(long costPaths) {
+    static final long setExplored(long costPaths) {
         return exploredMask | costPaths;
     }
 
-    private static final int cost(long costPaths) {
+    static final int cost(long costPaths) {
         return (int) (costPaths & ~exploredMask);
     }
 
-    private static final int paths(long costPaths) {
+    static final int paths(long costPaths) {
         return (int)(costPaths >> 32);
     }
 
-    private static final boolean explored(long costPaths) {
+    static final boolean explored(long costPaths) {
         return (exploredMask & costPaths) > 0;
     }
 
-    private static final long addPaths(long a, long b) {
+    static final long addPaths(long a, long b) {
         return (0xffffffff00000000L & a) + b;
     }
 
@@ -69,7 +69,7 @@ public final class Dijkstra extends Traversal {
      * This function is called for every relationship we follow to update the cost & path count to a node
      * It happens within the koloboke HashLongLongMap merge function, this way it avoids an additional hash lookup
      */
-    private static final LongBinaryOperator updateSeenFunc = new LongBinaryOperator() {
+    static final LongBinaryOperator updateSeenFunc = new LongBinaryOperator() {
             public long applyAsLong(long oldVal, long newVal) {
                 if (explored(oldVal)) {
                     return oldVal;
@@ -86,59 +86,68 @@ public final class Dijkstra extends Traversal {
             }
         };
 
-    private static class Step implements Comparable<Step> {
-        public final long nodeId;
-        public final int cost;
-
-        public Step(long nodeId, int cost) {
-            this.nodeId = nodeId;
-            this.cost = cost;
-        }
-
-        public final int compareTo(Step o) {
-            if (this.cost < o.cost) {
-                return -1;
-            } else if (this.cost > o.cost) {
-                return 1;
-            }
-            return 0;
-        }
-
-        public boolean isStartNode() {
-            return false;
-        }
+    public Dijkstra(Adjacency adjacency, IntIntMap relationshipCosts, Map<Long, Integer> startNodes, int maxCost, NodeCallback callback) {
+        this(adjacency, relationshipCosts, startNodes, maxCost, callback, HashLongLongMaps.newMutableMap(500));
     }
 
-    public Dijkstra(ReadOperations readOps, IntIntMap relationshipCosts, Map<Long, Integer> startNodes, int maxCost, NodeCallback callback) {
+    /**
+     * @param paths: the empty map to keep costs and paths in, a TraversalState's when the search won't outlive it
+     */
+    Dijkstra(Adjacency adjacency, IntIntMap relationshipCosts, Map<Long, Integer> startNodes, int maxCost, NodeCallback callback, HashLongLongMap paths) {
         super();
-        this.readOps = readOps;
+        this.adjacency = adjacency;
         this.relationshipCosts = relationshipCosts;
+        this.costTypes = new CostTypes(relationshipCosts);
         this.nodeCallback = callback;
-        this.queue = new PriorityQueue<Step>();
-        this.paths = HashLongLongMaps.newMutableMap(500);
+        this.paths = paths;
+        this.startNodes = HashLongSets.newMutableSet(startNodes.size());
         this.maxCost = maxCost;
+
+        int maxStartCost = 0;
+        for (Integer cost : startNodes.values()) {
+            maxStartCost = Math.max(maxStartCost, cost.intValue());
+        }
+        this.queue = CostQueue.forMaxCost(Math.max(maxCost, maxStartCost));
+
         //initialize the queue with our start nodes
         for (Map.Entry<Long,Integer> entry : startNodes.entrySet()) {
             long nodeId = entry.getKey().longValue();
             int cost = entry.getValue().intValue();
 
-            Step step = new Step(nodeId, cost) {
-                public boolean isStartNode() {
-                    return true;
-                }
-            };
+            this.startNodes.add(nodeId);
             this.paths.put(nodeId, costPaths(cost, 1));
-            this.queue.offer(step);
+            this.queue.offer(nodeId, cost);
         }
     }
 
+    private Dijkstra(HashLongLongMap paths, int maxCost) {
+        super();
+        this.adjacency = null;
+        this.relationshipCosts = null;
+        this.costTypes = null;
+        this.nodeCallback = null;
+        this.paths = paths;
+        this.startNodes = HashLongSets.newImmutableSet(new long[0]);
+        this.maxCost = maxCost;
+        this.queue = null;
+        this.finish();
+    }
+
+    /**
+     * @return a finished copy sharing the explored and seen nodes, that only answers lookups,
+     * without holding on to the queue or the adjacency
+     */
+    Dijkstra frozen() {
+        return new Dijkstra(this.paths, this.maxCost);
+    }
+
     public void step() {
-        final Step current = this.queue.poll();
-        if (current == null) {
+        if (this.queue.isEmpty()) {
             this.finish();
             return;
         }
-        final long exploredCostPaths = this.paths.get(current.nodeId);
+        final long nodeId = this.queue.poll();
+        final long exploredCostPaths = this.paths.get(nodeId);
         // Because we cant modify the priority of things on the queue, we just have to handle
         // encountering duplicates. removing and re-inserting would be super slow
         if (explored(exploredCostPaths)) {
@@ -147,45 +156,88 @@ public final class Dijkstra extends Traversal {
 
         final int paths = paths(exploredCostPaths);
         final int cost = cost(exploredCostPaths);
+        if (this.profile != null) {
+            this.profile.frontier(cost, 1);
+        }
 
-        NodeItem currentNode = null;
         int degree = 0;
+        boolean allRead = true;
 
         if (cost < this.maxCost) { // if we're at max cost, dont bother looking at edges (or loading the node)
-            final Cursor<NodeItem> nodeCursor = this.readOps.nodeCursor(current.nodeId);
-            nodeCursor.next();
-            currentNode = nodeCursor.get();
-            final Cursor<RelationshipItem> relationshipCursor = currentNode.relationships(Direction.BOTH);
+            // Only ask for the types still cheap enough, unless every relationship is
+            final int[] types = this.costTypes.fitting(this.maxCost - cost);
+            allRead = types == null;
+            final AdjacencyCursor relationshipCursor = allRead
+                ? this.adjacency.relationships(nodeId) : this.adjacency.relationships(nodeId, types);
             while(relationshipCursor.next()) {
                 degree++;
-                RelationshipItem relation = relationshipCursor.get();
-                final int stepCost = this.relationshipCosts.get(relation.type()) + cost;
-                if (stepCost > this.maxCost) {
+                final int stepCost = this.relationshipCosts.get(relationshipCursor.type()) + cost;
+                // past max cost, or so far past it the int wrapped around
+                if (stepCost > this.maxCost || stepCost < cost) {
                     continue;
                 }
-                final long otherId = relation.otherNode(current.nodeId);
+                final long otherId = relationshipCursor.otherNode();
                 final long newVal = costPaths(stepCost, paths);
 
                 final long result = this.paths.merge(otherId, newVal, updateSeenFunc);
                 if (result == newVal) {
                     //If this became the new lowest cost path to the node, put it on the queue
-                    this.queue.offer(new Step(otherId, stepCost));
+                    this.queue.offer(otherId, stepCost);
                 }
             }
         }
-        this.nodeCallback.explored(this, currentNode, current.nodeId, cost, paths);
+        this.relationships += degree;
+        if (this.queue.size() > this.peakQueue) {
+            this.peakQueue = this.queue.size();
+        }
+        this.nodeCallback.explored(this, null, nodeId, cost, paths);
         // If we explored the relationships on this node and it's degree was 1,
         // then it is safe to forget this node in our paths tracking, because we wont encounter it again
         // from this or any other traversal that doesnt also intersect with a lower cost path. (its a dead end)
-        // should save a bit of memory
+        // should save a bit of memory. Only when we read all of them, skipped ones could lead back here.
         //
-        if (degree == 1 && !current.isStartNode()) {
-            this.paths.remove(current.nodeId);
+        if (degree == 1 && allRead && !this.startNodes.contains(nodeId)) {
+            this.paths.remove(nodeId);
         } else {
-            this.paths.put(current.nodeId, setExplored(exploredCostPaths));
+            this.paths.put(nodeId, setExplored(exploredCostPaths));
         }
     }
 
+    /**
+     * @return the lowest cost waiting to be explored, every node cheaper than that has been explored.
+     * Integer.MAX_VALUE once there is nothing left to explore
+     */
+    public int peekCost() {
+        return this.queue.isEmpty() ? Integer.MAX_VALUE : this.queue.peekCost();
+    }
+
+    public int queueSize() {
+        return this.queue.size();
+    }
+
+    protected long visited() {
+        return this.paths.size();
+    }
+
+    protected long relationships() {
+        return this.relationships;
+    }
+
+    protected long peakFrontier() {
+        return this.peakQueue;
+    }
+
+    /**
+     * @return every node seen so far, explored or not
+     */
+    long[] seen() {
+        return this.paths.keySet().toLongArray();
+    }
+
+    protected boolean hasSeen(long nodeId) {
+        return this.paths.containsKey(nodeId);
+    }
+
     protected boolean hasExplored(long nodeId) {
         return explored(this.paths.get(nodeId));
     }
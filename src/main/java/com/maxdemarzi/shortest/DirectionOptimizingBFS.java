@@ -0,0 +1,413 @@
+package com.maxdemarzi.shortest;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+import net.openhft.koloboke.collect.LongCursor;
+import net.openhft.koloboke.collect.map.LongIntCursor;
+import net.openhft.koloboke.collect.map.LongIntMap;
+import net.openhft.koloboke.collect.map.hash.HashLongIntMap;
+import net.openhft.koloboke.collect.set.hash.HashLongSet;
+import net.openhft.koloboke.collect.set.hash.HashLongSets;
+
+/**
+ * Level synchronous breadth first search over a snapshot that switches between expanding the frontier (top-down)
+ * and checking every unvisited node against it (bottom-up), as in Beamer's direction-optimizing BFS.
+ *
+ * In the middle levels of a small world graph the frontier holds most of the giant component, and top-down reads
+ * nearly every relationship to add each one to the next level. Bottom-up reads the relationships of the unvisited
+ * nodes instead, and a node is written once. To count paths exactly an unvisited node still sums the paths of
+ * all of its neighbors on the frontier, it can't stop at the first one, so bottom-up only pays off once the
+ * frontier has more than 1 / ALPHA as many relationships as the unvisited nodes. It goes back to top-down once the
+ * frontier is smaller than 1 / BETA of the nodes and shrinking.
+ *
+ * Top-down levels keep their path counts in the thread's TraversalState maps, so a short search costs what it
+ * visits. Bottom-up goes through every node anyway, so the first time it runs the path counts and the visited set
+ * move to arrays indexed by node id for the rest of the search. Degrees are read straight from the snapshot.
+ */
+public final class DirectionOptimizingBFS {
+
+    public static interface PathsCallback {
+        /**
+         * @param search: the search that found the paths, call finish() on it to stop
+         * @param nodeId: the target that was reached
+         * @param length: the length of the shortest paths from the center to the target
+         * @param count: the number of shortest paths
+         */
+        public void found(final DirectionOptimizingBFS search, final long nodeId, final int length, final int count);
+    }
+
+    static final int ALPHA = 2;
+    static final int BETA = 24;
+
+    private final Adjacency adjacency;
+    private final int snapshotNodes;
+    private final long relationshipEntries;
+    private final int alpha;
+    private final int beta;
+    private boolean finished;
+    private int bottomUpLevels;
+
+    private long expanded;
+    private long relationships;
+    private long peakFrontier;
+    private long peakVisited;
+
+    // the state of the running search, maps until it first goes bottom-up, then arrays
+    private TraversalState state;
+    private NodeSet visited;
+    private HashLongIntMap pathsMap;
+    private HashLongIntMap nextPathsMap;
+    private int[] paths;
+    private int[] nextPaths;
+
+    public DirectionOptimizingBFS(AdjacencySnapshot snapshot) {
+        this(snapshot, ALPHA, BETA);
+    }
+
+    /**
+     * @param alpha: switch to bottom-up once the frontier has alpha times fewer relationships than the unvisited nodes, 0 never does
+     * @param beta: switch back once the frontier has fewer than 1 / beta of the nodes, 0 never does
+     */
+    DirectionOptimizingBFS(AdjacencySnapshot snapshot, int alpha, int beta) {
+        this.adjacency = snapshot.adjacency();
+        this.snapshotNodes = snapshot.nodeCount();
+        this.relationshipEntries = snapshot.relationshipEntries();
+        this.alpha = alpha;
+        this.beta = beta;
+    }
+
+    public void finish() {
+        this.finished = true;
+    }
+
+    /**
+     * @return the number of levels the last run expanded bottom-up
+     */
+    public int bottomUpLevels() {
+        return this.bottomUpLevels;
+    }
+
+    public void run(long centerNodeId, Collection<Long> bibliographyNodeIds, Collection<Long> targets, int maxLength, PathsCallback callback) {
+        run(centerNodeId, bibliographyNodeIds, targets, maxLength, Budget.UNLIMITED, callback);
+    }
+
+    /**
+     * Stops once the budget runs out, the level being expanded at that point is dropped, so every count reported is exact
+     */
+    public void run(long centerNodeId, Collection<Long> bibliographyNodeIds, Collection<Long> targets, int maxLength, Budget budget, PathsCallback callback) {
+        this.expanded = 0;
+        this.relationships = 0;
+        this.peakFrontier = 0;
+        this.peakVisited = 0;
+        try {
+            search(centerNodeId, bibliographyNodeIds, targets, maxLength, budget, callback);
+        } finally {
+            budget.spent(this.expanded, this.relationships, this.peakFrontier, this.peakVisited);
+        }
+    }
+
+    private void search(long centerNodeId, Collection<Long> bibliographyNodeIds, Collection<Long> targets, int maxLength, Budget budget, PathsCallback callback) {
+        this.state = TraversalState.acquire();
+        try {
+            search(centerNodeId, bibliographyNodeIds, targets, maxLength, budget, callback, this.state);
+        } finally {
+            // the arrays of a bottom-up search are as big as the graph, they go with it
+            this.visited = null;
+            this.paths = null;
+            this.nextPaths = null;
+            this.pathsMap = null;
+            this.nextPathsMap = null;
+            this.state.release();
+            this.state = null;
+        }
+    }
+
+    private void search(long centerNodeId, Collection<Long> bibliographyNodeIds, Collection<Long> targets, int maxLength, Budget budget, PathsCallback callback, TraversalState state) {
+        final Adjacency adjacency = Profile.adjacency(budget, this.adjacency);
+        final HashLongSet pending = HashLongSets.newMutableSet(targets);
+
+        // Nodes created after the snapshot have no relationships in it, but still get a slot
+        long maxNodeId = Math.max(this.snapshotNodes - 1, centerNodeId);
+        for (Long bibId : bibliographyNodeIds) {
+            maxNodeId = Math.max(maxNodeId, bibId.longValue());
+        }
+        final int nodeCount = (int) maxNodeId + 1;
+
+        this.visited = state.visited();
+        this.pathsMap = state.next(null);
+        this.nextPathsMap = state.next(this.pathsMap);
+        int[] frontier = new int[64];
+        int[] next = new int[64];
+        int frontierSize = 0;
+        int nextSize;
+
+        final int center = (int) centerNodeId;
+        this.visited.add(center);
+        this.pathsMap.put(center, 1);
+        frontier[frontierSize++] = center;
+        long frontierDegrees = adjacency.degree(center);
+        long unvisitedDegrees = this.relationshipEntries - frontierDegrees;
+        int visitedCount = 1;
+        boolean topDown = true;
+        int previousFrontierSize = 0;
+        this.bottomUpLevels = 0;
+
+        AdjacencyCursor relationshipCursor;
+
+        int level = 1;
+        while (level <= maxLength && !this.finished && !pending.isEmpty() && frontierSize > 0) {
+            this.peakFrontier = Math.max(this.peakFrontier, frontierSize);
+            this.peakVisited = Math.max(this.peakVisited, visitedCount);
+            if (budget.profile() != null) {
+                budget.profile().frontier(level - 1, frontierSize);
+            }
+            if (level < maxLength) {
+                if (topDown) {
+                    topDown = frontierDegrees * this.alpha <= unvisitedDegrees;
+                } else {
+                    topDown = this.beta > 0 && (long) frontierSize * this.beta < nodeCount && frontierSize < previousFrontierSize;
+                }
+
+                nextSize = 0;
+                long nextDegrees = 0;
+                if (topDown) {
+                    for (int i = 0; i < frontierSize; i++) {
+                        if (!budget.check(++this.expanded, visitedCount + nextSize)) {
+                            return;
+                        }
+                        final int nodeId = frontier[i];
+                        final int nodePaths = paths(nodeId);
+                        relationshipCursor = adjacency.relationships(nodeId);
+                        while (relationshipCursor.next()) {
+                            this.relationships++;
+                            final int otherId = (int) relationshipCursor.otherNode();
+                            if (this.visited.contains(otherId)) {
+                                continue;
+                            }
+                            if (addNextPaths(otherId, nodePaths)) {
+                                if (nextSize == next.length) {
+                                    next = Arrays.copyOf(next, nextSize * 2);
+                                }
+                                next[nextSize++] = otherId;
+                                nextDegrees += adjacency.degree(otherId);
+                            }
+                        }
+                    }
+                } else {
+                    this.bottomUpLevels++;
+                    final long[] words = dense(nodeCount);
+                    for (int word = 0; word < words.length; word++) {
+                        // skip 64 visited nodes at a time
+                        long unvisited = ~words[word];
+                        if (word == words.length - 1 && (nodeCount & 63) != 0) {
+                            unvisited &= (1L << (nodeCount & 63)) - 1;
+                        }
+                        while (unvisited != 0) {
+                            final int nodeId = (word << 6) | Long.numberOfTrailingZeros(unvisited);
+                            unvisited &= unvisited - 1;
+                            if (!budget.check(++this.expanded, visitedCount + nextSize)) {
+                                return;
+                            }
+
+                            int nodePaths = 0;
+                            int degree = 0;
+                            relationshipCursor = adjacency.relationships(nodeId);
+                            while (relationshipCursor.next()) {
+                                nodePaths += this.paths[(int) relationshipCursor.otherNode()];
+                                degree++;
+                            }
+                            this.relationships += degree;
+                            if (nodePaths != 0) {
+                                if (nextSize == next.length) {
+                                    next = Arrays.copyOf(next, nextSize * 2);
+                                }
+                                next[nextSize++] = nodeId;
+                                this.nextPaths[nodeId] = nodePaths;
+                                nextDegrees += degree;
+                            }
+                        }
+                    }
+                }
+
+                if (level == 1) {
+                    // Pretend there are length 1 paths to the bibliography entries
+                    for (Long bibId : bibliographyNodeIds) {
+                        final int nodeId = (int) bibId.longValue();
+                        if (!this.visited.contains(nodeId) && nextPaths(nodeId) == 0) {
+                            if (nextSize == next.length) {
+                                next = Arrays.copyOf(next, nextSize * 2);
+                            }
+                            next[nextSize++] = nodeId;
+                            addNextPaths(nodeId, 1);
+                            nextDegrees += adjacency.degree(nodeId);
+                        }
+                    }
+                }
+
+                // The new level is visited, the old one is cleared so the maps or arrays can swap
+                for (int i = 0; i < nextSize; i++) {
+                    this.visited.add(next[i]);
+                }
+                swapPaths(frontier, frontierSize);
+                visitedCount += nextSize;
+                unvisitedDegrees -= nextDegrees;
+                previousFrontierSize = frontierSize;
+
+                final int[] swapFrontier = frontier;
+                frontier = next;
+                next = swapFrontier;
+                frontierSize = nextSize;
+                frontierDegrees = nextDegrees;
+
+                // Report any targets on the new level, then stop searching for them
+                final LongCursor targetCursor = pending.cursor();
+                while (targetCursor.moveNext() && !this.finished) {
+                    final long nodeId = targetCursor.elem();
+                    final int nodePaths = nodeId < nodeCount ? paths((int) nodeId) : 0;
+                    if (nodePaths != 0) {
+                        targetCursor.remove();
+                        callback.found(this, nodeId, level, nodePaths);
+                    }
+                }
+            } else {
+                // Last level, count the paths from each remaining target's neighbors on the last level
+                final LongCursor targetCursor = pending.cursor();
+                while (targetCursor.moveNext() && !this.finished) {
+                    final long nodeId = targetCursor.elem();
+                    if (nodeId < nodeCount && this.visited.contains(nodeId)) {
+                        continue;
+                    }
+                    if (!budget.check(++this.expanded, visitedCount)) {
+                        return;
+                    }
+                    int nodePaths = 0;
+                    relationshipCursor = adjacency.relationships(nodeId);
+                    while (relationshipCursor.next()) {
+                        this.relationships++;
+                        nodePaths += paths((int) relationshipCursor.otherNode());
+                    }
+                    if (nodePaths > 0) {
+                        callback.found(this, nodeId, level, nodePaths);
+                    }
+                }
+            }
+
+            level++;
+        }
+    }
+
+    /*
+     * The paths to a node on the current level, 0 if it isn't on it
+     */
+    private int paths(int nodeId) {
+        return this.paths != null ? this.paths[nodeId] : this.pathsMap.getOrDefault(nodeId, 0);
+    }
+
+    /*
+     * @return true if the node wasn't on the next level yet
+     */
+    private boolean addNextPaths(int nodeId, int nodePaths) {
+        if (this.nextPaths != null) {
+            final boolean added = this.nextPaths[nodeId] == 0;
+            this.nextPaths[nodeId] += nodePaths;
+            return added;
+        }
+        return this.nextPathsMap.addValue(nodeId, nodePaths, 0) == nodePaths;
+    }
+
+    private int nextPaths(int nodeId) {
+        return this.nextPaths != null ? this.nextPaths[nodeId] : this.nextPathsMap.getOrDefault(nodeId, 0);
+    }
+
+    /*
+     * The next level becomes the current one, and the old current one, cleared, the next
+     */
+    private void swapPaths(int[] frontier, int frontierSize) {
+        if (this.paths != null) {
+            for (int i = 0; i < frontierSize; i++) {
+                this.paths[frontier[i]] = 0;
+            }
+            final int[] swap = this.paths;
+            this.paths = this.nextPaths;
+            this.nextPaths = swap;
+        } else {
+            this.pathsMap = this.nextPathsMap;
+            this.nextPathsMap = this.state.next(this.pathsMap);
+        }
+    }
+
+    /*
+     * Bottom-up goes through every node, the first time the levels and visited set move to arrays indexed by node id
+     * @return the words of the visited bitmap
+     */
+    private long[] dense(int nodeCount) {
+        if (this.visited instanceof VisitedBits) {
+            return ((VisitedBits) this.visited).words;
+        }
+        final VisitedBits bits = new VisitedBits(nodeCount);
+        this.visited.addTo(bits);
+        this.visited = bits;
+        this.paths = new int[nodeCount];
+        this.nextPaths = new int[nodeCount];
+        final LongIntCursor cursor = this.pathsMap.cursor();
+        while (cursor.moveNext()) {
+            this.paths[(int) cursor.key()] = cursor.value();
+        }
+        this.pathsMap = null;
+        this.nextPathsMap = null;
+        return bits.words;
+    }
+
+    /*
+     * A bit per node, bottom-up skips the visited ones a word at a time
+     */
+    private static final class VisitedBits implements NodeSet {
+        private final long[] words;
+        private long size;
+
+        private VisitedBits(int nodeCount) {
+            this.words = new long[(nodeCount + 63) >>> 6];
+        }
+
+        public boolean contains(long nodeId) {
+            return (nodeId >>> 6) < this.words.length && (this.words[(int) (nodeId >>> 6)] & (1L << nodeId)) != 0;
+        }
+
+        public boolean add(long nodeId) {
+            final int word = (int) (nodeId >>> 6);
+            if ((this.words[word] & (1L << nodeId)) != 0) {
+                return false;
+            }
+            this.words[word] |= 1L << nodeId;
+            this.size++;
+            return true;
+        }
+
+        public void addAll(LongIntMap nodes) {
+            final LongCursor cursor = nodes.keySet().cursor();
+            while (cursor.moveNext()) {
+                add(cursor.elem());
+            }
+        }
+
+        public void addTo(NodeSet other) {
+            for (int word = 0; word < this.words.length; word++) {
+                long bits = this.words[word];
+                while (bits != 0) {
+                    other.add(((long) word << 6) | Long.numberOfTrailingZeros(bits));
+                    bits &= bits - 1;
+                }
+            }
+        }
+
+        public long size() {
+            return this.size;
+        }
+
+        public void clear() {
+            Arrays.fill(this.words, 0L);
+            this.size = 0;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.maxdemarzi.shortest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import net.openhft.koloboke.collect.map.hash.HashLongObjMap;
+import net.openhft.koloboke.collect.map.hash.HashLongObjMaps;
+import net.openhft.koloboke.collect.set.hash.HashLongSet;
+import net.openhft.koloboke.collect.set.hash.HashLongSets;
+
+/**
+ * The edge emails of a request that were found, with their node ids, in parallel arrays in the order the request
+ * has them. An email found more than once, or two emails of the same node, count once, the first time.
+ *
+ * Validators fills one in while it reads the request body, a batch of emails at a time, so a request with tens of
+ * thousands of edge emails never holds them all as strings, and has them resolved by the time the body is read.
+ */
+final class EdgeEmails {
+
+    private final HashLongSet seen = HashLongSets.newMutableSet();
+    private long[] nodeIds = new long[16];
+    private String[] emails = new String[16];
+    private int size;
+
+    /**
+     * @return the emails that were found, through the NodeCache, in a transaction
+     */
+    static EdgeEmails resolve(Collection<String> emails, NodeCache nodeCache) {
+        final EdgeEmails edgeEmails = new EdgeEmails();
+        edgeEmails.addAll(emails, nodeCache);
+        return edgeEmails;
+    }
+
+    /**
+     * Adds the emails that are found, looked up together, in a transaction
+     */
+    void addAll(Collection<String> emails, NodeCache nodeCache) {
+        final Map<String, Long> nodeIds = nodeCache.findEmailNodes(emails);
+        for (String email : emails) {
+            final Long nodeId = nodeIds.get(email);
+            if (nodeId != null) {
+                add(nodeId, email);
+            }
+        }
+    }
+
+    /**
+     * @return false if the node was added already
+     */
+    boolean add(long nodeId, String email) {
+        if (!this.seen.add(nodeId)) {
+            return false;
+        }
+        if (this.size == this.nodeIds.length) {
+            this.nodeIds = Arrays.copyOf(this.nodeIds, this.size * 2);
+            this.emails = Arrays.copyOf(this.emails, this.size * 2);
+        }
+        this.nodeIds[this.size] = nodeId;
+        this.emails[this.size] = email;
+        this.size++;
+        return true;
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    long nodeId(int i) {
+        return this.nodeIds[i];
+    }
+
+    String email(int i) {
+        return this.emails[i];
+    }
+
+    /**
+     * @return the node ids, in order
+     */
+    List<Long> nodeIds() {
+        final List<Long> nodeIds = new ArrayList<>(this.size);
+        for (int i = 0; i < this.size; i++) {
+            nodeIds.add(this.nodeIds[i]);
+        }
+        return nodeIds;
+    }
+
+    /**
+     * @return a new map of the emails by node id, for a search to take targets out of as it finds them
+     */
+    HashLongObjMap<String> byNodeId() {
+        final HashLongObjMap<String> byNodeId = HashLongObjMaps.newMutableMap(this.size);
+        for (int i = 0; i < this.size; i++) {
+            byNodeId.put(this.nodeIds[i], this.emails[i]);
+        }
+        return byNodeId;
+    }
+}
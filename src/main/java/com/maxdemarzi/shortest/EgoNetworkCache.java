@@ -0,0 +1,530 @@
+package com.maxdemarzi.shortest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+
+import net.openhft.koloboke.collect.LongCursor;
+import net.openhft.koloboke.collect.map.IntIntMap;
+import net.openhft.koloboke.collect.map.LongIntCursor;
+import net.openhft.koloboke.collect.map.hash.HashLongIntMap;
+import net.openhft.koloboke.collect.map.hash.HashLongIntMaps;
+import net.openhft.koloboke.collect.map.hash.HashLongLongMap;
+import net.openhft.koloboke.collect.map.hash.HashLongLongMaps;
+import net.openhft.koloboke.collect.map.hash.HashLongObjMap;
+import net.openhft.koloboke.collect.map.hash.HashLongObjMaps;
+import net.openhft.koloboke.collect.set.LongSet;
+import net.openhft.koloboke.collect.set.hash.HashLongSet;
+import net.openhft.koloboke.collect.set.hash.HashLongSets;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+import org.neo4j.kernel.GraphDatabaseAPI;
+import org.neo4j.kernel.api.cursor.NodeItem;
+
+/**
+ * Keeps the neighborhoods of the centers and edge emails that keep coming back, so their requests skip the first
+ * levels of the search:
+ *
+ *  - the first BFS levels around a center and its bibliography entries, with their path counts
+ *  - the forward Dijkstra around a center and its bibliography entries, frozen half way to max cost
+ *  - the relationships of an edge email, which the last BFS level reads
+ *
+ * A neighborhood is only kept once it was asked for twice, the cache is bounded by the (estimated) bytes its
+ * entries take and evicts the least recently used first.
+ *
+ * A TransactionEventHandler drops every entry that contains an end of a relationship created or deleted by a
+ * committed transaction, found through an index of the entries each node is in, so a commit costs the nodes it
+ * changed rather than the whole cache. An entry computed while a transaction committed is dropped too, as it may
+ * have seen part of it.
+ *
+ * Neighborhoods are computed within the budget of the request that asks for them, and aren't kept if it runs out.
+ */
+public final class EgoNetworkCache {
+
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+    public static final int DEFAULT_DEPTH = 2;
+
+    private static final int ADMIT_AFTER = 2;
+    private static final int MAX_TRACKED_REQUESTS = 100_000;
+    // an entry of the node index, an array slot and a hash slot
+    private static final int INDEX_BYTES = 32;
+
+    private static EgoNetworkCache instance = null;
+
+    public static synchronized EgoNetworkCache getInstance(GraphDatabaseService db) {
+        if (instance == null || instance.db != db) {
+            if (instance != null) {
+                instance.stop();
+            }
+            instance = new EgoNetworkCache((GraphDatabaseAPI) db, DEFAULT_MAX_BYTES, DEFAULT_DEPTH);
+        }
+        return instance;
+    }
+
+    /**
+     * Replaces the cache with an empty one of the given size, 0 bytes turns it off
+     */
+    public static synchronized EgoNetworkCache configure(GraphDatabaseService db, long maxBytes, int depth) {
+        if (instance != null) {
+            instance.stop();
+        }
+        instance = new EgoNetworkCache((GraphDatabaseAPI) db, maxBytes, depth);
+        return instance;
+    }
+
+    /*
+     * Something the cache keeps, with a rough idea of its size and of the nodes whose relationships it depends on
+     */
+    private static abstract class Neighborhood {
+        // set once it is kept
+        private List<Object> key;
+        private long[] nodes;
+
+        abstract long bytes();
+        abstract long[] nodes();
+    }
+
+    /**
+     * The first levels of a BFS, level 0 is the center, level 1 has the bibliography entries
+     */
+    public static final class Levels extends Neighborhood {
+        private final List<HashLongIntMap> levels;
+
+        private Levels(List<HashLongIntMap> levels) {
+            this.levels = levels;
+        }
+
+        /**
+         * @return the deepest level kept
+         */
+        public int depth() {
+            return this.levels.size() - 1;
+        }
+
+        /**
+         * @return the number of shortest paths to each node on the level, shared, not to be modified
+         */
+        public HashLongIntMap level(int level) {
+            return this.levels.get(level);
+        }
+
+        long bytes() {
+            long bytes = 64;
+            for (HashLongIntMap level : this.levels) {
+                bytes += 48 + level.size() * 24L;
+            }
+            return bytes;
+        }
+
+        long[] nodes() {
+            int size = 0;
+            for (HashLongIntMap level : this.levels) {
+                size += level.size();
+            }
+            final long[] nodes = new long[size];
+            int i = 0;
+            for (HashLongIntMap level : this.levels) {
+                final LongCursor cursor = level.keySet().cursor();
+                while (cursor.moveNext()) {
+                    nodes[i++] = cursor.elem();
+                }
+            }
+            return nodes;
+        }
+    }
+
+    /**
+     * A forward Dijkstra that was stopped at a cost frontier, with every node it explored
+     */
+    public static final class Forward extends Neighborhood {
+        private final Dijkstra search;
+        private final int frontier;
+        private final HashLongLongMap explored;
+
+        private Forward(Dijkstra search, int frontier, HashLongLongMap explored) {
+            this.search = search;
+            this.frontier = frontier;
+            this.explored = explored;
+        }
+
+        /**
+         * @return the frozen search, only to be read from
+         */
+        Dijkstra search() {
+            return this.search;
+        }
+
+        public int frontier() {
+            return this.frontier;
+        }
+
+        /**
+         * @return the cost and paths packed the way Dijkstra packs them, 0 if the node wasn't explored
+         */
+        public long explored(long nodeId) {
+            return this.explored.get(nodeId);
+        }
+
+        long bytes() {
+            return 128 + this.search.visited() * 32 + this.explored.size() * 32L;
+        }
+
+        long[] nodes() {
+            // the search forgets the dead ends it explored, a relationship added to one changes what it found too
+            final HashLongSet nodes = HashLongSets.newMutableSet(this.explored.keySet());
+            for (long nodeId : this.search.seen()) {
+                nodes.add(nodeId);
+            }
+            return nodes.toLongArray();
+        }
+    }
+
+    private static final class Neighbors extends Neighborhood {
+        private final long nodeId;
+        private final long[] neighbors;
+
+        private Neighbors(long nodeId, long[] neighbors) {
+            this.nodeId = nodeId;
+            this.neighbors = neighbors;
+        }
+
+        long bytes() {
+            return 32 + this.neighbors.length * 8L;
+        }
+
+        long[] nodes() {
+            return new long[]{this.nodeId};
+        }
+    }
+
+    private final GraphDatabaseAPI db;
+    private final boolean enabled;
+    private final int depth;
+    private final Cache<List<Object>, Neighborhood> neighborhoods;
+    private final Cache<List<Object>, AtomicInteger> requests;
+    // The neighborhood, or set of them, each node is in
+    private final HashLongObjMap<Object> index;
+    private final TransactionEventHandler<LongSet> invalidator;
+    // Counts the commits seen by the invalidator, to tell whether one happened while an entry was computed
+    private final AtomicLong commits;
+
+    private EgoNetworkCache(GraphDatabaseAPI db, long maxBytes, int depth) {
+        this.db = db;
+        this.enabled = maxBytes > 0 && depth > 0;
+        this.depth = depth;
+        this.commits = new AtomicLong();
+        this.index = HashLongObjMaps.newMutableMap();
+        this.neighborhoods = CacheBuilder.newBuilder()
+            .maximumWeight(Math.max(maxBytes, 0))
+            .weigher(new Weigher<List<Object>, Neighborhood>() {
+                public int weigh(List<Object> key, Neighborhood neighborhood) {
+                    return (int) Math.min(Integer.MAX_VALUE, neighborhood.bytes() + neighborhood.nodes.length * (long) INDEX_BYTES);
+                }
+            })
+            .removalListener(new RemovalListener<List<Object>, Neighborhood>() {
+                public void onRemoval(RemovalNotification<List<Object>, Neighborhood> notification) {
+                    unindex(notification.getValue());
+                }
+            })
+            .build();
+        this.requests = CacheBuilder.newBuilder()
+            .maximumSize(MAX_TRACKED_REQUESTS)
+            .build();
+
+        this.invalidator = new TransactionEventHandler<LongSet>() {
+            public LongSet beforeCommit(TransactionData data) throws Exception {
+                final LongSet nodeIds = HashLongSets.newMutableSet();
+                for (Relationship relationship : data.createdRelationships()) {
+                    nodeIds.add(relationship.getStartNode().getId());
+                    nodeIds.add(relationship.getEndNode().getId());
+                }
+                for (Relationship relationship : data.deletedRelationships()) {
+                    try {
+                        nodeIds.add(relationship.getStartNode().getId());
+                        nodeIds.add(relationship.getEndNode().getId());
+                    } catch (RuntimeException e) {
+                        // the ends of a deleted relationship can't always be read, forget everything
+                        return null;
+                    }
+                }
+                return nodeIds;
+            }
+
+            public void afterCommit(TransactionData data, LongSet nodeIds) {
+                commits.incrementAndGet();
+                invalidate(nodeIds);
+            }
+
+            public void afterRollback(TransactionData data, LongSet nodeIds) {
+            }
+        };
+        if (this.enabled) {
+            db.registerTransactionEventHandler(this.invalidator);
+        }
+    }
+
+    public void stop() {
+        if (this.enabled) {
+            try {
+                this.db.unregisterTransactionEventHandler(this.invalidator);
+            } catch (IllegalStateException e) {
+                // the database was shut down, which dropped the handler already
+            }
+        }
+        this.neighborhoods.invalidateAll();
+    }
+
+    public int depth() {
+        return this.depth;
+    }
+
+    public long size() {
+        return this.neighborhoods.size();
+    }
+
+    /**
+     * @param nodeIds: the nodes whose relationships changed, null for all of them
+     */
+    void invalidate(LongSet nodeIds) {
+        if (nodeIds == null) {
+            this.neighborhoods.invalidateAll();
+            return;
+        }
+        if (nodeIds.isEmpty()) {
+            return;
+        }
+        final List<Neighborhood> stale = new ArrayList<>();
+        synchronized (this.index) {
+            final LongCursor nodeCursor = nodeIds.cursor();
+            while (nodeCursor.moveNext()) {
+                final Object indexed = this.index.get(nodeCursor.elem());
+                if (indexed instanceof Neighborhood) {
+                    stale.add((Neighborhood) indexed);
+                } else if (indexed != null) {
+                    stale.addAll(neighborhoods(indexed));
+                }
+            }
+        }
+        // the removal listener takes them out of the index
+        for (Neighborhood neighborhood : stale) {
+            this.neighborhoods.asMap().remove(neighborhood.key, neighborhood);
+        }
+    }
+
+    private void index(Neighborhood neighborhood) {
+        synchronized (this.index) {
+            for (long nodeId : neighborhood.nodes) {
+                final Object indexed = this.index.get(nodeId);
+                if (indexed == null) {
+                    this.index.put(nodeId, neighborhood);
+                } else if (indexed instanceof Neighborhood) {
+                    final Set<Neighborhood> several = new HashSet<>();
+                    several.add((Neighborhood) indexed);
+                    several.add(neighborhood);
+                    this.index.put(nodeId, several);
+                } else {
+                    neighborhoods(indexed).add(neighborhood);
+                }
+            }
+        }
+    }
+
+    private void unindex(Neighborhood neighborhood) {
+        synchronized (this.index) {
+            for (long nodeId : neighborhood.nodes) {
+                final Object indexed = this.index.get(nodeId);
+                if (indexed == neighborhood) {
+                    this.index.remove(nodeId);
+                } else if (indexed instanceof Set) {
+                    final Set<Neighborhood> several = neighborhoods(indexed);
+                    several.remove(neighborhood);
+                    if (several.size() == 1) {
+                        this.index.put(nodeId, several.iterator().next());
+                    }
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Set<Neighborhood> neighborhoods(Object indexed) {
+        return (Set<Neighborhood>) indexed;
+    }
+
+    /**
+     * @param maxLength: the request's, the last level is never read from the cache so at most maxLength - 1 are kept
+     * @param budget: the request's, spent on computing the levels
+     * @return the first depth() levels of the BFS from the center, or null if the center isn't asked for often enough
+     * yet, or the budget ran out computing them
+     */
+    public Levels levels(long centerNodeId, Collection<Long> bibliographyNodeIds, int maxLength, Adjacency adjacency, Budget budget) {
+        final int depth = Math.min(this.depth, maxLength - 1);
+        if (depth < 1) {
+            return null;
+        }
+        final List<Object> key = Arrays.<Object>asList("levels", centerNodeId, sorted(bibliographyNodeIds), depth);
+        final Neighborhood cached = cached(key);
+        if (cached != null || !admit(key)) {
+            return (Levels) cached;
+        }
+
+        final long commits = this.commits.get();
+        final List<HashLongIntMap> levels = new ArrayList<>();
+        levels.add(HashLongIntMaps.newImmutableMapOf(centerNodeId, 1));
+        final LongSet seen = HashLongSets.newMutableSet();
+        seen.add(centerNodeId);
+        long expanded = 0;
+        long relationships = 0;
+        long peakFrontier = 1;
+        try {
+            for (int level = 1; level <= depth; level++) {
+                final HashLongIntMap next = HashLongIntMaps.newMutableMap();
+                final LongIntCursor longIntCursor = levels.get(level - 1).cursor();
+                while (longIntCursor.moveNext()) {
+                    if (!budget.check(++expanded, seen.size() + next.size())) {
+                        return null;
+                    }
+                    final AdjacencyCursor relationshipCursor = adjacency.relationships(longIntCursor.key());
+                    while (relationshipCursor.next()) {
+                        relationships++;
+                        final long otherId = relationshipCursor.otherNode();
+                        if (!seen.contains(otherId)) {
+                            next.addValue(otherId, longIntCursor.value(), 0);
+                        }
+                    }
+                }
+                if (level == 1) {
+                    // Pretend there are length 1 paths to the bibliography entries
+                    for (Long bibId : bibliographyNodeIds) {
+                        if (!seen.contains(bibId.longValue())) {
+                            next.putIfAbsent(bibId.longValue(), 1);
+                        }
+                    }
+                }
+                seen.addAll(next.keySet());
+                peakFrontier = Math.max(peakFrontier, next.size());
+                levels.add(HashLongIntMaps.newImmutableMap(next));
+            }
+        } finally {
+            budget.spent(expanded, relationships, peakFrontier, seen.size());
+        }
+        return (Levels) keep(key, new Levels(levels), commits);
+    }
+
+    /**
+     * @param budget: the request's, spent on running the search
+     * @return the forward search from the start nodes, run the way ParallelDijkstra runs it and frozen,
+     * or null if the start nodes aren't asked for often enough yet, or the budget ran out running it
+     */
+    public Forward forward(Map<Long, Integer> startNodes, IntIntMap relationshipCosts, int maxCost, Adjacency adjacency, Budget budget) {
+        final List<Object> key = Arrays.<Object>asList("forward", HashLongIntMaps.newImmutableMap(startNodes), relationshipCosts, maxCost);
+        final Neighborhood cached = cached(key);
+        if (cached != null || !admit(key)) {
+            return (Forward) cached;
+        }
+
+        final long commits = this.commits.get();
+        final HashLongLongMap explored = HashLongLongMaps.newMutableMap();
+        final Dijkstra search = new Dijkstra(adjacency, relationshipCosts, startNodes, maxCost, new Traversal.NodeCallback() {
+            public void explored(Traversal traversal, NodeItem node, long nodeId, int cost, int paths) {
+                explored.put(nodeId, Dijkstra.costPaths(cost, paths));
+            }
+        });
+        int maxStartCost = 0;
+        for (Integer cost : startNodes.values()) {
+            maxStartCost = Math.max(maxStartCost, cost.intValue());
+        }
+        long steps = 0;
+        try {
+            while (!search.isFinished() && ParallelDijkstra.keepGoing(search, maxStartCost, maxCost)) {
+                if (!budget.check(++steps, search.visited())) {
+                    return null;
+                }
+                search.step();
+            }
+        } finally {
+            budget.spent(steps, search.relationships(), search.peakFrontier(), search.visited());
+        }
+        return (Forward) keep(key, new Forward(search.frozen(), search.peekCost(), explored), commits);
+    }
+
+    /**
+     * @return the other ends of the node's relationships, or null if the node isn't asked for often enough yet
+     */
+    public long[] neighbors(long nodeId, Adjacency adjacency) {
+        final List<Object> key = Arrays.<Object>asList("neighbors", nodeId);
+        final Neighborhood cached = cached(key);
+        if (cached != null || !admit(key)) {
+            return cached == null ? null : ((Neighbors) cached).neighbors;
+        }
+
+        final long commits = this.commits.get();
+        long[] neighbors = new long[16];
+        int degree = 0;
+        final AdjacencyCursor relationshipCursor = adjacency.relationships(nodeId);
+        while (relationshipCursor.next()) {
+            if (degree == neighbors.length) {
+                neighbors = Arrays.copyOf(neighbors, degree * 2);
+            }
+            neighbors[degree++] = relationshipCursor.otherNode();
+        }
+        return ((Neighbors) keep(key, new Neighbors(nodeId, Arrays.copyOf(neighbors, degree)), commits)).neighbors;
+    }
+
+    private Neighborhood cached(List<Object> key) {
+        return this.enabled ? this.neighborhoods.getIfPresent(key) : null;
+    }
+
+    /*
+     * Counts the request, only neighborhoods asked for more than once are worth keeping
+     */
+    private boolean admit(List<Object> key) {
+        if (!this.enabled) {
+            return false;
+        }
+        AtomicInteger count = this.requests.getIfPresent(key);
+        if (count == null) {
+            count = this.requests.asMap().putIfAbsent(key, new AtomicInteger(1));
+            return count != null && count.incrementAndGet() >= ADMIT_AFTER;
+        }
+        return count.incrementAndGet() >= ADMIT_AFTER;
+    }
+
+    /*
+     * Returns the neighborhood either way, it is only kept if nothing was committed while it was computed
+     */
+    private Neighborhood keep(List<Object> key, Neighborhood neighborhood, long commits) {
+        neighborhood.key = key;
+        neighborhood.nodes = neighborhood.nodes();
+        // indexed before it can be found, so a commit can't miss it
+        index(neighborhood);
+        this.neighborhoods.put(key, neighborhood);
+        // A commit that lands after the put was already invalidated with it, one before was missed
+        if (this.commits.get() != commits) {
+            this.neighborhoods.invalidate(key);
+        }
+        return neighborhood;
+    }
+
+    private static List<Long> sorted(Collection<Long> nodeIds) {
+        final List<Long> sorted = new ArrayList<>(nodeIds);
+        Collections.sort(sorted);
+        return sorted;
+    }
+}
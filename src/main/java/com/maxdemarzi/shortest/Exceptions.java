@@ -25,11 +25,17 @@ public class Exceptions extends WebApplicationException {
     public static Exceptions missingEdgeEmailsParameter = new Exceptions(400, "Missing edge_email Parameter.");
     public static Exceptions invalidEdgeEmailsParameter = new Exceptions(400, "Invalid edge_email Parameter.");
 
+    public static Exceptions missingCentersParameter = new Exceptions(400, "Missing centers Parameter.");
+    public static Exceptions invalidCentersParameter = new Exceptions(400, "Invalid centers Parameter.");
+
     public static Exceptions missingLengthParameter = new Exceptions(400, "Missing length Parameter.");
     public static Exceptions invalidLengthParameter = new Exceptions(400, "Invalid length Parameter.");
 
     public static Exceptions missingCostParameter = new Exceptions(400, "Missing max_cost Parameter.");
     public static Exceptions invalidCostParameter = new Exceptions(400, "Invalid max_cost Parameter.");
+    public static Exceptions invalidEdgeCostsParameter = new Exceptions(400, "Invalid edge_costs Parameter.");
+
+    public static Exceptions invalidBudgetParameter = new Exceptions(400, "Invalid budget Parameter.");
 
     public static Exceptions timedOut = new Exceptions(420, "Timed out.");
 
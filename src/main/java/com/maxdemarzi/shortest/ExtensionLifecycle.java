@@ -0,0 +1,97 @@
+package com.maxdemarzi.shortest;
+
+import java.util.Collection;
+import java.util.Collections;
+
+import org.apache.commons.configuration.Configuration;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.server.plugins.Injectable;
+import org.neo4j.server.plugins.PluginLifecycle;
+
+/**
+ * Started by the server together with the extension, reads our settings from the server configuration:
+ *
+ *  com.maxdemarzi.shortest.adjacency: "kernel" (default), "snapshot" to build an in-memory copy of the
+ *  relationships at startup and serve requests from it, or "mapped" to do the same with a copy persisted next to
+ *  the store, which is reused on restart if nothing was committed since it was written
+ *
+ *  com.maxdemarzi.shortest.budget.time_ms, com.maxdemarzi.shortest.budget.max_expanded and
+ *  com.maxdemarzi.shortest.budget.max_visited: how much a request may search unless it asks otherwise, 0 (default)
+ *  for no limit
+ *
+ *  com.maxdemarzi.shortest.budget.on_exhausted: "partial" (default) to return what was found so far with a
+ *  truncation marker when a request runs out of budget, or "fail" to answer with Exceptions.timedOut
+ *
+ *  com.maxdemarzi.shortest.ego_cache.bytes: roughly how much memory the neighborhoods of hot centers and edge
+ *  emails may take, 64MB by default, 0 turns the cache off
+ *
+ *  com.maxdemarzi.shortest.ego_cache.depth: how many BFS levels around a center are kept, 2 by default
+ *
+ *  com.maxdemarzi.shortest.node_index: "cache" (default) to find nodes through the label indexes, caching the
+ *  most recent, or "offheap" to load every email and bibliography entry id into an off-heap table at startup
+ *
+ *  com.maxdemarzi.shortest.planner.weights: what reading a relationship costs each engine /query_either picks
+ *  from, as engine:weight pairs, "bfs:1,bidirectional_bfs:1,dijkstra:2,builtin:4" by default
+ *
+ *  com.maxdemarzi.shortest.output.flush_rows and com.maxdemarzi.shortest.output.flush_ms: how many results an
+ *  NDJSON or binary response holds back, or for how long, before sending them, 1000 and 100 by default
+ */
+public class ExtensionLifecycle implements PluginLifecycle {
+
+    public static final String ADJACENCY_SETTING = "com.maxdemarzi.shortest.adjacency";
+    public static final String ADJACENCY_MAX_STALE_MS_SETTING = "com.maxdemarzi.shortest.adjacency.max_stale_ms";
+    public static final String BUDGET_TIME_SETTING = "com.maxdemarzi.shortest.budget.time_ms";
+    public static final String BUDGET_EXPANDED_SETTING = "com.maxdemarzi.shortest.budget.max_expanded";
+    public static final String BUDGET_VISITED_SETTING = "com.maxdemarzi.shortest.budget.max_visited";
+    public static final String BUDGET_EXHAUSTED_SETTING = "com.maxdemarzi.shortest.budget.on_exhausted";
+    public static final String EGO_CACHE_BYTES_SETTING = "com.maxdemarzi.shortest.ego_cache.bytes";
+    public static final String EGO_CACHE_DEPTH_SETTING = "com.maxdemarzi.shortest.ego_cache.depth";
+    public static final String NODE_INDEX_SETTING = "com.maxdemarzi.shortest.node_index";
+    public static final String NODE_INDEX_CACHE = "cache";
+    public static final String NODE_INDEX_OFFHEAP = "offheap";
+    public static final String PLANNER_WEIGHTS_SETTING = "com.maxdemarzi.shortest.planner.weights";
+    public static final String OUTPUT_FLUSH_ROWS_SETTING = "com.maxdemarzi.shortest.output.flush_rows";
+    public static final String OUTPUT_FLUSH_MS_SETTING = "com.maxdemarzi.shortest.output.flush_ms";
+
+    private AdjacencyProvider adjacencyProvider;
+    private EgoNetworkCache egoNetworkCache;
+    private NodeCache nodeCache;
+
+    public Collection<Injectable<?>> start(GraphDatabaseService db, Configuration config) {
+        Budget.setDefaults(config.getLong(BUDGET_TIME_SETTING, 0L), config.getLong(BUDGET_EXPANDED_SETTING, 0L),
+            config.getLong(BUDGET_VISITED_SETTING, 0L), config.getString(BUDGET_EXHAUSTED_SETTING, Budget.PARTIAL));
+        egoNetworkCache = EgoNetworkCache.configure(db, config.getLong(EGO_CACHE_BYTES_SETTING, EgoNetworkCache.DEFAULT_MAX_BYTES),
+            config.getInt(EGO_CACHE_DEPTH_SETTING, EgoNetworkCache.DEFAULT_DEPTH));
+        if (NODE_INDEX_OFFHEAP.equals(config.getString(NODE_INDEX_SETTING, NODE_INDEX_CACHE))) {
+            nodeCache = NodeCache.getInstance(db);
+            nodeCache.useIndex(NodeIndex.start(db));
+        }
+        Planner.setWeights(config.getString(PLANNER_WEIGHTS_SETTING, Planner.DEFAULT_WEIGHTS));
+        ResultWriter.setFlushPolicy(config.getInt(OUTPUT_FLUSH_ROWS_SETTING, ResultWriter.DEFAULT_FLUSH_ROWS),
+            config.getLong(OUTPUT_FLUSH_MS_SETTING, ResultWriter.DEFAULT_FLUSH_MILLIS));
+
+        String mode = config.getString(ADJACENCY_SETTING, AdjacencyProvider.KERNEL);
+        adjacencyProvider = AdjacencyProvider.getInstance(db);
+        adjacencyProvider.setDefaultMode(mode);
+        adjacencyProvider.setMaxStaleMillis(config.getLong(ADJACENCY_MAX_STALE_MS_SETTING, AdjacencyProvider.DEFAULT_MAX_STALE_MILLIS));
+        if (AdjacencyProvider.MAPPED.equals(mode) && adjacencyProvider.load()) {
+            return Collections.emptyList();
+        }
+        if (!AdjacencyProvider.KERNEL.equals(adjacencyProvider.getDefaultMode())) {
+            adjacencyProvider.refreshInBackground(adjacencyProvider.getDefaultMode());
+        }
+        return Collections.emptyList();
+    }
+
+    public void stop() {
+        if (adjacencyProvider != null) {
+            adjacencyProvider.stop();
+        }
+        if (egoNetworkCache != null) {
+            egoNetworkCache.stop();
+        }
+        if (nodeCache != null) {
+            nodeCache.useIndex(null);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.maxdemarzi.shortest;
+
+import java.util.Arrays;
+
+/**
+ * A binary heap for cost ranges too wide for a bucket per cost.
+ *
+ * Entries live in two parallel primitive arrays instead of a Step object each, node ids can use up to 35 bits and
+ * costs a full int, so they don't fit packed together in a single long.
+ */
+public final class HeapCostQueue implements CostQueue {
+
+    private long[] nodeIds = new long[64];
+    private int[] costs = new int[64];
+    private int size = 0;
+
+    public void offer(long nodeId, int cost) {
+        if (this.size == this.nodeIds.length) {
+            this.nodeIds = Arrays.copyOf(this.nodeIds, this.size * 2);
+            this.costs = Arrays.copyOf(this.costs, this.size * 2);
+        }
+        // sift up
+        int index = this.size++;
+        while (index > 0) {
+            final int parent = (index - 1) >>> 1;
+            if (this.costs[parent] <= cost) {
+                break;
+            }
+            this.nodeIds[index] = this.nodeIds[parent];
+            this.costs[index] = this.costs[parent];
+            index = parent;
+        }
+        this.nodeIds[index] = nodeId;
+        this.costs[index] = cost;
+    }
+
+    public long poll() {
+        final long result = this.nodeIds[0];
+        final int last = --this.size;
+        final long nodeId = this.nodeIds[last];
+        final int cost = this.costs[last];
+
+        // sift the last entry down from the root
+        int index = 0;
+        final int half = last >>> 1;
+        while (index < half) {
+            int child = 2 * index + 1;
+            if (child + 1 < last && this.costs[child + 1] < this.costs[child]) {
+                child++;
+            }
+            if (cost <= this.costs[child]) {
+                break;
+            }
+            this.nodeIds[index] = this.nodeIds[child];
+            this.costs[index] = this.costs[child];
+            index = child;
+        }
+        this.nodeIds[index] = nodeId;
+        this.costs[index] = cost;
+        return result;
+    }
+
+    public int peekCost() {
+        return this.costs[0];
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+}
@@ -0,0 +1,94 @@
+package com.maxdemarzi.shortest;
+
+import org.neo4j.cursor.Cursor;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.kernel.api.ReadOperations;
+import org.neo4j.kernel.api.cursor.NodeItem;
+import org.neo4j.kernel.api.cursor.RelationshipItem;
+
+/**
+ * Reads relationships through the kernel cursors of the current transaction
+ */
+public final class KernelAdjacency implements Adjacency, AdjacencyCursor {
+
+    private final ReadOperations readOps;
+
+    private Cursor<NodeItem> nodeCursor;
+    private Cursor<RelationshipItem> relationshipCursor;
+    private RelationshipItem relationship;
+    private long nodeId;
+
+    public KernelAdjacency(ReadOperations readOps) {
+        this.readOps = readOps;
+    }
+
+    public AdjacencyCursor relationships(long nodeId) {
+        close();
+        this.nodeId = nodeId;
+        this.nodeCursor = this.readOps.nodeCursor(nodeId);
+        if (this.nodeCursor.next()) {
+            this.relationshipCursor = this.nodeCursor.get().relationships(Direction.BOTH);
+        }
+        return this;
+    }
+
+    /*
+     * A dense node keeps a chain of relationships per type along with how many it holds, so the chains of other
+     * types aren't read at all, and a node with none of the types is done without reading a relationship.
+     * Any other node keeps all its relationships in one chain, which is read through and filtered by type.
+     */
+    public AdjacencyCursor relationships(long nodeId, int[] types) {
+        close();
+        this.nodeId = nodeId;
+        this.nodeCursor = this.readOps.nodeCursor(nodeId);
+        if (types.length > 0 && this.nodeCursor.next()) {
+            final NodeItem node = this.nodeCursor.get();
+            if (!node.isDense() || degree(node, types) > 0) {
+                this.relationshipCursor = node.relationships(Direction.BOTH, types);
+            }
+        }
+        return this;
+    }
+
+    private static int degree(NodeItem node, int[] types) {
+        int degree = 0;
+        for (int type : types) {
+            degree += node.degree(Direction.BOTH, type);
+        }
+        return degree;
+    }
+
+    public int degree(long nodeId) {
+        try (Cursor<NodeItem> cursor = this.readOps.nodeCursor(nodeId)) {
+            return cursor.next() ? cursor.get().degree(Direction.BOTH) : 0;
+        }
+    }
+
+    public boolean next() {
+        if (this.relationshipCursor != null && this.relationshipCursor.next()) {
+            this.relationship = this.relationshipCursor.get();
+            return true;
+        }
+        return false;
+    }
+
+    public long otherNode() {
+        return this.relationship.otherNode(this.nodeId);
+    }
+
+    public int type() {
+        return this.relationship.type();
+    }
+
+    private void close() {
+        if (this.relationshipCursor != null) {
+            this.relationshipCursor.close();
+            this.relationshipCursor = null;
+        }
+        if (this.nodeCursor != null) {
+            this.nodeCursor.close();
+            this.nodeCursor = null;
+        }
+        this.relationship = null;
+    }
+}
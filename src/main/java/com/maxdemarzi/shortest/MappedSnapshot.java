@@ -0,0 +1,302 @@
+package com.maxdemarzi.shortest;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * An adjacency snapshot persisted next to the store and memory mapped, so a restarted server can serve from it
+ * straight away, reading neighbors off-heap without copying them.
+ *
+ * File layout, all fixed width fields big endian:
+ *
+ *  magic | format version | store random id | last committed tx id | node count | record offsets | records
+ *   int  |      int       |      long       |        long          |    int     | int * (n + 1)  |
+ *
+ * The record of a node starts with its degree, followed by a (neighbor delta, relationship type) pair for every
+ * relationship, all as unsigned varints. Neighbors are sorted, so the delta to the previous neighbor
+ * (the first one is relative to 0) is usually small and fits in a byte or two.
+ *
+ * A single mapping is limited to 2GB, a bigger graph can't be persisted this way.
+ */
+public final class MappedSnapshot implements AdjacencySnapshot {
+
+    public static final String FILE_NAME = "shortest-paths.adjacency";
+
+    private static final int MAGIC = 0x4e465350; // NFSP
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 4;
+
+    private final ByteBuffer buffer;
+    private final long storeId;
+    private final long lastTxId;
+    private final int nodeCount;
+    private final int recordsStart;
+    private final long relationshipEntries;
+
+    /*
+     * Checks the whole file against its header and offsets, so reads never run off a record or the mapping
+     */
+    private MappedSnapshot(ByteBuffer buffer) {
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_VERSION) {
+            throw new IllegalStateException("Not an adjacency snapshot of this version");
+        }
+        this.storeId = buffer.getLong(8);
+        this.lastTxId = buffer.getLong(16);
+        this.nodeCount = buffer.getInt(24);
+        final long recordsStart = HEADER_SIZE + (this.nodeCount + 1L) * 4;
+        if (this.nodeCount < 0 || recordsStart > buffer.capacity()) {
+            throw new IllegalStateException("Truncated adjacency snapshot, " + this.nodeCount + " nodes don't fit in " + buffer.capacity() + " bytes");
+        }
+        this.recordsStart = (int) recordsStart;
+        if (buffer.getInt(HEADER_SIZE) != 0 || this.recordsStart + (long) buffer.getInt(HEADER_SIZE + this.nodeCount * 4) != buffer.capacity()) {
+            throw new IllegalStateException("Corrupt adjacency snapshot, its records don't end where the file does");
+        }
+
+        // Not in the header, every record starts with its degree
+        long relationshipEntries = 0;
+        for (int nodeId = 0; nodeId < this.nodeCount; nodeId++) {
+            relationshipEntries += validRecord(nodeId);
+        }
+        this.relationshipEntries = relationshipEntries;
+    }
+
+    /*
+     * @return the degree of the node, once its record was read to its end, which must be where the next one starts
+     */
+    private int validRecord(int nodeId) {
+        final int start = recordOffset(nodeId);
+        final int end = recordOffset(nodeId + 1);
+        if (end < start) {
+            throw new IllegalStateException("Corrupt adjacency snapshot, the record of node " + nodeId + " ends before it starts");
+        }
+        final int[] position = {start};
+        final int degree = validVarint(position, end);
+        long otherNode = 0;
+        for (int i = 0; i < degree; i++) {
+            otherNode += validVarint(position, end);
+            validVarint(position, end);
+        }
+        if (degree < 0 || otherNode >= Integer.MAX_VALUE || position[0] != end) {
+            throw new IllegalStateException("Corrupt adjacency snapshot, the record of node " + nodeId + " doesn't match its offsets");
+        }
+        return degree;
+    }
+
+    private int validVarint(int[] position, int end) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (position[0] >= end) {
+                throw new IllegalStateException("Corrupt adjacency snapshot, a record runs past its end");
+            }
+            final byte b = this.buffer.get(position[0]++);
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalStateException("Corrupt adjacency snapshot, a number runs past 5 bytes");
+    }
+
+    public long storeId() {
+        return storeId;
+    }
+
+    public long lastTxId() {
+        return lastTxId;
+    }
+
+    public int nodeCount() {
+        return nodeCount;
+    }
+
+    public long relationshipEntries() {
+        return relationshipEntries;
+    }
+
+    public Adjacency adjacency() {
+        return new View();
+    }
+
+    private int recordOffset(int nodeId) {
+        return recordsStart + buffer.getInt(HEADER_SIZE + nodeId * 4);
+    }
+
+    private final class View implements Adjacency, AdjacencyCursor {
+        private int position;
+        private int remaining;
+        private long otherNode;
+        private int type;
+        private int[] onlyTypes;
+
+        public AdjacencyCursor relationships(long nodeId) {
+            this.otherNode = 0;
+            if (nodeId >= 0 && nodeId < nodeCount) {
+                this.position = recordOffset((int) nodeId);
+                this.remaining = readVarint();
+            } else {
+                this.remaining = 0;
+            }
+            this.onlyTypes = null;
+            return this;
+        }
+
+        public AdjacencyCursor relationships(long nodeId, int[] types) {
+            relationships(nodeId);
+            this.onlyTypes = types;
+            return this;
+        }
+
+        public int degree(long nodeId) {
+            if (nodeId >= 0 && nodeId < nodeCount) {
+                // leaves the cursor where it was, a search reads degrees while it iterates
+                final int position = this.position;
+                this.position = recordOffset((int) nodeId);
+                final int degree = readVarint();
+                this.position = position;
+                return degree;
+            }
+            return 0;
+        }
+
+        public boolean next() {
+            while (this.remaining > 0) {
+                this.remaining--;
+                this.otherNode += readVarint();
+                this.type = readVarint();
+                if (this.onlyTypes == null || CsrSnapshot.listed(this.onlyTypes, this.type)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public long otherNode() {
+            return this.otherNode;
+        }
+
+        public int type() {
+            return this.type;
+        }
+
+        private int readVarint() {
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buffer.get(this.position++);
+                value |= (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            return value;
+        }
+    }
+
+    /**
+     * Maps an existing snapshot file, after checking every record of it
+     * @throws IllegalStateException if the file is not a snapshot in the current format, or is truncated or corrupt
+     */
+    public static MappedSnapshot open(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new MappedSnapshot(buffer);
+        }
+    }
+
+    /**
+     * Encodes the snapshot into the file, replacing it atomically, and maps the result
+     */
+    public static MappedSnapshot write(AdjacencySnapshot snapshot, long storeId, File file) throws IOException {
+        final File tmp = new File(file.getPath() + ".tmp");
+        final int nodeCount = snapshot.nodeCount();
+        final int[] recordOffsets = new int[nodeCount + 1];
+        final int recordsStart = HEADER_SIZE + (nodeCount + 1) * 4;
+
+        try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            final ByteBuffer out = ByteBuffer.allocate(1 << 16).order(ByteOrder.BIG_ENDIAN);
+            channel.position(recordsStart);
+
+            // (neighbor << 16 | type) sorts relationships by neighbor, keeping the type alongside
+            final Adjacency adjacency = snapshot.adjacency();
+            long[] relationships = new long[16];
+            long written = 0;
+            for (int nodeId = 0; nodeId < nodeCount; nodeId++) {
+                recordOffsets[nodeId] = (int) written;
+
+                int degree = 0;
+                final AdjacencyCursor cursor = adjacency.relationships(nodeId);
+                while (cursor.next()) {
+                    if (degree == relationships.length) {
+                        relationships = Arrays.copyOf(relationships, degree * 2);
+                    }
+                    relationships[degree++] = (cursor.otherNode() << 16) | cursor.type();
+                }
+                Arrays.sort(relationships, 0, degree);
+
+                written += writeVarint(channel, out, degree);
+                long previous = 0;
+                for (int i = 0; i < degree; i++) {
+                    final long otherNode = relationships[i] >>> 16;
+                    written += writeVarint(channel, out, (int) (otherNode - previous));
+                    written += writeVarint(channel, out, (int) (relationships[i] & 0xffff));
+                    previous = otherNode;
+                }
+                if (recordsStart + written > Integer.MAX_VALUE) {
+                    throw new IllegalStateException("Too many relationships for a mapped snapshot");
+                }
+            }
+            recordOffsets[nodeCount] = (int) written;
+            flush(channel, out);
+
+            final ByteBuffer header = ByteBuffer.allocate(recordsStart).order(ByteOrder.BIG_ENDIAN);
+            header.putInt(MAGIC);
+            header.putInt(FORMAT_VERSION);
+            header.putLong(storeId);
+            header.putLong(snapshot.lastTxId());
+            header.putInt(nodeCount);
+            for (int offset : recordOffsets) {
+                header.putInt(offset);
+            }
+            header.flip();
+            channel.position(0);
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            channel.force(true);
+        }
+
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return open(file);
+    }
+
+    private static int writeVarint(FileChannel channel, ByteBuffer out, int value) throws IOException {
+        if (out.remaining() < 5) {
+            flush(channel, out);
+        }
+        int bytes = 1;
+        while ((value & ~0x7f) != 0) {
+            out.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+            bytes++;
+        }
+        out.put((byte) value);
+        return bytes;
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer out) throws IOException {
+        out.flip();
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+        out.clear();
+    }
+}
@@ -0,0 +1,346 @@
+package com.maxdemarzi.shortest;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * What the requests cost, per endpoint and per engine: a latency histogram, the nodes expanded and relationships
+ * read, the largest frontier and visited map, the bytes streamed and how many ran out of budget. Also how
+ * NodeCache answered, and how the relationships the Planner expected an engine to read compare with what it read.
+ *
+ * Searches count in plain fields and hand the totals to the request's Budget when they stop, so the only shared
+ * writes are one per request (and one per worker of a parallel search).
+ *
+ * scrape() writes everything in the Prometheus text format, latencies as a summary with the 0.5, 0.99 and 0.999
+ * quantiles. Counters and histograms cover everything since the server started.
+ */
+public final class Metrics {
+
+    public static final String BUILTIN = "builtin";
+    public static final String BFS = "bfs";
+    public static final String DIRECTION_OPTIMIZING_BFS = "direction_optimizing_bfs";
+    public static final String PARALLEL_BFS = "parallel_bfs";
+    public static final String BIDIRECTIONAL_BFS = "bidirectional_bfs";
+    public static final String MULTI_SOURCE_BFS = "multi_source_bfs";
+    public static final String DIJKSTRA = "dijkstra";
+    public static final String PARALLEL_DIJKSTRA = "parallel_dijkstra";
+
+    public static final String INDEX_HIT = "index_hit";
+    public static final String INDEX_MISS = "index_miss";
+    public static final String HIT = "hit";
+    public static final String NEGATIVE_HIT = "negative_hit";
+    public static final String MISS = "miss";
+
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+
+    /*
+     * Log-linear buckets of microseconds: exact below 16, then 8 buckets per power of two, so a quantile is off
+     * by at most 1/8th
+     */
+    static final class Histogram {
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int LINEAR = 16;
+        private static final int BUCKETS = LINEAR + (63 - 4) * (1 << SUB_BUCKET_BITS);
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+
+        void record(long micros) {
+            final long value = Math.max(0, micros);
+            this.counts.incrementAndGet(bucket(value));
+            this.count.increment();
+            this.sum.add(value);
+        }
+
+        static int bucket(long value) {
+            if (value < LINEAR) {
+                return (int) value;
+            }
+            final int exponent = 63 - Long.numberOfLeadingZeros(value);
+            final int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & ((1 << SUB_BUCKET_BITS) - 1);
+            return LINEAR + (exponent - 4) * (1 << SUB_BUCKET_BITS) + subBucket;
+        }
+
+        /*
+         * @return the largest value that falls in the bucket
+         */
+        static long upperBound(int bucket) {
+            if (bucket < LINEAR) {
+                return bucket;
+            }
+            final int exponent = (bucket - LINEAR) / (1 << SUB_BUCKET_BITS) + 4;
+            final long subBucket = (bucket - LINEAR) % (1 << SUB_BUCKET_BITS);
+            final long width = 1L << (exponent - SUB_BUCKET_BITS);
+            return (1L << exponent) + (subBucket + 1) * width - 1;
+        }
+
+        /**
+         * @return the value at or under which the quantile of recorded values fall, in microseconds
+         */
+        long quantile(double quantile) {
+            final long total = this.count.sum();
+            if (total == 0) {
+                return 0;
+            }
+            final long rank = Math.max(1, (long) Math.ceil(quantile * total));
+            long seen = 0;
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                seen += this.counts.get(bucket);
+                if (seen >= rank) {
+                    return upperBound(bucket);
+                }
+            }
+            return upperBound(BUCKETS - 1);
+        }
+
+        long count() {
+            return this.count.sum();
+        }
+
+        long sum() {
+            return this.sum.sum();
+        }
+    }
+
+    /*
+     * Everything recorded for one endpoint and engine
+     */
+    private static final class Series {
+        private final Histogram latency = new Histogram();
+        private final LongAdder expanded = new LongAdder();
+        private final LongAdder relationships = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        private final LongAdder exhausted = new LongAdder();
+        private final AtomicLong peakFrontier = new AtomicLong();
+        private final AtomicLong peakVisited = new AtomicLong();
+    }
+
+    /*
+     * The Planner's estimates for one engine against what it read, the ratio in hundredths
+     */
+    private static final class Estimates {
+        private final LongAdder predicted = new LongAdder();
+        private final LongAdder actual = new LongAdder();
+        private final Histogram ratio = new Histogram();
+    }
+
+    private static final ConcurrentMap<String, Series> series = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, LongAdder> nodeLookups = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Estimates> estimates = new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    /**
+     * @param endpoint: the path of the endpoint, without the /v1/service prefix
+     * @param engine: the search that answered, one of the constants above
+     * @param nanos: how long the request took
+     * @param budget: the request's budget, with what its searches spent, null if it had none
+     * @param bytes: the bytes streamed back
+     */
+    public static void record(String endpoint, String engine, long nanos, Budget budget, long bytes) {
+        final Series series = series(endpoint, engine);
+        series.latency.record(nanos / 1000);
+        series.bytes.add(bytes);
+        if (budget != null) {
+            series.expanded.add(budget.expanded());
+            series.relationships.add(budget.relationships());
+            max(series.peakFrontier, budget.peakFrontier());
+            max(series.peakVisited, budget.peakVisited());
+            if (budget.isExhausted()) {
+                series.exhausted.increment();
+            }
+        }
+    }
+
+    /**
+     * @param result: how NodeCache found the node, one of INDEX_HIT, INDEX_MISS, HIT, NEGATIVE_HIT or MISS
+     */
+    public static void nodeLookup(String result) {
+        nodeLookup(result, 1);
+    }
+
+    /**
+     * @param count: how many keys were looked up with that result
+     */
+    public static void nodeLookup(String result, long count) {
+        if (count == 0) {
+            return;
+        }
+        LongAdder lookups = nodeLookups.get(result);
+        if (lookups == null) {
+            final LongAdder created = new LongAdder();
+            lookups = nodeLookups.putIfAbsent(result, created);
+            if (lookups == null) {
+                lookups = created;
+            }
+        }
+        lookups.add(count);
+    }
+
+    /**
+     * @param engine: the engine the Planner picked
+     * @param predicted: the relationships it was expected to read
+     * @param actual: the relationships it read
+     */
+    public static void planned(String engine, long predicted, long actual) {
+        Estimates existing = estimates.get(engine);
+        if (existing == null) {
+            final Estimates created = new Estimates();
+            existing = estimates.putIfAbsent(engine, created);
+            if (existing == null) {
+                existing = created;
+            }
+        }
+        existing.predicted.add(predicted);
+        existing.actual.add(actual);
+        existing.ratio.record(actual * 100 / Math.max(1, predicted));
+    }
+
+    /**
+     * Forgets everything recorded so far
+     */
+    public static void reset() {
+        series.clear();
+        nodeLookups.clear();
+        estimates.clear();
+    }
+
+    private static Series series(String endpoint, String engine) {
+        final String key = "endpoint=\"" + endpoint + "\",engine=\"" + engine + "\"";
+        Series existing = series.get(key);
+        if (existing == null) {
+            final Series created = new Series();
+            existing = series.putIfAbsent(key, created);
+            if (existing == null) {
+                existing = created;
+            }
+        }
+        return existing;
+    }
+
+    private static void max(AtomicLong peak, long value) {
+        long current = peak.get();
+        while (value > current && !peak.compareAndSet(current, value)) {
+            current = peak.get();
+        }
+    }
+
+    /**
+     * @return every metric in the Prometheus text exposition format
+     */
+    public static String scrape() {
+        final Map<String, Series> sorted = new TreeMap<>(series);
+        final StringBuilder text = new StringBuilder();
+
+        text.append("# HELP shortest_request_latency_seconds Time taken by requests\n");
+        text.append("# TYPE shortest_request_latency_seconds summary\n");
+        for (Map.Entry<String, Series> entry : sorted.entrySet()) {
+            final Histogram latency = entry.getValue().latency;
+            for (double quantile : QUANTILES) {
+                text.append("shortest_request_latency_seconds{").append(entry.getKey())
+                    .append(",quantile=\"").append(quantile).append("\"} ")
+                    .append(seconds(latency.quantile(quantile))).append('\n');
+            }
+            text.append("shortest_request_latency_seconds_sum{").append(entry.getKey()).append("} ")
+                .append(seconds(latency.sum())).append('\n');
+            text.append("shortest_request_latency_seconds_count{").append(entry.getKey()).append("} ")
+                .append(latency.count()).append('\n');
+        }
+
+        counter(text, sorted, "shortest_nodes_expanded_total", "Nodes expanded by searches", new Value() {
+            public long of(Series series) {
+                return series.expanded.sum();
+            }
+        });
+        counter(text, sorted, "shortest_relationships_scanned_total", "Relationships read by searches", new Value() {
+            public long of(Series series) {
+                return series.relationships.sum();
+            }
+        });
+        counter(text, sorted, "shortest_bytes_streamed_total", "Bytes of results sent back", new Value() {
+            public long of(Series series) {
+                return series.bytes.sum();
+            }
+        });
+        counter(text, sorted, "shortest_budget_exhausted_total", "Requests that ran out of budget", new Value() {
+            public long of(Series series) {
+                return series.exhausted.sum();
+            }
+        });
+        gauge(text, sorted, "shortest_peak_frontier", "Largest queue or level a search held", new Value() {
+            public long of(Series series) {
+                return series.peakFrontier.get();
+            }
+        });
+        gauge(text, sorted, "shortest_peak_visited", "Largest visited map a search held", new Value() {
+            public long of(Series series) {
+                return series.peakVisited.get();
+            }
+        });
+
+        text.append("# HELP shortest_node_lookups_total Emails and bibliography entries resolved by NodeCache\n");
+        text.append("# TYPE shortest_node_lookups_total counter\n");
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<>(nodeLookups).entrySet()) {
+            text.append("shortest_node_lookups_total{result=\"").append(entry.getKey()).append("\"} ")
+                .append(entry.getValue().sum()).append('\n');
+        }
+
+        final Map<String, Estimates> planned = new TreeMap<>(estimates);
+        text.append("# HELP shortest_planner_predicted_relationships_total Relationships the Planner expected the engine it picked to read\n");
+        text.append("# TYPE shortest_planner_predicted_relationships_total counter\n");
+        for (Map.Entry<String, Estimates> entry : planned.entrySet()) {
+            text.append("shortest_planner_predicted_relationships_total{engine=\"").append(entry.getKey()).append("\"} ")
+                .append(entry.getValue().predicted.sum()).append('\n');
+        }
+        text.append("# HELP shortest_planner_actual_relationships_total Relationships the engine the Planner picked read\n");
+        text.append("# TYPE shortest_planner_actual_relationships_total counter\n");
+        for (Map.Entry<String, Estimates> entry : planned.entrySet()) {
+            text.append("shortest_planner_actual_relationships_total{engine=\"").append(entry.getKey()).append("\"} ")
+                .append(entry.getValue().actual.sum()).append('\n');
+        }
+        text.append("# HELP shortest_planner_actual_to_predicted Relationships read over relationships expected, per search\n");
+        text.append("# TYPE shortest_planner_actual_to_predicted summary\n");
+        for (Map.Entry<String, Estimates> entry : planned.entrySet()) {
+            final Histogram ratio = entry.getValue().ratio;
+            for (double quantile : QUANTILES) {
+                text.append("shortest_planner_actual_to_predicted{engine=\"").append(entry.getKey())
+                    .append("\",quantile=\"").append(quantile).append("\"} ")
+                    .append(ratio.quantile(quantile) / 100.0).append('\n');
+            }
+            text.append("shortest_planner_actual_to_predicted_count{engine=\"").append(entry.getKey()).append("\"} ")
+                .append(ratio.count()).append('\n');
+        }
+        return text.toString();
+    }
+
+    private static interface Value {
+        long of(Series series);
+    }
+
+    private static void counter(StringBuilder text, Map<String, Series> sorted, String name, String help, Value value) {
+        metric(text, sorted, name, help, "counter", value);
+    }
+
+    private static void gauge(StringBuilder text, Map<String, Series> sorted, String name, String help, Value value) {
+        metric(text, sorted, name, help, "gauge", value);
+    }
+
+    private static void metric(StringBuilder text, Map<String, Series> sorted, String name, String help, String type, Value value) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        for (Map.Entry<String, Series> entry : sorted.entrySet()) {
+            text.append(name).append('{').append(entry.getKey()).append("} ").append(value.of(entry.getValue())).append('\n');
+        }
+    }
+
+    private static String seconds(long micros) {
+        return String.valueOf(micros / 1e6);
+    }
+}
@@ -0,0 +1,243 @@
+package com.maxdemarzi.shortest;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import net.openhft.koloboke.collect.map.LongLongCursor;
+import net.openhft.koloboke.collect.map.hash.HashLongIntMap;
+import net.openhft.koloboke.collect.map.hash.HashLongIntMaps;
+import net.openhft.koloboke.collect.map.hash.HashLongLongMap;
+import net.openhft.koloboke.collect.map.hash.HashLongLongMaps;
+import net.openhft.koloboke.function.LongBinaryOperator;
+
+/**
+ * Level synchronous breadth first search from up to 64 centers at once (MS-BFS).
+ *
+ * Every node keeps a bitmask of the sources that have seen it and of the sources whose frontier it is in,
+ * so a node that is in the neighborhood of many centers has its relationships read once per level instead of
+ * once per center. Path counts are kept per node and source, keyed by (node id << 6) | source, so they are
+ * exactly what a separate search from each center would count.
+ *
+ * As with the single center search, the bibliography entries of a source are treated as its neighbors at level 1,
+ * and the last level is counted from the targets' side.
+ */
+public final class MultiSourceBFS {
+
+    public static final int MAX_SOURCES = 64;
+
+    public static interface PathsCallback {
+        /**
+         * @param search: the search that found the paths, call finish() on it to stop
+         * @param source: the index returned by addSource
+         * @param nodeId: the target that was reached
+         * @param length: the length of the shortest paths from the source's center to the target
+         * @param count: the number of shortest paths
+         */
+        public void found(final MultiSourceBFS search, final int source, final long nodeId, final int length, final int count);
+    }
+
+    private static final LongBinaryOperator or = new LongBinaryOperator() {
+        public long applyAsLong(long a, long b) {
+            return a | b;
+        }
+    };
+
+    private final Adjacency adjacency;
+    private final int maxLength;
+
+    private final List<Long> centers;
+    private final List<Collection<Long>> bibliographyNodeIds;
+    private final HashLongLongMap pending;
+    private boolean finished;
+
+    private long expanded;
+    private long relationships;
+    private long peakFrontier;
+    private long peakVisited;
+
+    public MultiSourceBFS(Adjacency adjacency, int maxLength) {
+        this.adjacency = adjacency;
+        this.maxLength = maxLength;
+        this.centers = new ArrayList<>();
+        this.bibliographyNodeIds = new ArrayList<>();
+        this.pending = HashLongLongMaps.newMutableMap();
+    }
+
+    /**
+     * @return the index the source's results are reported under
+     * @throws IllegalStateException if the search already has MAX_SOURCES sources
+     */
+    public int addSource(long centerNodeId, Collection<Long> bibliographyNodeIds, Collection<Long> targets) {
+        final int source = this.centers.size();
+        if (source == MAX_SOURCES) {
+            throw new IllegalStateException("A search can't have more than " + MAX_SOURCES + " sources");
+        }
+        this.centers.add(centerNodeId);
+        this.bibliographyNodeIds.add(bibliographyNodeIds);
+        for (Long target : targets) {
+            this.pending.merge(target.longValue(), 1L << source, or);
+        }
+        return source;
+    }
+
+    public int sourceCount() {
+        return this.centers.size();
+    }
+
+    public void finish() {
+        this.finished = true;
+    }
+
+    private static long key(long nodeId, int source) {
+        return (nodeId << 6) | source;
+    }
+
+    public void run(PathsCallback callback) {
+        run(Budget.UNLIMITED, callback);
+    }
+
+    /**
+     * Stops once the budget runs out, the level being expanded at that point is dropped, so every count reported is exact
+     */
+    public void run(Budget budget, PathsCallback callback) {
+        this.expanded = 0;
+        this.relationships = 0;
+        this.peakFrontier = 0;
+        this.peakVisited = 0;
+        try {
+            search(budget, callback);
+        } finally {
+            budget.spent(this.expanded, this.relationships, this.peakFrontier, this.peakVisited);
+        }
+    }
+
+    private void search(Budget budget, PathsCallback callback) {
+        final Adjacency adjacency = Profile.adjacency(budget, this.adjacency);
+        final HashLongLongMap seen = HashLongLongMaps.newMutableMap();
+        HashLongLongMap frontier = HashLongLongMaps.newMutableMap();
+        HashLongIntMap counts = HashLongIntMaps.newMutableMap();
+        for (int source = 0; source < this.centers.size(); source++) {
+            final long centerNodeId = this.centers.get(source);
+            frontier.merge(centerNodeId, 1L << source, or);
+            seen.merge(centerNodeId, 1L << source, or);
+            counts.put(key(centerNodeId, source), 1);
+        }
+
+        AdjacencyCursor relationshipCursor;
+        LongLongCursor longLongCursor;
+
+        int level = 1;
+        while (level <= this.maxLength && !this.finished && !this.pending.isEmpty() && !frontier.isEmpty()) {
+            this.peakFrontier = Math.max(this.peakFrontier, frontier.size());
+            this.peakVisited = Math.max(this.peakVisited, seen.size());
+            if (budget.profile() != null) {
+                budget.profile().frontier(level - 1, frontier.size());
+            }
+            if (level < this.maxLength) {
+                final HashLongLongMap nextFrontier = HashLongLongMaps.newMutableMap();
+                final HashLongIntMap nextCounts = HashLongIntMaps.newMutableMap();
+
+                longLongCursor = frontier.cursor();
+                while (longLongCursor.moveNext()) {
+                    if (!budget.check(++this.expanded, seen.size())) {
+                        return;
+                    }
+                    final long nodeId = longLongCursor.key();
+                    final long sources = longLongCursor.value();
+
+                    relationshipCursor = adjacency.relationships(nodeId);
+                    while (relationshipCursor.next()) {
+                        this.relationships++;
+                        final long otherId = relationshipCursor.otherNode();
+                        long newSources = sources & ~seen.get(otherId);
+                        if (newSources == 0) {
+                            continue;
+                        }
+                        nextFrontier.merge(otherId, newSources, or);
+                        while (newSources != 0) {
+                            final int source = Long.numberOfTrailingZeros(newSources);
+                            newSources &= newSources - 1;
+                            nextCounts.addValue(key(otherId, source), counts.get(key(nodeId, source)), 0);
+                        }
+                    }
+                }
+
+                if (level == 1) {
+                    // Pretend there are length 1 paths to the bibliography entries
+                    for (int source = 0; source < this.centers.size(); source++) {
+                        for (Long bibId : this.bibliographyNodeIds.get(source)) {
+                            if (((seen.get(bibId.longValue()) | nextFrontier.get(bibId.longValue())) & (1L << source)) == 0) {
+                                nextFrontier.merge(bibId.longValue(), 1L << source, or);
+                                nextCounts.put(key(bibId.longValue(), source), 1);
+                            }
+                        }
+                    }
+                }
+
+                // Mark the new level as seen and report the targets on it
+                longLongCursor = nextFrontier.cursor();
+                while (longLongCursor.moveNext() && !this.finished) {
+                    final long nodeId = longLongCursor.key();
+                    seen.merge(nodeId, longLongCursor.value(), or);
+
+                    long found = longLongCursor.value() & this.pending.get(nodeId);
+                    if (found != 0) {
+                        removePending(nodeId, found);
+                        while (found != 0 && !this.finished) {
+                            final int source = Long.numberOfTrailingZeros(found);
+                            found &= found - 1;
+                            callback.found(this, source, nodeId, level, nextCounts.get(key(nodeId, source)));
+                        }
+                    }
+                }
+                frontier = nextFrontier;
+                counts = nextCounts;
+            } else {
+                // Last level, count the paths from each remaining target's neighbors on the frontier
+                final int[] pathCounts = new int[MAX_SOURCES];
+                longLongCursor = this.pending.cursor();
+                while (longLongCursor.moveNext() && !this.finished) {
+                    final long nodeId = longLongCursor.key();
+                    final long wanted = longLongCursor.value() & ~seen.get(nodeId);
+                    if (wanted == 0) {
+                        continue;
+                    }
+                    if (!budget.check(++this.expanded, seen.size())) {
+                        return;
+                    }
+                    long found = 0;
+                    relationshipCursor = adjacency.relationships(nodeId);
+                    while (relationshipCursor.next()) {
+                        this.relationships++;
+                        final long otherId = relationshipCursor.otherNode();
+                        long sources = frontier.get(otherId) & wanted;
+                        found |= sources;
+                        while (sources != 0) {
+                            final int source = Long.numberOfTrailingZeros(sources);
+                            sources &= sources - 1;
+                            pathCounts[source] += counts.get(key(otherId, source));
+                        }
+                    }
+                    while (found != 0 && !this.finished) {
+                        final int source = Long.numberOfTrailingZeros(found);
+                        found &= found - 1;
+                        callback.found(this, source, nodeId, level, pathCounts[source]);
+                        pathCounts[source] = 0;
+                    }
+                }
+            }
+
+            level++;
+        }
+    }
+
+    private void removePending(long nodeId, long sources) {
+        final long remaining = this.pending.get(nodeId) & ~sources;
+        if (remaining == 0) {
+            this.pending.remove(nodeId);
+        } else {
+            this.pending.put(nodeId, remaining);
+        }
+    }
+}
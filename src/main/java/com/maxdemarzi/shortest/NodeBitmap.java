@@ -0,0 +1,163 @@
+package com.maxdemarzi.shortest;
+
+import java.util.Arrays;
+
+import net.openhft.koloboke.collect.LongCursor;
+import net.openhft.koloboke.collect.map.LongIntMap;
+
+/**
+ * A compressed bitmap of node ids, laid out the way Roaring bitmaps are: the ids are split into chunks of 65536 by
+ * their high bits, and each chunk keeps the low 16 bits of its ids either in a sorted array, while it has few, or
+ * in a bitmap of 8KB once it has more than MAX_ARRAY. A chunk with no ids takes nothing. A deep search visits most
+ * of the ids in its chunks, which then cost a bit per id.
+ *
+ * The arrays stop at 1024 ids rather than Roaring's 4096, sorted inserts into longer arrays cost more than the
+ * memory they save. Clearing empties the chunks that were used and keeps their arrays and bitmaps for the next search.
+ */
+final class NodeBitmap implements NodeSet {
+
+    // A frontier this large visits enough of the graph for a bitmap to beat stamps or hashing
+    static final int DENSE_FRONTIER = 1 << 14;
+
+    private static final int CHUNK_BITS = 16;
+    private static final int MAX_ARRAY = 1024;
+    private static final int WORDS = 1 << (CHUNK_BITS - 6);
+
+    private char[][] arrays = new char[16][];
+    private long[][] bitmaps = new long[16][];
+    private int[] cardinalities = new int[16];
+    private int[] used = new int[16];
+    private int usedCount;
+    private long size;
+    private long bytes;
+
+    /**
+     * @return true once a search with this frontier should keep its visited nodes in a bitmap, and doesn't yet
+     */
+    static boolean dense(NodeSet visited, long frontier) {
+        return frontier >= DENSE_FRONTIER && !(visited instanceof NodeBitmap);
+    }
+
+    public boolean contains(long nodeId) {
+        final long chunk = nodeId >>> CHUNK_BITS;
+        if (chunk >= this.cardinalities.length) {
+            return false;
+        }
+        final char low = (char) nodeId;
+        final long[] bitmap = this.bitmaps[(int) chunk];
+        if (bitmap != null) {
+            return (bitmap[low >>> 6] & (1L << low)) != 0;
+        }
+        final int cardinality = this.cardinalities[(int) chunk];
+        return cardinality != 0 && Arrays.binarySearch(this.arrays[(int) chunk], 0, cardinality, low) >= 0;
+    }
+
+    public boolean add(long nodeId) {
+        final int chunk = (int) (nodeId >>> CHUNK_BITS);
+        if (chunk >= this.cardinalities.length) {
+            final int length = Math.max(chunk + 1, this.cardinalities.length * 2);
+            this.arrays = Arrays.copyOf(this.arrays, length);
+            this.bitmaps = Arrays.copyOf(this.bitmaps, length);
+            this.cardinalities = Arrays.copyOf(this.cardinalities, length);
+        }
+        final char low = (char) nodeId;
+        final int cardinality = this.cardinalities[chunk];
+
+        final long[] bitmap = this.bitmaps[chunk];
+        if (bitmap != null) {
+            if ((bitmap[low >>> 6] & (1L << low)) != 0) {
+                return false;
+            }
+            bitmap[low >>> 6] |= 1L << low;
+        } else {
+            char[] array = this.arrays[chunk];
+            final int position = cardinality == 0 ? -1 : Arrays.binarySearch(array, 0, cardinality, low);
+            if (position >= 0) {
+                return false;
+            }
+            final int insert = -position - 1;
+            if (cardinality == MAX_ARRAY) {
+                toBitmap(chunk, array, cardinality)[low >>> 6] |= 1L << low;
+            } else {
+                if (array == null || cardinality == array.length) {
+                    final int length = array == null ? 4 : Math.min(MAX_ARRAY, cardinality * 2);
+                    this.bytes += 2 * (length - (array == null ? 0 : array.length));
+                    array = this.arrays[chunk] = array == null ? new char[length] : Arrays.copyOf(array, length);
+                }
+                System.arraycopy(array, insert, array, insert + 1, cardinality - insert);
+                array[insert] = low;
+            }
+        }
+        if (cardinality == 0) {
+            if (this.usedCount == this.used.length) {
+                this.used = Arrays.copyOf(this.used, this.usedCount * 2);
+            }
+            this.used[this.usedCount++] = chunk;
+        }
+        this.cardinalities[chunk] = cardinality + 1;
+        this.size++;
+        return true;
+    }
+
+    private long[] toBitmap(int chunk, char[] array, int cardinality) {
+        final long[] bitmap = this.bitmaps[chunk] = new long[WORDS];
+        for (int i = 0; i < cardinality; i++) {
+            bitmap[array[i] >>> 6] |= 1L << array[i];
+        }
+        this.bytes += 8 * WORDS - 2 * array.length;
+        this.arrays[chunk] = null;
+        return bitmap;
+    }
+
+    public void addAll(LongIntMap nodes) {
+        final LongCursor cursor = nodes.keySet().cursor();
+        while (cursor.moveNext()) {
+            add(cursor.elem());
+        }
+    }
+
+    public void addTo(NodeSet other) {
+        for (int i = 0; i < this.usedCount; i++) {
+            final int chunk = this.used[i];
+            final long high = (long) chunk << CHUNK_BITS;
+            final long[] bitmap = this.bitmaps[chunk];
+            if (bitmap != null) {
+                for (int word = 0; word < WORDS; word++) {
+                    long bits = bitmap[word];
+                    while (bits != 0) {
+                        other.add(high | (word << 6) | Long.numberOfTrailingZeros(bits));
+                        bits &= bits - 1;
+                    }
+                }
+            } else {
+                final char[] array = this.arrays[chunk];
+                for (int j = 0; j < this.cardinalities[chunk]; j++) {
+                    other.add(high | array[j]);
+                }
+            }
+        }
+    }
+
+    public long size() {
+        return this.size;
+    }
+
+    /**
+     * @return roughly the memory the arrays and bitmaps of the chunks take
+     */
+    long bytes() {
+        return this.bytes;
+    }
+
+    public void clear() {
+        for (int i = 0; i < this.usedCount; i++) {
+            final int chunk = this.used[i];
+            if (this.bitmaps[chunk] != null) {
+                Arrays.fill(this.bitmaps[chunk], 0L);
+            }
+            this.cardinalities[chunk] = 0;
+        }
+        this.usedCount = 0;
+        this.size = 0;
+    }
+}
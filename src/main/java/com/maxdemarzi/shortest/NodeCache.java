@@ -1,26 +1,63 @@
-
 package com.maxdemarzi.shortest;
 
+import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
-
-import org.neo4j.kernel.GraphDatabaseAPI;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Result;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.event.LabelEntry;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
 
+/**
+ * Resolves emails and bibliography entry ids to node ids, from the off-heap NodeIndex once one is loaded,
+ * otherwise through the label indexes with the most recent answers cached.
+ *
+ * Emails and ids that weren't found are remembered too, so clients asking for the same unknown ones over and over
+ * don't seek the index every time. A TransactionEventHandler forgets them whenever an Email or BibliographyEntry
+ * gets its label or its key property.
+ *
+ * Many keys at once are looked up in bulk: the cached ones all together, then the rest in batches of BATCH_SIZE,
+ * each a single query for all of its keys, on the Workers pool when there is more than one batch.
+ */
 public final class NodeCache {
 
-    private final LoadingCache<String, Long> emails;
-    private final LoadingCache<String, Long> bibliographyEntries;
+    private static final long MAX_MISSES = 100_000;
+    static final int BATCH_SIZE = 1000;
+
+    private static final String EMAIL_QUERY =
+        "MATCH (n:Email) WHERE n.email IN {keys} RETURN n.email AS key, id(n) AS id";
+    private static final String BIBLIOGRAPHY_ENTRY_QUERY =
+        "MATCH (n:BibliographyEntry) WHERE n.id IN {keys} RETURN n.id AS key, id(n) AS id";
+
+    private static final int EMAILS = 1;
+    private static final int BIBLIOGRAPHY_ENTRIES = 2;
+
+    private final Cache<String, Long> emails;
+    private final Cache<String, Long> bibliographyEntries;
+    private final Cache<String, Boolean> missingEmails;
+    private final Cache<String, Boolean> missingBibliographyEntries;
+    // Bumped before a commit that may add a key, a miss seen across a bump isn't remembered
+    private final AtomicLong emailChanges = new AtomicLong();
+    private final AtomicLong bibliographyEntryChanges = new AtomicLong();
+    private final TransactionEventHandler<Integer> invalidator;
 
     private GraphDatabaseService db = null;
+    private volatile NodeIndex index = null;
 
     private static NodeCache instance = null;
 
@@ -32,71 +69,328 @@ public final class NodeCache {
       return instance;
     }
 
-    private static final Long getEmailNodeId(GraphDatabaseService db, String email) throws Exception{
-        final Node node = db.findNode(Labels.Email, "email", email);
-        if (node != null) {
-            return node.getId();
-        } else {
-            throw new Exception("Email not found");
-        }
-    }
-
-    private static final Long getBibliographyEntryNodeId(GraphDatabaseService db, String bibId) throws Exception{
-        final Node node = db.findNode(Labels.BibliographyEntry, "id", Long.valueOf(bibId));
-        if (node != null) {
-            return node.getId();
-        } else {
-            throw new Exception("BibliographyEntry not found");
-        }
-    }
-
     private NodeCache(long maxSize) {
         emails = CacheBuilder.newBuilder()
-            .maximumSize(maxSize).build(new CacheLoader<String, Long>() {
-                public Long load(String email) throws Exception {
-                    return getEmailNodeId(db, email);
-                }
-            });
+            .maximumSize(maxSize)
+            .build();
         bibliographyEntries = CacheBuilder.newBuilder()
             .maximumSize(maxSize)
-            .build(new CacheLoader<String, Long>() {
-                public Long load(String bibId) throws Exception {
-                    return getBibliographyEntryNodeId(db, bibId);
+            .build();
+        missingEmails = CacheBuilder.newBuilder()
+            .maximumSize(MAX_MISSES)
+            .build();
+        missingBibliographyEntries = CacheBuilder.newBuilder()
+            .maximumSize(MAX_MISSES)
+            .build();
+
+        invalidator = new TransactionEventHandler<Integer>() {
+            public Integer beforeCommit(TransactionData data) throws Exception {
+                int added = 0;
+                for (LabelEntry entry : data.assignedLabels()) {
+                    added |= keys(entry.label().name());
+                }
+                for (PropertyEntry<Node> entry : data.assignedNodeProperties()) {
+                    if ("email".equals(entry.key())) {
+                        added |= EMAILS;
+                    } else if ("id".equals(entry.key())) {
+                        added |= BIBLIOGRAPHY_ENTRIES;
+                    }
+                }
+                if ((added & EMAILS) != 0) {
+                    emailChanges.incrementAndGet();
+                }
+                if ((added & BIBLIOGRAPHY_ENTRIES) != 0) {
+                    bibliographyEntryChanges.incrementAndGet();
+                }
+                return added;
+            }
+
+            public void afterCommit(TransactionData data, Integer added) {
+                if ((added & EMAILS) != 0) {
+                    missingEmails.invalidateAll();
+                }
+                if ((added & BIBLIOGRAPHY_ENTRIES) != 0) {
+                    missingBibliographyEntries.invalidateAll();
                 }
-            });
+            }
+
+            public void afterRollback(TransactionData data, Integer added) {
+            }
+        };
+    }
+
+    private static int keys(String label) {
+        if (Labels.Email.name().equals(label)) {
+            return EMAILS;
+        }
+        return Labels.BibliographyEntry.name().equals(label) ? BIBLIOGRAPHY_ENTRIES : 0;
     }
 
     public void useDatabase(GraphDatabaseService db) {
+        if (this.db == db) {
+            return;
+        }
+        if (this.index != null) {
+            this.index.stop();
+            this.index = null;
+        }
+        if (this.db != null) {
+            try {
+                this.db.unregisterTransactionEventHandler(invalidator);
+            } catch (IllegalStateException e) {
+                // the database was shut down, which dropped the handler already
+            }
+        }
+        // node ids mean nothing in another database
+        emails.invalidateAll();
+        bibliographyEntries.invalidateAll();
+        missingEmails.invalidateAll();
+        missingBibliographyEntries.invalidateAll();
+        if (db != null) {
+            db.registerTransactionEventHandler(invalidator);
+        }
         this.db = db;
     }
 
+    /**
+     * @param index: the index to resolve nodes from once it is loaded, null to go back to the label indexes
+     */
+    public void useIndex(NodeIndex index) {
+        if (this.index != null && this.index != index) {
+            this.index.stop();
+        }
+        this.index = index;
+    }
+
+    /**
+     * @return the id of the Email node, null if there is none
+     */
+    public final Long findEmailNode(String email) {
+        final NodeIndex index = this.index;
+        if (index != null && index.isLoaded()) {
+            final long nodeId = index.emailNode(email);
+            Metrics.nodeLookup(nodeId == NodeIdTable.NONE ? Metrics.INDEX_MISS : Metrics.INDEX_HIT);
+            return nodeId == NodeIdTable.NONE ? null : nodeId;
+        }
+        final Long cached = emails.getIfPresent(email);
+        if (cached != null || missingEmails.getIfPresent(email) != null) {
+            Metrics.nodeLookup(cached != null ? Metrics.HIT : Metrics.NEGATIVE_HIT);
+            return cached;
+        }
+        Metrics.nodeLookup(Metrics.MISS);
+
+        final long changes = emailChanges.get();
+        final Node node = db.findNode(Labels.Email, "email", email);
+        if (node == null) {
+            if (emailChanges.get() == changes) {
+                missingEmails.put(email, Boolean.TRUE);
+            }
+            return null;
+        }
+        emails.put(email, node.getId());
+        return node.getId();
+    }
+
     public final Long getEmailNode(String email) throws ExecutionException {
-        return emails.get(email);
+        final Long nodeId = findEmailNode(email);
+        if (nodeId == null) {
+            throw new ExecutionException("Email not found", null);
+        }
+        return nodeId;
+    }
+
+    /**
+     * @return the ids of the Email nodes that were found, by email, the others are left out
+     */
+    public final Map<String, Long> findEmailNodes(Collection<String> emails) {
+        final NodeIndex index = this.index;
+        if (index != null && index.isLoaded()) {
+            final Map<String, Long> nodeIds = new HashMap<>();
+            for (String email : emails) {
+                final Long nodeId = findEmailNode(email);
+                if (nodeId != null) {
+                    nodeIds.put(email, nodeId);
+                }
+            }
+            return nodeIds;
+        }
+        return findNodes(emails, this.emails, missingEmails, emailChanges, EMAIL_QUERY, false);
     }
 
     public final List<Long> getEmailNodes(Collection<String> emailSet) {
-        List<Long> nodeIds = new ArrayList<>(emailSet.size());
-        for (String email : emailSet) {
-            try {
-                nodeIds.add(getEmailNode(email));
-            } catch (ExecutionException e) {
-                continue;
+        return inOrder(emailSet, findEmailNodes(emailSet));
+    }
+
+    /**
+     * @return the id of the BibliographyEntry node, null if there is none
+     */
+    public final Long findBibliographyEntryNode(String bibliographyEntryId) {
+        final NodeIndex index = this.index;
+        if (index != null && index.isLoaded()) {
+            final long nodeId = index.bibliographyEntryNode(bibliographyEntryId);
+            Metrics.nodeLookup(nodeId == NodeIdTable.NONE ? Metrics.INDEX_MISS : Metrics.INDEX_HIT);
+            return nodeId == NodeIdTable.NONE ? null : nodeId;
+        }
+        final Long cached = bibliographyEntries.getIfPresent(bibliographyEntryId);
+        if (cached != null || missingBibliographyEntries.getIfPresent(bibliographyEntryId) != null) {
+            Metrics.nodeLookup(cached != null ? Metrics.HIT : Metrics.NEGATIVE_HIT);
+            return cached;
+        }
+        Metrics.nodeLookup(Metrics.MISS);
+
+        final long changes = bibliographyEntryChanges.get();
+        Node node;
+        try {
+            node = db.findNode(Labels.BibliographyEntry, "id", Long.valueOf(bibliographyEntryId));
+        } catch (NumberFormatException e) {
+            node = null;
+        }
+        if (node == null) {
+            if (bibliographyEntryChanges.get() == changes) {
+                missingBibliographyEntries.put(bibliographyEntryId, Boolean.TRUE);
             }
+            return null;
         }
-        return nodeIds;
+        bibliographyEntries.put(bibliographyEntryId, node.getId());
+        return node.getId();
     }
 
     public final Long getBibliographEntryNode(String bibliographyEntryId) throws ExecutionException {
-        return bibliographyEntries.get(bibliographyEntryId);
+        final Long nodeId = findBibliographyEntryNode(bibliographyEntryId);
+        if (nodeId == null) {
+            throw new ExecutionException("BibliographyEntry not found", null);
+        }
+        return nodeId;
+    }
+
+    /**
+     * @return the ids of the BibliographyEntry nodes that were found, by bibliography entry id, the others are left out
+     */
+    public final Map<String, Long> findBibliographyEntryNodes(Collection<String> bibEntries) {
+        final NodeIndex index = this.index;
+        if (index != null && index.isLoaded()) {
+            final Map<String, Long> nodeIds = new HashMap<>();
+            for (String bibId : bibEntries) {
+                final Long nodeId = findBibliographyEntryNode(bibId);
+                if (nodeId != null) {
+                    nodeIds.put(bibId, nodeId);
+                }
+            }
+            return nodeIds;
+        }
+        return findNodes(bibEntries, bibliographyEntries, missingBibliographyEntries, bibliographyEntryChanges, BIBLIOGRAPHY_ENTRY_QUERY, true);
     }
 
     public final List<Long> getBibliographEntryNodes(Collection<String> bibEntries) {
-        List<Long> nodeIds = new ArrayList<>(bibEntries.size() + 1);
-        for (String bibId : bibEntries) {
+        // callers add the center to the list
+        final List<Long> nodeIds = new ArrayList<>(bibEntries.size() + 1);
+        nodeIds.addAll(inOrder(bibEntries, findBibliographyEntryNodes(bibEntries)));
+        return nodeIds;
+    }
+
+    private static List<Long> inOrder(Collection<String> keys, Map<String, Long> found) {
+        final List<Long> nodeIds = new ArrayList<>(found.size());
+        for (String key : keys) {
+            final Long nodeId = found.get(key);
+            if (nodeId != null) {
+                nodeIds.add(nodeId);
+            }
+        }
+        return nodeIds;
+    }
+
+    /*
+     * Takes what it can from the caches, then loads the rest in batches and caches what was found and what wasn't
+     */
+    private Map<String, Long> findNodes(Collection<String> keys, Cache<String, Long> found, Cache<String, Boolean> missing,
+                                        AtomicLong changes, String query, boolean numeric) {
+        final Map<String, Long> nodeIds = new HashMap<>(found.getAllPresent(keys));
+        final Set<String> misses = new LinkedHashSet<>();
+        for (String key : keys) {
+            if (!nodeIds.containsKey(key)) {
+                misses.add(key);
+            }
+        }
+        final Set<String> known = missing.getAllPresent(misses).keySet();
+        misses.removeAll(known);
+        Metrics.nodeLookup(Metrics.HIT, nodeIds.size());
+        Metrics.nodeLookup(Metrics.NEGATIVE_HIT, known.size());
+        Metrics.nodeLookup(Metrics.MISS, misses.size());
+        if (misses.isEmpty()) {
+            return nodeIds;
+        }
+
+        final long before = changes.get();
+        final List<String> batch = new ArrayList<>(misses);
+        final Map<String, Long> loaded;
+        if (batch.size() <= BATCH_SIZE) {
+            loaded = load(batch, query, numeric);
+        } else {
+            // Every worker reads in a transaction of its own
+            final List<Callable<Map<String, Long>>> loads = new ArrayList<>();
+            for (int start = 0; start < batch.size(); start += BATCH_SIZE) {
+                final List<String> chunk = batch.subList(start, Math.min(batch.size(), start + BATCH_SIZE));
+                loads.add(new Callable<Map<String, Long>>() {
+                    public Map<String, Long> call() {
+                        try (Transaction tx = db.beginTx()) {
+                            final Map<String, Long> chunkNodeIds = load(chunk, query, numeric);
+                            tx.success();
+                            return chunkNodeIds;
+                        }
+                    }
+                });
+            }
+            loaded = new HashMap<>();
+            for (Map<String, Long> chunkNodeIds : Workers.invokeAll(loads)) {
+                loaded.putAll(chunkNodeIds);
+            }
+        }
+
+        found.putAll(loaded);
+        nodeIds.putAll(loaded);
+        if (changes.get() == before) {
+            for (String key : misses) {
+                if (!loaded.containsKey(key)) {
+                    missing.put(key, Boolean.TRUE);
+                }
+            }
+        }
+        return nodeIds;
+    }
+
+    /*
+     * Seeks the index once for all the keys, bibliography entry ids are numbers
+     */
+    private Map<String, Long> load(List<String> keys, String query, boolean numeric) {
+        final Map<String, Object> values = new HashMap<>(keys.size() * 2);
+        for (String key : keys) {
             try {
-                nodeIds.add(getBibliographEntryNode(bibId));
-            } catch (ExecutionException e) {
-                continue;
+                values.put(key, numeric ? Long.valueOf(key) : key);
+            } catch (NumberFormatException e) {
+                // can't be found
+            }
+        }
+        final Map<String, Long> nodeIds = new HashMap<>(keys.size() * 2);
+        if (values.isEmpty()) {
+            return nodeIds;
+        }
+        final Map<Object, Long> byValue = new HashMap<>(keys.size() * 2);
+        final Map<String, Object> params = new HashMap<>();
+        params.put("keys", new ArrayList<>(new LinkedHashSet<>(values.values())));
+        try (Result result = db.execute(query, params)) {
+            while (result.hasNext()) {
+                final Map<String, Object> row = result.next();
+                final Object value = row.get("key");
+                final Object key = numeric && value instanceof Number ? (Object) ((Number) value).longValue() : value;
+                if (!byValue.containsKey(key)) {
+                    byValue.put(key, ((Number) row.get("id")).longValue());
+                }
+            }
+        }
+        for (Map.Entry<String, Object> value : values.entrySet()) {
+            final Long nodeId = byValue.get(value.getValue());
+            if (nodeId != null) {
+                nodeIds.put(value.getKey(), nodeId);
             }
         }
         return nodeIds;
@@ -0,0 +1,311 @@
+package com.maxdemarzi.shortest;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Open addressing hash table from strings to node ids, kept off-heap so it holds no object per entry however
+ * many keys it has.
+ *
+ * Keys are stored UTF-8 encoded in direct buffers, one after the other, each after its length. The slots are
+ * other direct buffers, 16 bytes each: the node id, then the top bits of the hash of the key over the offset of the
+ * key (0 for an empty slot, -1 for a removed one). Lookups probe linearly from the hash. The table doubles once it
+ * is half full, dropping the removed keys as it goes.
+ *
+ * A direct buffer holds at most 2GB, so both are split in buffers of a fixed size once they grow past it: slots by
+ * their number, keys in chunks that a key never straddles. Offsets are longs, 40 bits of them address the keys.
+ *
+ * Lookups share a read lock, updates take the write lock.
+ */
+public final class NodeIdTable {
+
+    public static final long NONE = -1L;
+
+    private static final int SLOT_BYTES = 16;
+    private static final long EMPTY = 0L;
+    private static final long REMOVED = -1L;
+    private static final int MIN_CAPACITY = 1 << 10;
+
+    // 1GB buffers of 64M slots, and of keys
+    private static final int SHARD_BITS = 26;
+    private static final int CHUNK_BITS = 30;
+
+    private static final int OFFSET_BITS = 40;
+    private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+    private static final long HASH_MASK = ~OFFSET_MASK;
+
+    private final int shardBits;
+    private final int chunkBits;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private ByteBuffer[] slots;
+    private ByteBuffer[] keys;
+    private long mask;
+    private long size;
+    private long removed;
+
+    public NodeIdTable() {
+        this(SHARD_BITS, CHUNK_BITS);
+    }
+
+    /**
+     * @param shardBits: log2 of the slots per buffer
+     * @param chunkBits: log2 of the bytes of keys per buffer
+     */
+    NodeIdTable(int shardBits, int chunkBits) {
+        this.shardBits = shardBits;
+        this.chunkBits = chunkBits;
+        this.slots = allocateSlots(MIN_CAPACITY);
+        this.mask = MIN_CAPACITY - 1;
+        this.keys = new ByteBuffer[]{ByteBuffer.allocateDirect(Math.min(MIN_CAPACITY * 32, 1 << chunkBits))};
+        // offset 0 marks an empty slot, so no key starts there
+        this.keys[0].position(4);
+    }
+
+    /**
+     * @return the node id of the key, NONE if it has none
+     */
+    public long get(String key) {
+        final byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        final int hash = hash(bytes);
+        this.lock.readLock().lock();
+        try {
+            final long slot = find(bytes, hash);
+            return slot < 0 ? NONE : nodeId(slot);
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    public void put(String key, long nodeId) {
+        final byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        final int hash = hash(bytes);
+        this.lock.writeLock().lock();
+        try {
+            final long slot = find(bytes, hash);
+            if (slot >= 0) {
+                shard(slot).putLong(position(slot), nodeId);
+                return;
+            }
+            if ((this.size + this.removed + 1) * 2 > this.mask + 1) {
+                rehash(this.size + 1 > (this.mask + 1) / 4 ? (this.mask + 1) * 2 : this.mask + 1);
+            }
+            insert(hash, append(bytes), nodeId);
+            this.size++;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes the key, as long as it still belongs to the node
+     */
+    public void remove(String key, long nodeId) {
+        final byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        final int hash = hash(bytes);
+        this.lock.writeLock().lock();
+        try {
+            final long slot = find(bytes, hash);
+            if (slot >= 0 && nodeId(slot) == nodeId) {
+                shard(slot).putLong(position(slot) + 8, REMOVED);
+                this.size--;
+                this.removed++;
+            }
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    public long size() {
+        this.lock.readLock().lock();
+        try {
+            return this.size;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the off-heap bytes the table holds on to
+     */
+    public long bytes() {
+        this.lock.readLock().lock();
+        try {
+            long bytes = 0;
+            for (ByteBuffer shard : this.slots) {
+                bytes += shard.capacity();
+            }
+            for (ByteBuffer chunk : this.keys) {
+                bytes += chunk.capacity();
+            }
+            return bytes;
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /*
+     * @return the slot holding the key, or -1
+     */
+    private long find(byte[] bytes, int hash) {
+        long slot = slot(hash);
+        while (true) {
+            final long key = key(slot);
+            if (key == EMPTY) {
+                return -1;
+            }
+            if (key != REMOVED && (key & HASH_MASK) == hashBits(hash) && sameKey(key & OFFSET_MASK, bytes)) {
+                return slot;
+            }
+            slot = (slot + 1) & this.mask;
+        }
+    }
+
+    private boolean sameKey(long offset, byte[] bytes) {
+        final ByteBuffer chunk = this.keys[(int) (offset >>> this.chunkBits)];
+        final int position = (int) (offset & ((1L << this.chunkBits) - 1));
+        if (chunk.getInt(position) != bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            if (chunk.get(position + 4 + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void insert(int hash, long offset, long nodeId) {
+        long slot = slot(hash);
+        long key;
+        while ((key = key(slot)) != EMPTY && key != REMOVED) {
+            slot = (slot + 1) & this.mask;
+        }
+        if (key == REMOVED) {
+            this.removed--;
+        }
+        final ByteBuffer shard = shard(slot);
+        final int position = position(slot);
+        shard.putLong(position, nodeId);
+        shard.putLong(position + 8, hashBits(hash) | offset);
+    }
+
+    /*
+     * @return the offset of the key, appended to the last chunk, or to a new one if it doesn't fit
+     */
+    private long append(byte[] bytes) {
+        final int needed = 4 + bytes.length;
+        final int chunkBytes = 1 << this.chunkBits;
+        if (needed > chunkBytes) {
+            throw new IllegalArgumentException("A key of " + bytes.length + " bytes is too long for the node id table");
+        }
+        int last = this.keys.length - 1;
+        ByteBuffer chunk = this.keys[last];
+        if (chunk.remaining() < needed) {
+            if (chunk.capacity() < chunkBytes) {
+                final ByteBuffer grown = ByteBuffer.allocateDirect((int) Math.min(chunkBytes,
+                    Math.max((long) chunk.capacity() * 2, (long) chunk.position() + needed)));
+                chunk.flip();
+                grown.put(chunk);
+                chunk = this.keys[last] = grown;
+            }
+            if (chunk.remaining() < needed) {
+                if (((long) last + 1) << this.chunkBits > OFFSET_MASK) {
+                    throw new IllegalStateException("Too many keys for the node id table");
+                }
+                chunk = ByteBuffer.allocateDirect(chunkBytes);
+                this.keys = Arrays.copyOf(this.keys, ++last + 1);
+                this.keys[last] = chunk;
+            }
+        }
+        final long offset = ((long) last << this.chunkBits) | chunk.position();
+        chunk.putInt(bytes.length);
+        chunk.put(bytes);
+        return offset;
+    }
+
+    /*
+     * Moves the keys still in the table to new buffers, leaving the removed ones behind
+     */
+    private void rehash(long capacity) {
+        final ByteBuffer[] oldSlots = this.slots;
+        final ByteBuffer[] oldKeys = this.keys;
+        final long oldCapacity = this.mask + 1;
+        final int chunkMask = (1 << this.chunkBits) - 1;
+
+        this.slots = allocateSlots(capacity);
+        this.mask = capacity - 1;
+        this.keys = new ByteBuffer[]{ByteBuffer.allocateDirect(oldKeys.length > 1 ? 1 << this.chunkBits : Math.max(oldKeys[0].position(), 4))};
+        this.keys[0].position(4);
+        this.removed = 0;
+
+        for (long slot = 0; slot < oldCapacity; slot++) {
+            final ByteBuffer shard = oldSlots[(int) (slot >>> this.shardBits)];
+            final int position = (int) (slot & ((1L << this.shardBits) - 1)) * SLOT_BYTES;
+            final long key = shard.getLong(position + 8);
+            if (key != EMPTY && key != REMOVED) {
+                final long offset = key & OFFSET_MASK;
+                final ByteBuffer chunk = oldKeys[(int) (offset >>> this.chunkBits)];
+                final int start = (int) offset & chunkMask;
+                final byte[] bytes = new byte[chunk.getInt(start)];
+                for (int i = 0; i < bytes.length; i++) {
+                    bytes[i] = chunk.get(start + 4 + i);
+                }
+                // the slot comes from the low bits of the hash, which the slot doesn't keep
+                insert(hash(bytes), append(bytes), shard.getLong(position));
+            }
+        }
+    }
+
+    private ByteBuffer[] allocateSlots(long capacity) {
+        final long perShard = Math.min(capacity, 1L << this.shardBits);
+        final ByteBuffer[] shards = new ByteBuffer[(int) (capacity / perShard)];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = ByteBuffer.allocateDirect((int) perShard * SLOT_BYTES);
+        }
+        return shards;
+    }
+
+    private ByteBuffer shard(long slot) {
+        return this.slots[(int) (slot >>> this.shardBits)];
+    }
+
+    private int position(long slot) {
+        return (int) (slot & ((1L << this.shardBits) - 1)) * SLOT_BYTES;
+    }
+
+    private long nodeId(long slot) {
+        return shard(slot).getLong(position(slot));
+    }
+
+    private long key(long slot) {
+        return shard(slot).getLong(position(slot) + 8);
+    }
+
+    private long slot(int hash) {
+        return (hash & 0xffffffffL) & this.mask;
+    }
+
+    /*
+     * The high bits of the hash, the low ones pick the slot
+     */
+    private static long hashBits(int hash) {
+        return (long) (hash >>> (OFFSET_BITS - 32)) << OFFSET_BITS;
+    }
+
+    private static int hash(byte[] bytes) {
+        // FNV-1a, finished with murmur3's mix so the low bits pick the slot well
+        int hash = 0x811c9dc5;
+        for (byte b : bytes) {
+            hash = (hash ^ b) * 0x01000193;
+        }
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+}
@@ -0,0 +1,289 @@
+package com.maxdemarzi.shortest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.event.LabelEntry;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+import org.neo4j.kernel.GraphDatabaseAPI;
+import org.neo4j.kernel.impl.logging.LogService;
+import org.neo4j.logging.Log;
+
+/**
+ * Every Email by its email and every BibliographyEntry by its id, in off-heap tables, so resolving a request's
+ * nodes is a hash probe whatever the size of the graph.
+ *
+ * The tables are filled by a scan of both labels in the background. A TransactionEventHandler registered before
+ * the scan starts keeps them up to date: changes committed during the scan are held back and applied after it, so
+ * they win over whatever the scan read. Until the scan is done NodeCache keeps going to the label indexes, and
+ * for good if it fails, which is logged.
+ */
+public final class NodeIndex {
+
+    private static final String EMAIL = "email";
+    private static final String ID = "id";
+
+    /*
+     * A key to add to or remove from one of the tables
+     */
+    private static final class Change {
+        private final NodeIdTable table;
+        private final String key;
+        private final long nodeId;
+        private final boolean put;
+
+        private Change(NodeIdTable table, String key, long nodeId, boolean put) {
+            this.table = table;
+            this.key = key;
+            this.nodeId = nodeId;
+            this.put = put;
+        }
+
+        private void apply() {
+            if (this.put) {
+                this.table.put(this.key, this.nodeId);
+            } else {
+                this.table.remove(this.key, this.nodeId);
+            }
+        }
+    }
+
+    /**
+     * Registers for transaction events and starts scanning the graph on a daemon thread
+     */
+    public static NodeIndex start(GraphDatabaseService db) {
+        final NodeIndex index = new NodeIndex(db);
+        final Thread loader = new Thread(new Runnable() {
+            public void run() {
+                index.load();
+            }
+        }, "shortest-paths-node-index");
+        loader.setDaemon(true);
+        loader.start();
+        return index;
+    }
+
+    private final GraphDatabaseService db;
+    private final NodeIdTable emails;
+    private final NodeIdTable bibliographyEntries;
+    private final TransactionEventHandler<List<Change>> updater;
+    // Changes committed while the scan runs, null once it is done
+    private List<List<Change>> pending;
+    private volatile boolean loaded;
+    private volatile Throwable failure;
+
+    NodeIndex(GraphDatabaseService db) {
+        this.db = db;
+        this.emails = new NodeIdTable();
+        this.bibliographyEntries = new NodeIdTable();
+        this.pending = new ArrayList<>();
+
+        this.updater = new TransactionEventHandler<List<Change>>() {
+            public List<Change> beforeCommit(TransactionData data) throws Exception {
+                return changes(data);
+            }
+
+            public void afterCommit(TransactionData data, List<Change> changes) {
+                synchronized (NodeIndex.this) {
+                    if (pending != null) {
+                        pending.add(changes);
+                        return;
+                    }
+                }
+                for (Change change : changes) {
+                    change.apply();
+                }
+            }
+
+            public void afterRollback(TransactionData data, List<Change> changes) {
+            }
+        };
+        db.registerTransactionEventHandler(this.updater);
+    }
+
+    /**
+     * Scans both labels into the tables, then applies the changes committed in the meantime
+     */
+    void load() {
+        try (Transaction tx = this.db.beginTx()) {
+            try (ResourceIterator<Node> nodes = this.db.findNodes(Labels.Email)) {
+                while (nodes.hasNext()) {
+                    final Node node = nodes.next();
+                    final Object email = node.getProperty(EMAIL, null);
+                    if (email instanceof String) {
+                        this.emails.put((String) email, node.getId());
+                    }
+                }
+            }
+            try (ResourceIterator<Node> nodes = this.db.findNodes(Labels.BibliographyEntry)) {
+                while (nodes.hasNext()) {
+                    final Node node = nodes.next();
+                    final Object id = node.getProperty(ID, null);
+                    if (id instanceof Number) {
+                        this.bibliographyEntries.put(String.valueOf(((Number) id).longValue()), node.getId());
+                    }
+                }
+            }
+            tx.success();
+        } catch (RuntimeException | OutOfMemoryError e) {
+            // the index is never used, and stops collecting the changes it would have applied
+            stop();
+            synchronized (this) {
+                this.pending = null;
+            }
+            if (this.db.isAvailable(0)) {
+                this.failure = e;
+                log().error("The node index could not be loaded, nodes are looked up in the label indexes", e);
+            }
+            return;
+        }
+
+        synchronized (this) {
+            for (List<Change> changes : this.pending) {
+                for (Change change : changes) {
+                    change.apply();
+                }
+            }
+            this.pending = null;
+            this.loaded = true;
+        }
+    }
+
+    public boolean isLoaded() {
+        return this.loaded;
+    }
+
+    /**
+     * @return why the scan failed, null unless it did while the database was up
+     */
+    public Throwable failure() {
+        return this.failure;
+    }
+
+    /**
+     * @return the id of the Email node, NodeIdTable.NONE if there is none
+     */
+    public long emailNode(String email) {
+        return this.emails.get(email);
+    }
+
+    /**
+     * @return the id of the BibliographyEntry node, NodeIdTable.NONE if there is none
+     */
+    public long bibliographyEntryNode(String bibId) {
+        try {
+            // ids are numbers, "01" finds entry 1 like the label index does
+            return this.bibliographyEntries.get(String.valueOf(Long.parseLong(bibId)));
+        } catch (NumberFormatException e) {
+            return NodeIdTable.NONE;
+        }
+    }
+
+    /**
+     * @return the off-heap bytes both tables hold on to
+     */
+    public long bytes() {
+        return this.emails.bytes() + this.bibliographyEntries.bytes();
+    }
+
+    public void stop() {
+        try {
+            this.db.unregisterTransactionEventHandler(this.updater);
+        } catch (IllegalStateException e) {
+            // the database was shut down, which dropped the handler already
+        }
+    }
+
+    private Log log() {
+        return ((GraphDatabaseAPI) this.db).getDependencyResolver().resolveDependency(LogService.class).getUserLog(NodeIndex.class);
+    }
+
+    /*
+     * Removals come first, so a key moving from one node to another, or a property set twice, ends up right
+     */
+    private List<Change> changes(TransactionData data) {
+        final List<Change> removals = new ArrayList<>();
+        final List<Change> puts = new ArrayList<>();
+
+        // also lists the properties of deleted nodes
+        for (PropertyEntry<Node> entry : data.removedNodeProperties()) {
+            removal(removals, entry.key(), entry.previouslyCommitedValue(), entry.entity().getId());
+        }
+        for (PropertyEntry<Node> entry : data.assignedNodeProperties()) {
+            final long nodeId = entry.entity().getId();
+            removal(removals, entry.key(), entry.previouslyCommitedValue(), nodeId);
+            final NodeIdTable table = table(entry.key());
+            if (table != null && entry.entity().hasLabel(label(table))) {
+                addKey(puts, table, entry.value(), nodeId);
+            }
+        }
+        for (LabelEntry entry : data.removedLabels()) {
+            final NodeIdTable table = table(entry.label());
+            if (table != null && !data.isDeleted(entry.node())) {
+                addKey(removals, table, entry.node().getProperty(property(table), null), entry.node().getId());
+            }
+        }
+        for (LabelEntry entry : data.assignedLabels()) {
+            final NodeIdTable table = table(entry.label());
+            if (table != null) {
+                addKey(puts, table, entry.node().getProperty(property(table), null), entry.node().getId());
+            }
+        }
+
+        removals.addAll(puts);
+        return removals;
+    }
+
+    private void removal(List<Change> changes, String property, Object value, long nodeId) {
+        final NodeIdTable table = table(property);
+        if (table != null && value != null) {
+            final String key = key(table, value);
+            if (key != null) {
+                changes.add(new Change(table, key, nodeId, false));
+            }
+        }
+    }
+
+    private void addKey(List<Change> changes, NodeIdTable table, Object value, long nodeId) {
+        final String key = key(table, value);
+        if (key != null) {
+            changes.add(new Change(table, key, nodeId, true));
+        }
+    }
+
+    private NodeIdTable table(String property) {
+        if (EMAIL.equals(property)) {
+            return this.emails;
+        }
+        return ID.equals(property) ? this.bibliographyEntries : null;
+    }
+
+    private NodeIdTable table(Label label) {
+        if (Labels.Email.name().equals(label.name())) {
+            return this.emails;
+        }
+        return Labels.BibliographyEntry.name().equals(label.name()) ? this.bibliographyEntries : null;
+    }
+
+    private Label label(NodeIdTable table) {
+        return table == this.emails ? Labels.Email : Labels.BibliographyEntry;
+    }
+
+    private String property(NodeIdTable table) {
+        return table == this.emails ? EMAIL : ID;
+    }
+
+    private String key(NodeIdTable table, Object value) {
+        if (table == this.emails) {
+            return value instanceof String ? (String) value : null;
+        }
+        return value instanceof Number ? String.valueOf(((Number) value).longValue()) : null;
+    }
+}
@@ -0,0 +1,31 @@
+package com.maxdemarzi.shortest;
+
+import net.openhft.koloboke.collect.map.LongIntMap;
+
+/**
+ * The nodes a breadth first search has visited. Node ids are dense, so implementations keep them in arrays
+ * indexed by node id rather than hashing them.
+ */
+interface NodeSet {
+
+    public boolean contains(long nodeId);
+
+    /**
+     * @return true if the node wasn't in the set yet
+     */
+    public boolean add(long nodeId);
+
+    /**
+     * Adds the keys of the map, the nodes of a BFS level
+     */
+    public void addAll(LongIntMap nodes);
+
+    /**
+     * Adds every node in this set to the other one
+     */
+    public void addTo(NodeSet other);
+
+    public long size();
+
+    public void clear();
+}
@@ -0,0 +1,292 @@
+package com.maxdemarzi.shortest;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import net.openhft.koloboke.collect.LongCursor;
+import net.openhft.koloboke.collect.map.LongIntCursor;
+import net.openhft.koloboke.collect.map.hash.HashLongIntMap;
+import net.openhft.koloboke.collect.map.hash.HashLongIntMaps;
+import net.openhft.koloboke.collect.set.hash.HashLongSet;
+import net.openhft.koloboke.collect.set.hash.HashLongSets;
+
+import org.neo4j.kernel.GraphDatabaseAPI;
+
+/**
+ * The same level synchronous breadth first search as the handwritten BFS, with every level expanded on the
+ * shared ForkJoin pool in Workers.
+ *
+ * A level is split into chunks of nodes. Each worker expands its chunk inside its own transaction and statement
+ * (or its own view of the snapshot), counting paths into local maps, one per shard of node ids. The shards are then
+ * merged in parallel, shard by shard, so no map is ever written by two threads and the next level starts out
+ * already split the same way.
+ */
+public final class ParallelBFS {
+
+    public static interface PathsCallback {
+        /**
+         * @param search: the search that found the paths, call finish() on it to stop
+         * @param nodeId: the target that was reached
+         * @param length: the length of the shortest paths from the center to the target
+         * @param count: the number of shortest paths
+         */
+        public void found(final ParallelBFS search, final long nodeId, final int length, final int count);
+    }
+
+    private static final int SHARD_BITS = 6;
+    private static final int SHARDS = 1 << SHARD_BITS;
+    private static final int MIN_CHUNK = 4096;
+
+    private final GraphDatabaseAPI db;
+    private final AdjacencySnapshot snapshot;
+    private boolean finished;
+
+    private long expanded;
+    private long peakFrontier;
+    private long peakVisited;
+
+    /**
+     * @param snapshot: the snapshot to read relationships from, or null to read through the kernel
+     */
+    public ParallelBFS(GraphDatabaseAPI db, AdjacencySnapshot snapshot) {
+        this.db = db;
+        this.snapshot = snapshot;
+    }
+
+    public void finish() {
+        this.finished = true;
+    }
+
+    private static int shard(long nodeId) {
+        return (int) ((nodeId * 0x9E3779B97F4A7C15L) >>> (64 - SHARD_BITS));
+    }
+
+    private static HashLongIntMap[] newShards() {
+        final HashLongIntMap[] shards = new HashLongIntMap[SHARDS];
+        for (int i = 0; i < SHARDS; i++) {
+            shards[i] = HashLongIntMaps.newMutableMap();
+        }
+        return shards;
+    }
+
+    public void run(long centerNodeId, Collection<Long> bibliographyNodeIds, Collection<Long> targets, int maxLength, PathsCallback callback) {
+        run(centerNodeId, bibliographyNodeIds, targets, maxLength, Budget.UNLIMITED, callback);
+    }
+
+    /**
+     * Stops once the budget runs out, the level being expanded at that point is dropped, so every count reported is exact
+     */
+    public void run(long centerNodeId, Collection<Long> bibliographyNodeIds, Collection<Long> targets, int maxLength, Budget budget, PathsCallback callback) {
+        this.expanded = 0;
+        this.peakFrontier = 0;
+        this.peakVisited = 0;
+        try {
+            search(centerNodeId, bibliographyNodeIds, targets, maxLength, budget, callback);
+        } finally {
+            // the workers hand in the relationships they read themselves
+            budget.spent(this.expanded, 0, this.peakFrontier, this.peakVisited);
+        }
+    }
+
+    private void search(long centerNodeId, Collection<Long> bibliographyNodeIds, Collection<Long> targets, int maxLength, Budget budget, PathsCallback callback) {
+        final HashLongSet pending = HashLongSets.newMutableSet(targets);
+        final HashLongSet[] seen = new HashLongSet[SHARDS];
+        for (int i = 0; i < SHARDS; i++) {
+            seen[i] = HashLongSets.newMutableSet();
+        }
+        HashLongIntMap[] pathsToLastLevel = newShards();
+        pathsToLastLevel[shard(centerNodeId)].put(centerNodeId, 1);
+
+        int level = 1;
+        while (level <= maxLength && !this.finished && !pending.isEmpty() && !isEmpty(pathsToLastLevel)) {
+            this.peakFrontier = Math.max(this.peakFrontier, size(pathsToLastLevel));
+            if (budget.profile() != null) {
+                budget.profile().frontier(level - 1, size(pathsToLastLevel));
+            }
+            if (level < maxLength) {
+                final HashLongIntMap[] pathsToNextLevel = expand(pathsToLastLevel, seen, this.expanded, budget);
+                this.expanded += size(pathsToLastLevel);
+                this.peakVisited = Math.max(this.peakVisited, size(seen));
+                if (!budget.check(this.expanded, size(seen))) {
+                    return;
+                }
+
+                if (level == 1) {
+                    // Pretend there are length 1 paths to the bibliography entries
+                    for (Long bibId : bibliographyNodeIds) {
+                        if (bibId.longValue() != centerNodeId) {
+                            pathsToNextLevel[shard(bibId.longValue())].putIfAbsent(bibId.longValue(), 1);
+                        }
+                    }
+                }
+
+                // Report any targets on the new level, then stop searching for them
+                final LongCursor targetCursor = pending.cursor();
+                while (targetCursor.moveNext() && !this.finished) {
+                    final long nodeId = targetCursor.elem();
+                    final int paths = pathsToNextLevel[shard(nodeId)].get(nodeId);
+                    if (paths != 0) {
+                        targetCursor.remove();
+                        callback.found(this, nodeId, level, paths);
+                    }
+                }
+                pathsToLastLevel = pathsToNextLevel;
+            } else {
+                // Last level, count the paths from each remaining target's neighbors on the last level
+                final long[] nodeIds = pending.toLongArray();
+                final int[] paths = countLastLevel(nodeIds, pathsToLastLevel, seen, this.expanded, budget);
+                this.expanded += nodeIds.length;
+                if (budget.isExhausted()) {
+                    return;
+                }
+                for (int i = 0; i < nodeIds.length && !this.finished; i++) {
+                    if (paths[i] > 0) {
+                        callback.found(this, nodeIds[i], level, paths[i]);
+                    }
+                }
+            }
+
+            level++;
+        }
+    }
+
+    /*
+     * Counts the paths to the next level in chunks, then merges the chunks' shards and marks the expanded level as seen
+     */
+    private HashLongIntMap[] expand(final HashLongIntMap[] pathsToLastLevel, final HashLongSet[] seen, final long expanded, final Budget budget) {
+        final int size = (int) size(pathsToLastLevel);
+        final long[] nodeIds = new long[size];
+        final int[] counts = new int[size];
+        int i = 0;
+        for (HashLongIntMap shard : pathsToLastLevel) {
+            final LongIntCursor longIntCursor = shard.cursor();
+            while (longIntCursor.moveNext()) {
+                nodeIds[i] = longIntCursor.key();
+                counts[i++] = longIntCursor.value();
+            }
+        }
+
+        final List<Callable<HashLongIntMap[]>> chunks = new ArrayList<>();
+        final int chunkSize = chunkSize(size);
+        for (int from = 0; from < size; from += chunkSize) {
+            final int start = from;
+            final int end = Math.min(size, from + chunkSize);
+            chunks.add(new Callable<HashLongIntMap[]>() {
+                public HashLongIntMap[] call() {
+                    return Workers.withAdjacency(db, snapshot, budget, new Workers.AdjacencyWork<HashLongIntMap[]>() {
+                        public HashLongIntMap[] run(Adjacency adjacency) {
+                            final HashLongIntMap[] pathsToNextLevel = newShards();
+                            long relationships = 0;
+                            for (int i = start; i < end && budget.check(expanded + i - start + 1, 0); i++) {
+                                final AdjacencyCursor relationshipCursor = adjacency.relationships(nodeIds[i]);
+                                while (relationshipCursor.next()) {
+                                    relationships++;
+                                    final long otherId = relationshipCursor.otherNode();
+                                    final int shard = shard(otherId);
+                                    if (!seen[shard].contains(otherId) && !pathsToLastLevel[shard].containsKey(otherId)) {
+                                        pathsToNextLevel[shard].addValue(otherId, counts[i], 0);
+                                    }
+                                }
+                            }
+                            budget.spent(0, relationships, 0, 0);
+                            return pathsToNextLevel;
+                        }
+                    });
+                }
+            });
+        }
+        final List<HashLongIntMap[]> chunkLevels = Workers.invokeAll(chunks);
+
+        final List<Callable<HashLongIntMap>> merges = new ArrayList<>();
+        for (int s = 0; s < SHARDS; s++) {
+            final int shard = s;
+            merges.add(new Callable<HashLongIntMap>() {
+                public HashLongIntMap call() {
+                    seen[shard].addAll(pathsToLastLevel[shard].keySet());
+                    HashLongIntMap merged = null;
+                    for (HashLongIntMap[] chunkLevel : chunkLevels) {
+                        if (merged == null || chunkLevel[shard].size() > merged.size()) {
+                            merged = chunkLevel[shard];
+                        }
+                    }
+                    for (HashLongIntMap[] chunkLevel : chunkLevels) {
+                        if (chunkLevel[shard] == merged) {
+                            continue;
+                        }
+                        final LongIntCursor longIntCursor = chunkLevel[shard].cursor();
+                        while (longIntCursor.moveNext()) {
+                            merged.addValue(longIntCursor.key(), longIntCursor.value(), 0);
+                        }
+                    }
+                    return merged == null ? HashLongIntMaps.newMutableMap() : merged;
+                }
+            });
+        }
+        return Workers.invokeAll(merges).toArray(new HashLongIntMap[SHARDS]);
+    }
+
+    private int[] countLastLevel(final long[] nodeIds, final HashLongIntMap[] pathsToLastLevel, final HashLongSet[] seen, final long expanded, final Budget budget) {
+        final int[] paths = new int[nodeIds.length];
+        final List<Callable<Void>> chunks = new ArrayList<>();
+        final int chunkSize = chunkSize(nodeIds.length);
+        for (int from = 0; from < nodeIds.length; from += chunkSize) {
+            final int start = from;
+            final int end = Math.min(nodeIds.length, from + chunkSize);
+            chunks.add(new Callable<Void>() {
+                public Void call() {
+                    return Workers.withAdjacency(db, snapshot, budget, new Workers.AdjacencyWork<Void>() {
+                        public Void run(Adjacency adjacency) {
+                            long relationships = 0;
+                            for (int i = start; i < end && budget.check(expanded + i - start + 1, 0); i++) {
+                                if (seen[shard(nodeIds[i])].contains(nodeIds[i])) {
+                                    continue;
+                                }
+                                final AdjacencyCursor relationshipCursor = adjacency.relationships(nodeIds[i]);
+                                while (relationshipCursor.next()) {
+                                    relationships++;
+                                    final long otherId = relationshipCursor.otherNode();
+                                    paths[i] += pathsToLastLevel[shard(otherId)].get(otherId);
+                                }
+                            }
+                            budget.spent(0, relationships, 0, 0);
+                            return null;
+                        }
+                    });
+                }
+            });
+        }
+        Workers.invokeAll(chunks);
+        return paths;
+    }
+
+    private static int chunkSize(int size) {
+        return Math.max(MIN_CHUNK, (size + Workers.parallelism() * 4 - 1) / (Workers.parallelism() * 4));
+    }
+
+    private static long size(HashLongIntMap[] shards) {
+        long size = 0;
+        for (HashLongIntMap shard : shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    private static long size(HashLongSet[] shards) {
+        long size = 0;
+        for (HashLongSet shard : shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    private static boolean isEmpty(HashLongIntMap[] shards) {
+        for (HashLongIntMap shard : shards) {
+            if (!shard.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,134 @@
+package com.maxdemarzi.shortest;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import net.openhft.koloboke.collect.map.IntIntMap;
+import net.openhft.koloboke.collect.set.LongSet;
+import net.openhft.koloboke.collect.set.hash.HashLongSets;
+
+import org.neo4j.kernel.GraphDatabaseAPI;
+import org.neo4j.kernel.api.cursor.NodeItem;
+
+/**
+ * Lowest cost paths from a set of start nodes to many targets, with the backward searches spread over the workers.
+ *
+ * The forward search runs first, on the calling thread, until it is half way to max cost (or its queue gets big,
+ * when the start nodes are hubs), reporting the targets it explores. From then on it is frozen and only read.
+ * The remaining targets are split into chunks, each searched backward against the frozen forward search by one
+ * worker, in its own transaction.
+ *
+ * The callback is called from the workers, so it has to be thread safe. Calling finish() on the traversal it is
+ * given stops every worker.
+ */
+public final class ParallelDijkstra {
+
+    private static final int MAX_FORWARD_QUEUE = 1 << 16;
+
+    private final GraphDatabaseAPI db;
+    private final AdjacencySnapshot snapshot;
+    private final IntIntMap relationshipCosts;
+    private final int maxCost;
+    private volatile boolean finished;
+
+    /**
+     * @param snapshot: the snapshot to read relationships from, or null to read through the kernel
+     */
+    public ParallelDijkstra(GraphDatabaseAPI db, AdjacencySnapshot snapshot, IntIntMap relationshipCosts, int maxCost) {
+        this.db = db;
+        this.snapshot = snapshot;
+        this.relationshipCosts = relationshipCosts;
+        this.maxCost = maxCost;
+    }
+
+    public void run(Map<Long, Integer> startNodes, Collection<Long> targets, Traversal.NodeCallback callback) {
+        run(startNodes, targets, Budget.UNLIMITED, callback);
+    }
+
+    /**
+     * Stops every worker once the budget runs out, the forward search and each backward search count their own steps
+     */
+    public void run(final Map<Long, Integer> startNodes, Collection<Long> targets, final Budget budget, final Traversal.NodeCallback callback) {
+        final LongSet remaining = HashLongSets.newMutableSet(targets);
+        final Traversal.NodeCallback stoppable = new Traversal.NodeCallback() {
+            public void explored(Traversal traversal, NodeItem node, long nodeId, int cost, int paths) {
+                if (finished) {
+                    traversal.finish();
+                    return;
+                }
+                callback.explored(traversal, node, nodeId, cost, paths);
+                if (traversal.isFinished()) {
+                    finished = true;
+                }
+            }
+        };
+
+        final Dijkstra forward = Workers.withAdjacency(this.db, this.snapshot, budget, new Workers.AdjacencyWork<Dijkstra>() {
+            public Dijkstra run(Adjacency adjacency) {
+                int maxStartCost = 0;
+                for (Integer cost : startNodes.values()) {
+                    maxStartCost = Math.max(maxStartCost, cost.intValue());
+                }
+                final Dijkstra forward = new Dijkstra(adjacency, relationshipCosts, startNodes, maxCost, new Traversal.NodeCallback() {
+                    public void explored(Traversal traversal, NodeItem node, long nodeId, int cost, int paths) {
+                        if (remaining.removeLong(nodeId)) {
+                            stoppable.explored(traversal, node, nodeId, cost, paths);
+                        }
+                    }
+                });
+                forward.useProfile(budget.profile());
+                long steps = 0;
+                while (!finished && !remaining.isEmpty() && !forward.isFinished() && keepGoing(forward, maxStartCost, maxCost)) {
+                    forward.step();
+                    if (!budget.check(++steps, forward.visited())) {
+                        break;
+                    }
+                }
+                budget.spent(steps, forward.relationships(), forward.peakFrontier(), forward.visited());
+                return forward;
+            }
+        });
+        final int frontier = forward.peekCost();
+        if (this.finished || budget.isExhausted() || remaining.isEmpty() || frontier == Integer.MAX_VALUE) {
+            return;
+        }
+
+        final long[] targetIds = remaining.toLongArray();
+        final int chunkSize = Math.max(1, (targetIds.length + Workers.parallelism() * 4 - 1) / (Workers.parallelism() * 4));
+        final List<Callable<Void>> chunks = new ArrayList<>();
+        for (int from = 0; from < targetIds.length; from += chunkSize) {
+            final List<Long> chunk = new ArrayList<>();
+            for (int i = from; i < Math.min(targetIds.length, from + chunkSize); i++) {
+                chunk.add(targetIds[i]);
+            }
+            chunks.add(new Callable<Void>() {
+                public Void call() {
+                    if (finished || budget.isExhausted()) {
+                        return null;
+                    }
+                    return Workers.withAdjacency(db, snapshot, budget, new Workers.AdjacencyWork<Void>() {
+                        public Void run(Adjacency adjacency) {
+                            new BidirectionalDijkstra(adjacency, relationshipCosts, forward, frontier, chunk, maxCost, stoppable).run(budget);
+                            return null;
+                        }
+                    });
+                }
+            });
+        }
+        Workers.invokeAll(chunks);
+    }
+
+    /*
+     * The forward search stops half way, once the start nodes are behind it
+     */
+    static boolean keepGoing(Dijkstra forward, int maxStartCost, int maxCost) {
+        final int cost = forward.peekCost();
+        if (cost == Integer.MAX_VALUE) {
+            return false;
+        }
+        return cost <= maxStartCost || (cost <= maxCost / 2 && forward.queueSize() < MAX_FORWARD_QUEUE);
+    }
+}
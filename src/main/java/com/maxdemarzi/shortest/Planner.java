@@ -0,0 +1,257 @@
+package com.maxdemarzi.shortest;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.kernel.GraphDatabaseAPI;
+
+/**
+ * Picks the engine that answers /query_either, by estimating how many relationships each would read from the
+ * degrees of the center, its bibliography entries and the targets, and from how fast a search grows in this graph.
+ *
+ * How fast a search grows is the average degree of the node a relationship leads to, minus the relationship it
+ * came in by: E[d^2] / E[d] - 1 over a sample of node ids, below the snapshot's node count or, through the kernel,
+ * the count of nodes in the store. Ids that aren't in use count as degree 0, which leaves the ratio alone. The
+ * sample is taken again once the graph changed and the last one is a minute old.
+ *
+ * Reading d relationships at the start of a search and multiplying by the growth rate for every level gives
+ * the relationships read per level, never more than the graph has. Then, for a search of maxLength:
+ *
+ *  - bfs: every level from the center up to maxLength - 1, the bibliography entries one level later, then the
+ *    relationships of every target
+ *  - bidirectional_bfs: the center's side halfway, shared by all targets, and every target's side the other half
+ *  - dijkstra: one backward search from all the targets against the forward search, which ends up growing
+ *    whichever side is cheaper, so the best split between the two. Its queue costs more per relationship.
+ *  - builtin: a search from both ends for every target and every bibliography entry, through the core API,
+ *    which costs several times more per relationship. Only through the kernel.
+ *
+ * Each estimate is weighed by what reading a relationship costs the engine, the cheapest wins. Estimates ignore
+ * searches that stop early, having found every target. Metrics compares the estimate of the engine that ran with
+ * what it read, to tune the weights by. With the default weights the built-in algorithm, which repeats the
+ * center's side for every target, never beats the bidirectional BFS, it takes a lower weight to pick it.
+ */
+public final class Planner {
+
+    // What reading a relationship costs each engine, relative to the others
+    public static final String DEFAULT_WEIGHTS = "bfs:1,bidirectional_bfs:1,dijkstra:2,builtin:4";
+    private static volatile double[] weights = weights(DEFAULT_WEIGHTS, new double[Plan.ENGINES.length]);
+
+    private static final int SAMPLE_SIZE = 1024;
+    private static final int MAX_TARGETS_READ = 256;
+    private static final long RESAMPLE_AFTER_MILLIS = 60_000;
+
+    private static Planner instance = null;
+
+    public static synchronized Planner getInstance(GraphDatabaseService db) {
+        if (instance == null || instance.db != db) {
+            instance = new Planner((GraphDatabaseAPI) db);
+        }
+        return instance;
+    }
+
+    /**
+     * @param engineWeights: engine:weight pairs separated by commas, engines left out keep their default weight
+     * @throws IllegalArgumentException if an engine is unknown or a weight isn't a positive number
+     */
+    public static void setWeights(String engineWeights) {
+        weights = weights(engineWeights, weights(DEFAULT_WEIGHTS, new double[Plan.ENGINES.length]));
+    }
+
+    private static double[] weights(String engineWeights, double[] parsed) {
+        for (String engineWeight : engineWeights.split(",")) {
+            if (engineWeight.trim().isEmpty()) {
+                continue;
+            }
+            final String[] pair = engineWeight.split(":");
+            final int engine = pair.length == 2 ? Arrays.asList(Plan.ENGINES).indexOf(pair[0].trim()) : -1;
+            if (engine < 0) {
+                throw new IllegalArgumentException("Not an engine:weight pair: " + engineWeight);
+            }
+            final double weight = Double.parseDouble(pair[1].trim());
+            if (!(weight > 0)) {
+                throw new IllegalArgumentException("Not a positive weight: " + engineWeight);
+            }
+            parsed[engine] = weight;
+        }
+        return parsed;
+    }
+
+    private final GraphDatabaseAPI db;
+    private volatile Statistics statistics;
+
+    private Planner(GraphDatabaseAPI db) {
+        this.db = db;
+    }
+
+    /**
+     * How the graph looks to a search
+     */
+    static final class Statistics {
+        final double growth;
+        final double entries;
+        final long lastTxId;
+        final long sampledAt;
+
+        /**
+         * @param growth: the nodes a node on one level leads to on the next
+         * @param entries: the relationships in the graph, every relationship counted at both of its ends
+         */
+        Statistics(double growth, double entries, long lastTxId, long sampledAt) {
+            this.growth = growth;
+            this.entries = entries;
+            this.lastTxId = lastTxId;
+            this.sampledAt = sampledAt;
+        }
+    }
+
+    /**
+     * The engine picked and what every engine was expected to read
+     */
+    public static final class Plan {
+        static final String[] ENGINES = {Metrics.BFS, Metrics.BIDIRECTIONAL_BFS, Metrics.DIJKSTRA, Metrics.BUILTIN};
+
+        private final String engine;
+        private final long[] estimates;
+
+        private Plan(String engine, long[] estimates) {
+            this.engine = engine;
+            this.estimates = estimates;
+        }
+
+        public String engine() {
+            return this.engine;
+        }
+
+        /**
+         * @return the relationships the engine was expected to read, -1 if it couldn't run
+         */
+        public long estimate(String engine) {
+            for (int i = 0; i < ENGINES.length; i++) {
+                if (ENGINES[i].equals(engine)) {
+                    return this.estimates[i];
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * @return the relationships the engine picked was expected to read
+         */
+        public long predicted() {
+            return estimate(this.engine);
+        }
+    }
+
+    /**
+     * @param adjacency: where the search will read relationships from, the built-in algorithm only runs on a KernelAdjacency
+     * @param nodeIds: how many node ids to sample degrees from
+     */
+    public Plan plan(Adjacency adjacency, long nodeIds, long centerNodeId, List<Long> bibliographyNodeIds, Collection<Long> targetNodeIds, int maxLength) {
+        final long[] bibliographyDegrees = new long[bibliographyNodeIds.size()];
+        for (int i = 0; i < bibliographyDegrees.length; i++) {
+            bibliographyDegrees[i] = adjacency.degree(bibliographyNodeIds.get(i));
+        }
+
+        // A few hundred targets tell their average degree well enough, the rest are assumed to have it too
+        final long[] targetDegrees = new long[targetNodeIds.size()];
+        long sum = 0;
+        int read = 0;
+        for (Long targetNodeId : targetNodeIds) {
+            if (read == MAX_TARGETS_READ) {
+                break;
+            }
+            targetDegrees[read] = adjacency.degree(targetNodeId);
+            sum += targetDegrees[read++];
+        }
+        for (int i = read; i < targetDegrees.length; i++) {
+            targetDegrees[i] = sum / read;
+        }
+
+        return plan(statistics(adjacency, nodeIds), adjacency instanceof KernelAdjacency,
+            adjacency.degree(centerNodeId), bibliographyDegrees, targetDegrees, maxLength);
+    }
+
+    static Plan plan(Statistics statistics, boolean builtin, long centerDegree, long[] bibliographyDegrees, long[] targetDegrees, int maxLength) {
+        long bibliographyDegree = 0;
+        for (long degree : bibliographyDegrees) {
+            bibliographyDegree += degree;
+        }
+        final int centerHalf = (maxLength + 1) / 2;
+        final int targetHalf = maxLength / 2;
+
+        double bfs = read(statistics, centerDegree, maxLength - 1) + read(statistics, bibliographyDegree, maxLength - 2);
+        double bidirectional = read(statistics, centerDegree + bibliographyDegree, centerHalf);
+        double viaBuiltin = 0;
+        for (long targetDegree : targetDegrees) {
+            bfs += targetDegree;
+            bidirectional += read(statistics, targetDegree, targetHalf);
+            viaBuiltin += read(statistics, centerDegree, centerHalf) + read(statistics, targetDegree, targetHalf);
+            for (long degree : bibliographyDegrees) {
+                viaBuiltin += read(statistics, degree, maxLength / 2) + read(statistics, targetDegree, (maxLength - 1) / 2);
+            }
+        }
+        double dijkstra = Double.MAX_VALUE;
+        for (int forward = 1; forward <= Math.max(1, maxLength - 1); forward++) {
+            double split = read(statistics, centerDegree + bibliographyDegree, forward);
+            for (long targetDegree : targetDegrees) {
+                split += read(statistics, targetDegree, maxLength - forward);
+            }
+            dijkstra = Math.min(dijkstra, split);
+        }
+
+        final double[] estimates = {bfs, bidirectional, dijkstra, builtin ? viaBuiltin : -1};
+        final double[] weights = Planner.weights;
+        int best = 0;
+        final long[] rounded = new long[estimates.length];
+        for (int i = 0; i < estimates.length; i++) {
+            rounded[i] = estimates[i] < 0 ? -1 : Math.round(estimates[i]);
+            if (estimates[i] >= 0 && estimates[i] * weights[i] < estimates[best] * weights[best]) {
+                best = i;
+            }
+        }
+        return new Plan(Plan.ENGINES[best], rounded);
+    }
+
+    /*
+     * @return the relationships read expanding the first levels of a search that reads degree relationships at its start
+     */
+    private static double read(Statistics statistics, double degree, int levels) {
+        double read = 0;
+        double level = degree;
+        for (int i = 0; i < levels && level > 0; i++) {
+            read += Math.min(level, statistics.entries);
+            level *= statistics.growth;
+        }
+        return read;
+    }
+
+    private Statistics statistics(Adjacency adjacency, long nodeIds) {
+        final Statistics current = this.statistics;
+        final long now = System.currentTimeMillis();
+        if (current != null && (current.lastTxId == AdjacencyProvider.lastCommittedTxId(this.db)
+                || now - current.sampledAt < RESAMPLE_AFTER_MILLIS)) {
+            return current;
+        }
+        return this.statistics = sample(adjacency, nodeIds, now);
+    }
+
+    private Statistics sample(Adjacency adjacency, long nodeIds, long now) {
+        final long lastTxId = AdjacencyProvider.lastCommittedTxId(this.db);
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        double degrees = 0;
+        double squares = 0;
+        for (int i = 0; i < SAMPLE_SIZE && nodeIds > 0; i++) {
+            final long degree = adjacency.degree(random.nextLong(nodeIds));
+            degrees += degree;
+            squares += (double) degree * degree;
+        }
+        if (degrees == 0) {
+            // nothing to go by, searches grow as fast as the degrees they start with
+            return new Statistics(1.0, Double.MAX_VALUE, lastTxId, now);
+        }
+        return new Statistics(Math.max(1.0, squares / degrees - 1), degrees / SAMPLE_SIZE * nodeIds, lastTxId, now);
+    }
+}
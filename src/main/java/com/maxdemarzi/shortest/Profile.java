@@ -0,0 +1,218 @@
+package com.maxdemarzi.shortest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import net.openhft.koloboke.collect.map.IntLongCursor;
+import net.openhft.koloboke.collect.map.hash.HashIntLongMap;
+import net.openhft.koloboke.collect.map.hash.HashIntLongMaps;
+
+import org.codehaus.jackson.JsonGenerator;
+
+/**
+ * What the searches of a request with "profile": true did, sent as the last line of its response: how many nodes
+ * each BFS level or Dijkstra cost band held, the relationships read by type, and how long went into resolving
+ * emails and bibliography entries, expanding and writing results. When the Planner picked the engine, the
+ * relationships it expected every engine to read too.
+ *
+ * The request's Budget carries it to the searches, which leave it alone unless there is one. Searches through
+ * the same Adjacency count relationship types by wrapping it, each wrapper belongs to one thread and they are
+ * only added up once the searches are done. Levels and bands can be added to from the workers of a parallel search.
+ *
+ * A bidirectional search adds the levels of both sides, each by its distance from where that side started.
+ */
+public final class Profile {
+
+    private static final int COST_BANDS = 16;
+
+    private final int bandWidth;
+    private final AtomicLongArray frontier;
+    private final List<CountingAdjacency> adjacencies = new ArrayList<>();
+    private final AtomicLong writing = new AtomicLong();
+    private final long started;
+    private long mark;
+    private long resolving;
+    private Planner.Plan plan;
+
+    /**
+     * @param maxLength: the longest path searched for, each level gets its own entry
+     * @param started: System.nanoTime() when the request came in, edge emails are resolved as its body is read
+     */
+    public static Profile forLevels(int maxLength, long started) {
+        return new Profile(maxLength + 1, 1, started);
+    }
+
+    /**
+     * @param maxCost: the most a path may cost, split into COST_BANDS bands of equal width
+     * @param started: System.nanoTime() when the request came in, edge emails are resolved as its body is read
+     */
+    public static Profile forCosts(int maxCost, long started) {
+        final int bandWidth = Math.max(1, (maxCost + COST_BANDS) / COST_BANDS);
+        return new Profile(maxCost / bandWidth + 1, bandWidth, started);
+    }
+
+    private Profile(int bands, int bandWidth, long started) {
+        this.bandWidth = bandWidth;
+        this.frontier = new AtomicLongArray(Math.max(1, bands));
+        this.started = started;
+        this.mark = this.started;
+    }
+
+    /**
+     * @return the adjacency counting the relationships it reads by type if the request is profiled, otherwise as is
+     */
+    public static Adjacency adjacency(Budget budget, Adjacency adjacency) {
+        final Profile profile = budget.profile();
+        if (profile == null) {
+            return adjacency;
+        }
+        final CountingAdjacency counting = new CountingAdjacency(adjacency);
+        synchronized (profile.adjacencies) {
+            profile.adjacencies.add(counting);
+        }
+        return counting;
+    }
+
+    /**
+     * @param distance: the BFS level, or the cost a Dijkstra search explored nodes at
+     * @param nodes: how many nodes were at that distance
+     */
+    public void frontier(int distance, long nodes) {
+        final int band = distance / this.bandWidth;
+        if (band >= 0 && band < this.frontier.length()) {
+            this.frontier.addAndGet(band, nodes);
+        }
+    }
+
+    /**
+     * Ends the time spent resolving emails and bibliography entries to nodes, which started when the last one ended
+     * or when the request came in, reading its body included
+     */
+    public void resolved() {
+        final long now = System.nanoTime();
+        this.resolving += now - this.mark;
+        this.mark = now;
+    }
+
+    /**
+     * @param plan: how the Planner picked the engine
+     */
+    public void plan(Planner.Plan plan) {
+        this.plan = plan;
+    }
+
+    /**
+     * @param nanos: how long writing a result took, results can be written from the workers of a parallel search
+     */
+    public void wrote(long nanos) {
+        this.writing.addAndGet(nanos);
+    }
+
+    /**
+     * Writes the profile as a single object, the time not spent resolving or writing counts as expanding
+     *
+     * @param engine: the search that answered
+     * @param typeNames: the names of the relationship type ids, by id
+     */
+    public void write(JsonGenerator jg, String engine, TypeNames typeNames) throws IOException {
+        final long total = System.nanoTime() - this.started;
+        final long writing = this.writing.get();
+
+        final HashIntLongMap relationships = HashIntLongMaps.newMutableMap();
+        synchronized (this.adjacencies) {
+            for (CountingAdjacency adjacency : this.adjacencies) {
+                final IntLongCursor cursor = adjacency.types.cursor();
+                while (cursor.moveNext()) {
+                    relationships.addValue(cursor.key(), cursor.value(), 0L);
+                }
+            }
+        }
+        int bands = this.frontier.length();
+        while (bands > 1 && this.frontier.get(bands - 1) == 0) {
+            bands--;
+        }
+
+        jg.writeStartObject();
+        jg.writeObjectFieldStart("profile");
+        jg.writeStringField("engine", engine);
+        if (this.plan != null) {
+            jg.writeObjectFieldStart("estimates");
+            for (String planned : Planner.Plan.ENGINES) {
+                if (this.plan.estimate(planned) >= 0) {
+                    jg.writeNumberField(planned, this.plan.estimate(planned));
+                }
+            }
+            jg.writeEndObject();
+        }
+        jg.writeArrayFieldStart(this.bandWidth == 1 ? "levels" : "cost_bands");
+        for (int band = 0; band < bands; band++) {
+            jg.writeNumber(this.frontier.get(band));
+        }
+        jg.writeEndArray();
+        if (this.bandWidth != 1) {
+            jg.writeNumberField("cost_band_width", this.bandWidth);
+        }
+        jg.writeObjectFieldStart("relationships");
+        final IntLongCursor cursor = relationships.cursor();
+        while (cursor.moveNext()) {
+            jg.writeNumberField(typeNames.name(cursor.key()), cursor.value());
+        }
+        jg.writeEndObject();
+        jg.writeNumberField("resolve_us", this.resolving / 1000);
+        jg.writeNumberField("expand_us", Math.max(0, total - this.resolving - writing) / 1000);
+        jg.writeNumberField("write_us", writing / 1000);
+        jg.writeEndObject();
+        jg.writeEndObject();
+        jg.writeRaw("\n");
+    }
+
+    public static interface TypeNames {
+        public String name(int typeId);
+    }
+
+    /*
+     * Counts the relationships read through it by type
+     */
+    private static final class CountingAdjacency implements Adjacency, AdjacencyCursor {
+        private final Adjacency adjacency;
+        private final HashIntLongMap types = HashIntLongMaps.newMutableMap();
+        private AdjacencyCursor cursor;
+
+        private CountingAdjacency(Adjacency adjacency) {
+            this.adjacency = adjacency;
+        }
+
+        public AdjacencyCursor relationships(long nodeId) {
+            this.cursor = this.adjacency.relationships(nodeId);
+            return this;
+        }
+
+        public AdjacencyCursor relationships(long nodeId, int[] types) {
+            this.cursor = this.adjacency.relationships(nodeId, types);
+            return this;
+        }
+
+        public int degree(long nodeId) {
+            return this.adjacency.degree(nodeId);
+        }
+
+        public boolean next() {
+            if (this.cursor.next()) {
+                this.types.addValue(this.cursor.type(), 1L, 0L);
+                return true;
+            }
+            return false;
+        }
+
+        public long otherNode() {
+            return this.cursor.otherNode();
+        }
+
+        public int type() {
+            return this.cursor.type();
+        }
+    }
+}
@@ -0,0 +1,309 @@
+package com.maxdemarzi.shortest;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.ws.rs.core.MediaType;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.io.SerializedString;
+
+/**
+ * Writes the results of a streaming endpoint in the format its Accept header asks for:
+ *
+ *  - application/json (also for anything else): a JSON object per line, flushed after every one of them
+ *  - application/x-ndjson: the same lines, flushed every flush rows, or once flush millis went by since the last
+ *    flush. There is no timer, the time is only checked when the next result is written, so rows can wait longer
+ *    than flush millis while the search finds nothing, until close()
+ *  - application/x-shortest-paths: length prefixed binary records, flushed like NDJSON
+ *
+ * Every binary record starts with the length of the rest of it as a 4 byte int and a byte for its kind, numbers
+ * are big-endian and strings UTF-8:
+ *
+ *  - EMAIL (1): int id, then the email. Sent before the first result that refers to it
+ *  - RESULT (2): long node id, int id of the center email (-1 unless /query_counters_batch), int id of the email,
+ *    int length or cost, int count of paths
+ *  - TRUNCATED (3): what the budget ran out of, "time", "expanded" or "visited"
+ *  - PROFILE (4): the profile as a JSON object
+ *
+ * Emails are encoded to UTF-8 once per request however often they are written. Writers aren't thread safe,
+ * the results of a parallel search are written one at a time.
+ */
+public abstract class ResultWriter {
+
+    public static final String JSON = MediaType.APPLICATION_JSON;
+    public static final String NDJSON = "application/x-ndjson";
+    public static final String BINARY = "application/x-shortest-paths";
+
+    public static final int DEFAULT_FLUSH_ROWS = 1000;
+    public static final long DEFAULT_FLUSH_MILLIS = 100;
+
+    static final byte EMAIL = 1;
+    static final byte RESULT = 2;
+    static final byte TRUNCATED = 3;
+    static final byte PROFILE = 4;
+
+    private static final JsonFactory factory = new JsonFactory();
+
+    private static volatile int flushRows = DEFAULT_FLUSH_ROWS;
+    private static volatile long flushNanos = DEFAULT_FLUSH_MILLIS * 1_000_000;
+
+    /**
+     * @param rows: flush NDJSON and binary responses after this many results
+     * @param millis: or once this long went by since the last flush
+     * @throws IllegalArgumentException unless both are positive
+     */
+    public static void setFlushPolicy(int rows, long millis) {
+        if (rows <= 0 || millis <= 0) {
+            throw new IllegalArgumentException("Flush rows and millis must be positive, not " + rows + " and " + millis);
+        }
+        flushRows = rows;
+        flushNanos = millis * 1_000_000;
+    }
+
+    /**
+     * @param acceptable: the media types the client accepts, the preferred first
+     * @return the first of them we write, JSON if none
+     */
+    public static String negotiate(List<MediaType> acceptable) {
+        for (MediaType type : acceptable) {
+            final String name = type.getType() + "/" + type.getSubtype();
+            if (NDJSON.equalsIgnoreCase(name)) {
+                return NDJSON;
+            }
+            if (BINARY.equalsIgnoreCase(name)) {
+                return BINARY;
+            }
+            if (JSON.equalsIgnoreCase(name) || type.isWildcardType() || ("application".equalsIgnoreCase(type.getType()) && type.isWildcardSubtype())) {
+                return JSON;
+            }
+        }
+        return JSON;
+    }
+
+    /**
+     * @param format: JSON, NDJSON or BINARY
+     * @param budget: when running out of it fails the request nothing is sent before close(), and it is profiled
+     *                with the time spent writing if it has a profile
+     */
+    public static ResultWriter create(String format, OutputStream os, Budget budget) throws IOException {
+        // Nothing can be sent before the search is done when running out of budget fails the request
+        final OutputStream target = budget.failsWhenExhausted() ? new ByteArrayOutputStream() : os;
+        final ResultWriter writer;
+        if (BINARY.equals(format)) {
+            writer = new BinaryWriter(target, flushRows, flushNanos);
+        } else if (NDJSON.equals(format)) {
+            writer = new JsonWriter(target, flushRows, flushNanos);
+        } else {
+            writer = new JsonWriter(target, 1, 0);
+        }
+        writer.os = os;
+        writer.target = target;
+        writer.profile = budget.profile();
+        return writer;
+    }
+
+    private final int rows;
+    private final long nanos;
+    private OutputStream os;
+    private OutputStream target;
+    private Profile profile;
+    private int unflushed;
+    private long flushedAt = System.nanoTime();
+
+    private ResultWriter(int rows, long nanos) {
+        this.rows = rows;
+        this.nanos = nanos;
+    }
+
+    /**
+     * @param nodeId: the node of the email
+     * @param length: the length of the shortest paths, or the lowest cost
+     */
+    public final void write(long nodeId, String email, int length, int count) throws IOException {
+        write(nodeId, null, email, length, count);
+    }
+
+    /**
+     * @param centerEmail: the center the paths are from, when a request has several
+     */
+    public final void write(long nodeId, String centerEmail, String email, int length, int count) throws IOException {
+        final long start = System.nanoTime();
+        result(nodeId, centerEmail, email, length, count);
+        long now = System.nanoTime();
+        if (++this.unflushed >= this.rows || now - this.flushedAt >= this.nanos) {
+            flush();
+            now = System.nanoTime();
+            this.unflushed = 0;
+            this.flushedAt = now;
+        }
+        // sending the rows counts as writing them, not as expanding
+        if (this.profile != null) {
+            this.profile.wrote(now - start);
+        }
+    }
+
+    /**
+     * Ends the response with what the budget ran out of
+     */
+    public abstract void truncated(String exhaustedBy) throws IOException;
+
+    /**
+     * Ends the response with the profile
+     */
+    public abstract void profile(Profile profile, String engine, Profile.TypeNames typeNames) throws IOException;
+
+    /**
+     * Writes out whatever is left, and what was held back until the search was done. Leaves the stream open.
+     */
+    public final void close() throws IOException {
+        finish();
+        if (this.target != this.os) {
+            ((ByteArrayOutputStream) this.target).writeTo(this.os);
+        }
+        this.os.flush();
+    }
+
+    protected abstract void result(long nodeId, String centerEmail, String email, int length, int count) throws IOException;
+
+    protected abstract void flush() throws IOException;
+
+    protected abstract void finish() throws IOException;
+
+    private static final class JsonWriter extends ResultWriter {
+        private static final SerializedString CENTER_EMAIL = new SerializedString("center_email");
+        private static final SerializedString EMAIL = new SerializedString("email");
+        private static final SerializedString LENGTH = new SerializedString("length");
+        private static final SerializedString COUNT = new SerializedString("count");
+
+        private final JsonGenerator jg;
+        // a SerializedString keeps the email encoded to UTF-8 once it was written
+        private final Map<String, SerializedString> emails = new HashMap<>();
+
+        private JsonWriter(OutputStream target, int rows, long nanos) throws IOException {
+            super(rows, nanos);
+            this.jg = factory.createJsonGenerator(target, JsonEncoding.UTF8);
+            // Jersey ends the response once write() returns, after the request's metrics are recorded
+            this.jg.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        }
+
+        private SerializedString email(String email) {
+            SerializedString serialized = this.emails.get(email);
+            if (serialized == null) {
+                serialized = new SerializedString(email);
+                this.emails.put(email, serialized);
+            }
+            return serialized;
+        }
+
+        protected void result(long nodeId, String centerEmail, String email, int length, int count) throws IOException {
+            this.jg.writeStartObject();
+            if (centerEmail != null) {
+                this.jg.writeFieldName(CENTER_EMAIL);
+                this.jg.writeString(email(centerEmail));
+            }
+            this.jg.writeFieldName(EMAIL);
+            this.jg.writeString(email(email));
+            this.jg.writeFieldName(LENGTH);
+            this.jg.writeNumber(length);
+            this.jg.writeFieldName(COUNT);
+            this.jg.writeNumber(count);
+            this.jg.writeEndObject();
+            this.jg.writeRaw("\n");
+        }
+
+        public void truncated(String exhaustedBy) throws IOException {
+            this.jg.writeStartObject();
+            this.jg.writeBooleanField("truncated", true);
+            this.jg.writeStringField("exhausted", exhaustedBy);
+            this.jg.writeEndObject();
+            this.jg.writeRaw("\n");
+        }
+
+        public void profile(Profile profile, String engine, Profile.TypeNames typeNames) throws IOException {
+            profile.write(this.jg, engine, typeNames);
+        }
+
+        protected void flush() throws IOException {
+            this.jg.flush();
+        }
+
+        protected void finish() throws IOException {
+            this.jg.close();
+        }
+    }
+
+    private static final class BinaryWriter extends ResultWriter {
+        private final DataOutputStream out;
+        private final Map<String, Integer> emailIds = new HashMap<>();
+
+        private BinaryWriter(OutputStream target, int rows, long nanos) {
+            super(rows, nanos);
+            this.out = new DataOutputStream(new BufferedOutputStream(target, 8192));
+        }
+
+        /*
+         * Sends the email the first time it is written
+         */
+        private int emailId(String email) throws IOException {
+            Integer id = this.emailIds.get(email);
+            if (id == null) {
+                id = this.emailIds.size();
+                this.emailIds.put(email, id);
+                final byte[] utf8 = email.getBytes(StandardCharsets.UTF_8);
+                this.out.writeInt(1 + 4 + utf8.length);
+                this.out.writeByte(ResultWriter.EMAIL);
+                this.out.writeInt(id);
+                this.out.write(utf8);
+            }
+            return id;
+        }
+
+        protected void result(long nodeId, String centerEmail, String email, int length, int count) throws IOException {
+            final int centerId = centerEmail == null ? -1 : emailId(centerEmail);
+            final int emailId = emailId(email);
+            this.out.writeInt(1 + 8 + 4 * 4);
+            this.out.writeByte(RESULT);
+            this.out.writeLong(nodeId);
+            this.out.writeInt(centerId);
+            this.out.writeInt(emailId);
+            this.out.writeInt(length);
+            this.out.writeInt(count);
+        }
+
+        public void truncated(String exhaustedBy) throws IOException {
+            record(TRUNCATED, exhaustedBy.getBytes(StandardCharsets.UTF_8));
+        }
+
+        public void profile(Profile profile, String engine, Profile.TypeNames typeNames) throws IOException {
+            final ByteArrayOutputStream json = new ByteArrayOutputStream();
+            final JsonGenerator jg = factory.createJsonGenerator(json, JsonEncoding.UTF8);
+            profile.write(jg, engine, typeNames);
+            jg.close();
+            record(PROFILE, json.toByteArray());
+        }
+
+        private void record(byte kind, byte[] bytes) throws IOException {
+            this.out.writeInt(1 + bytes.length);
+            this.out.writeByte(kind);
+            this.out.write(bytes);
+        }
+
+        protected void flush() throws IOException {
+            this.out.flush();
+        }
+
+        protected void finish() throws IOException {
+            this.out.flush();
+        }
+    }
+}
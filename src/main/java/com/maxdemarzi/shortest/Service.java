@@ -1,10 +1,13 @@
 package com.maxdemarzi.shortest;
 
+import com.google.common.base.Function;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMap.Builder;
+import com.google.common.collect.Iterables;
+import com.google.common.io.CountingOutputStream;
 
 import net.openhft.koloboke.collect.LongCursor;
 import net.openhft.koloboke.collect.map.LongObjCursor;
@@ -18,38 +21,40 @@ import net.openhft.koloboke.collect.map.hash.HashLongObjMaps;
 import net.openhft.koloboke.collect.set.LongSet;
 import net.openhft.koloboke.collect.set.hash.HashLongSets;
 
-import org.apache.commons.lang3.mutable.MutableInt;
-import org.codehaus.jackson.JsonEncoding;
-import org.codehaus.jackson.JsonGenerator;
+import org.apache.commons.lang3.mutable.MutableBoolean;
 import org.codehaus.jackson.map.ObjectMapper;
-import org.neo4j.cursor.Cursor;
 import org.neo4j.graphalgo.GraphAlgoFactory;
 import org.neo4j.graphalgo.PathFinder;
 import org.neo4j.graphdb.*;
+import org.neo4j.graphdb.traversal.BranchState;
 
 import org.neo4j.kernel.GraphDatabaseAPI;
 import org.neo4j.kernel.api.ReadOperations;
 import org.neo4j.kernel.api.cursor.NodeItem;
-import org.neo4j.kernel.api.cursor.RelationshipItem;
+import org.neo4j.kernel.api.exceptions.RelationshipTypeIdNotFoundKernelException;
 import org.neo4j.kernel.impl.core.ThreadToStatementContextBridge;
+import org.neo4j.tooling.GlobalGraphOperations;
 
 import javax.ws.rs.GET;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Context;
-import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.StreamingOutput;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.ExecutionException;
 import java.lang.Iterable;
 
 import static com.maxdemarzi.shortest.Validators.getValidQueryInput;
 import static com.maxdemarzi.shortest.Validators.getValidDijkstraInput;
+import static com.maxdemarzi.shortest.Validators.getValidBatchQueryInput;
 
 @Path("/service")
 public class Service {
@@ -58,11 +63,17 @@ public class Service {
     private static GraphDatabaseService db;
     private final GraphDatabaseAPI dbAPI;
     private final NodeCache nodeCache;
+    private final AdjacencyProvider adjacencyProvider;
+    private final EgoNetworkCache egoNetworkCache;
+    private final Planner planner;
 
     public Service(@Context GraphDatabaseService graphDatabaseService) {
         db = graphDatabaseService;
         dbAPI = (GraphDatabaseAPI) db;
         nodeCache = NodeCache.getInstance(db);
+        adjacencyProvider = AdjacencyProvider.getInstance(db);
+        egoNetworkCache = EgoNetworkCache.getInstance(db);
+        planner = Planner.getInstance(db);
     }
 
     @GET
@@ -74,6 +85,15 @@ public class Service {
         return Response.ok().entity(objectMapper.writeValueAsString(results)).build();
     }
 
+    /**
+     * Latency quantiles, search counters and NodeCache lookups per endpoint and engine, in the Prometheus text format
+     */
+    @GET
+    @Path("/metrics")
+    public Response metrics() {
+        return Response.ok().entity(Metrics.scrape()).type("text/plain; version=0.0.4").build();
+    }
+
     /**
      * JSON formatted body requires:
      *  center_email: An email address
@@ -83,6 +103,7 @@ public class Service {
     @POST
     @Path("/query")
     public Response query(String body, @Context GraphDatabaseService db) throws IOException, ExecutionException {
+        final long start = System.nanoTime();
         ArrayList<HashMap> results = new ArrayList<>();
         ArrayList<Node> edgeEmailNodes = new ArrayList<>();
 
@@ -94,18 +115,12 @@ public class Service {
             try {
                 centerNode = db.getNodeById(nodeCache.getEmailNode((String) input.get("center_email")));
             } catch (ExecutionException e) {
+                Metrics.record("/query", Metrics.BUILTIN, System.nanoTime() - start, null, 2);
                 return Response.ok().entity("[]").build();
             }
 
-            for (String edgeEmail : (ArrayList<String>)input.get("edge_emails")) {
-                Long edgeId;
-                try {
-                    edgeId = nodeCache.getEmailNode(edgeEmail);
-                } catch (Exception e) {
-                    continue;
-                }
-                final Node edgeEmailNode = db.getNodeById(edgeId);
-                edgeEmailNodes.add(edgeEmailNode);
+            for (Long edgeId : nodeCache.getEmailNodes((ArrayList<String>) input.get("edge_emails"))) {
+                edgeEmailNodes.add(db.getNodeById(edgeId));
             }
 
             PathExpander<?> expander =  PathExpanders.allTypesAndDirections();
@@ -130,7 +145,9 @@ public class Service {
                 }
             }
         }
-        return Response.ok().entity(objectMapper.writeValueAsString(results)).build();
+        final String json = objectMapper.writeValueAsString(results);
+        Metrics.record("/query", Metrics.BUILTIN, System.nanoTime() - start, null, json.getBytes(StandardCharsets.UTF_8).length);
+        return Response.ok().entity(json).build();
     }
 
     /**
@@ -138,30 +155,47 @@ public class Service {
      *  center_email: An email address
      *  edge_emails: An Array of email addresses
      *  length: An integer representing the maximum traversal search length
+     * Optionally:
+     *  adjacency: "kernel", "snapshot" or "mapped" to read relationships from a snapshot, defaults to the server setting
+     *  budget: time_ms, max_expanded, max_visited and on_exhausted ("partial" or "fail"), defaults to the server settings
+     *  profile: true to end the results with the search's frontier sizes, relationships read by type and timings
+     *
+     * Results are JSON lines, NDJSON or binary records as the Accept header asks, see ResultWriter
      */
     @POST
     @Path("/query_streaming")
-    public Response query_streaming(String body, @Context GraphDatabaseService db) throws IOException, ExecutionException {
+    public Response query_streaming(InputStream body, @Context GraphDatabaseService db, @Context HttpHeaders headers) throws IOException, ExecutionException {
+        final String format = ResultWriter.negotiate(headers.getAcceptableMediaTypes());
 
         StreamingOutput stream = new StreamingOutput() {
             @Override
             public void write(OutputStream os) throws IOException, WebApplicationException {
-                JsonGenerator jg = objectMapper.getJsonFactory().createJsonGenerator(os, JsonEncoding.UTF8);
-
+                final long start = System.nanoTime();
                 // Validate our input or exit right away
-                HashMap input = getValidQueryInput(body);
-
-                String centerEmail = (String) input.get("center_email");
-                List<String> edgeEmails = (ArrayList<String>) input.get("edge_emails");
-                List<String> bibEntries = (ArrayList<String>) input.get("bibliography_entries");
-                int length = (int) input.get("length");
+                HashMap input = getValidInput(body, false);
+                Budget budget = Budget.forRequest(budget(input));
+                if (Boolean.TRUE.equals(input.get("profile"))) {
+                    budget.profile(Profile.forLevels((int) input.get("length"), start));
+                }
+                CountingOutputStream counted = new CountingOutputStream(os);
+                ResultWriter results = ResultWriter.create(format, counted, budget);
+                String engine = Metrics.BUILTIN;
+                try {
+                    String centerEmail = (String) input.get("center_email");
+                    EdgeEmails edgeEmails = (EdgeEmails) input.get("edge_emails");
+                    List<String> bibEntries = (ArrayList<String>) input.get("bibliography_entries");
+                    int length = (int) input.get("length");
+                    String adjacency = (String) input.get("adjacency");
 
-                streamShortestPathsUsingBuiltinAlgo(centerEmail, bibEntries, edgeEmails, length, jg);
+                    streamShortestPathsUsingBuiltinAlgo(centerEmail, bibEntries, edgeEmails, length, adjacency, budget, results);
 
-                jg.close();
+                    close(results, budget, engine);
+                } finally {
+                    Metrics.record("/query_streaming", engine, System.nanoTime() - start, budget, counted.getCount());
+                }
             }
         };
-        return Response.ok().entity(stream).type(MediaType.APPLICATION_JSON).build();
+        return Response.ok().entity(stream).type(format).build();
     }
 
     /**
@@ -169,30 +203,103 @@ public class Service {
      *  center_email: An email address
      *  edge_emails: An Array of email addresses
      *  length: An integer representing the maximum traversal search length
+     * Optionally:
+     *  bidirectional: true to search from the center and each edge email at the same time, meeting in the middle
+     *  parallel: true to expand each level of the search on all cores
+     *  adjacency: "kernel", "snapshot" or "mapped" to read relationships from a snapshot, defaults to the server setting
+     *  budget: time_ms, max_expanded, max_visited and on_exhausted ("partial" or "fail"), defaults to the server settings
+     *  profile: true to end the results with the search's frontier sizes, relationships read by type and timings
+     *
+     * Results are JSON lines, NDJSON or binary records as the Accept header asks, see ResultWriter
      */
     @POST
     @Path("/query_counters")
-    public Response query_counters(String body, @Context GraphDatabaseService db) throws IOException, ExecutionException {
+    public Response query_counters(InputStream body, @Context GraphDatabaseService db, @Context HttpHeaders headers) throws IOException, ExecutionException {
+        final String format = ResultWriter.negotiate(headers.getAcceptableMediaTypes());
 
         StreamingOutput stream = new StreamingOutput() {
             @Override
             public void write(OutputStream os) throws IOException, WebApplicationException {
-                JsonGenerator jg = objectMapper.getJsonFactory().createJsonGenerator(os, JsonEncoding.UTF8);
-
+                final long start = System.nanoTime();
                 // Validate our input or exit right away
-                HashMap input = getValidQueryInput(body);
+                HashMap input = getValidInput(body, false);
+                Budget budget = Budget.forRequest(budget(input));
+                if (Boolean.TRUE.equals(input.get("profile"))) {
+                    budget.profile(Profile.forLevels((int) input.get("length"), start));
+                }
+                CountingOutputStream counted = new CountingOutputStream(os);
+                ResultWriter results = ResultWriter.create(format, counted, budget);
+                String engine = null;
+                try {
+                    String centerEmail = (String) input.get("center_email");
+                    EdgeEmails edgeEmails = (EdgeEmails) input.get("edge_emails");
+                    List<String> bibEntries = (ArrayList<String>) input.get("bibliography_entries");
+                    int length = (int) input.get("length");
+                    String adjacency = (String) input.get("adjacency");
+
+                    if (Boolean.TRUE.equals(input.get("bidirectional"))) {
+                        engine = Metrics.BIDIRECTIONAL_BFS;
+                        streamShortestPathsUsingBidirectionalBFS(centerEmail, bibEntries, edgeEmails, length, adjacency, budget, results);
+                    } else if (Boolean.TRUE.equals(input.get("parallel"))) {
+                        engine = Metrics.PARALLEL_BFS;
+                        streamShortestPathsUsingParallelBFS(centerEmail, bibEntries, edgeEmails, length, adjacency, budget, results);
+                    } else {
+                        engine = streamShortestPathsUsingDirectionOptimizingBFS(centerEmail, bibEntries, edgeEmails, length, adjacency, budget, results);
+                    }
 
-                String centerEmail = (String) input.get("center_email");
-                List<String> edgeEmails = (ArrayList<String>) input.get("edge_emails");
-                List<String> bibEntries = (ArrayList<String>) input.get("bibliography_entries");
-                int length = (int) input.get("length");
+                    close(results, budget, engine);
+                } finally {
+                    Metrics.record("/query_counters", engine, System.nanoTime() - start, budget, counted.getCount());
+                }
+            }
+        };
+        return Response.ok().entity(stream).type(format).build();
+    }
+
+    /**
+     * JSON formatted body requires:
+     *  centers: An Array of objects, each with its own center_email, bibliography_entries and edge_emails
+     *  length: An integer representing the maximum traversal search length
+     * Optionally:
+     *  adjacency: "kernel", "snapshot" or "mapped" to read relationships from a snapshot, defaults to the server setting
+     *  budget: time_ms, max_expanded, max_visited and on_exhausted ("partial" or "fail"), defaults to the server settings
+     *  profile: true to end the results with the search's frontier sizes, relationships read by type and timings
+     *
+     * Up to 64 centers are searched together, results are the same as /query_counters with a center_email added.
+     * Results are JSON lines, NDJSON or binary records as the Accept header asks, see ResultWriter
+     */
+    @POST
+    @Path("/query_counters_batch")
+    public Response query_counters_batch(String body, @Context GraphDatabaseService db, @Context HttpHeaders headers) throws IOException, ExecutionException {
+        final String format = ResultWriter.negotiate(headers.getAcceptableMediaTypes());
+
+        StreamingOutput stream = new StreamingOutput() {
+            @Override
+            public void write(OutputStream os) throws IOException, WebApplicationException {
+                final long start = System.nanoTime();
+                // Validate our input or exit right away
+                HashMap input = getValidBatchQueryInput(body);
+                Budget budget = Budget.forRequest(budget(input));
+                if (Boolean.TRUE.equals(input.get("profile"))) {
+                    budget.profile(Profile.forLevels((int) input.get("length"), start));
+                }
+                CountingOutputStream counted = new CountingOutputStream(os);
+                ResultWriter results = ResultWriter.create(format, counted, budget);
+                String engine = Metrics.MULTI_SOURCE_BFS;
+                try {
+                    List<Map<String, Object>> centers = (List<Map<String, Object>>) input.get("centers");
+                    int length = (int) input.get("length");
+                    String adjacency = (String) input.get("adjacency");
 
-                streamShortestPathsUsingHandwrittenBFS(centerEmail, bibEntries, edgeEmails, length, jg);
+                    streamShortestPathsUsingMultiSourceBFS(centers, length, adjacency, budget, results);
 
-                jg.close();
+                    close(results, budget, engine);
+                } finally {
+                    Metrics.record("/query_counters_batch", engine, System.nanoTime() - start, budget, counted.getCount());
+                }
             }
         };
-        return Response.ok().entity(stream).type(MediaType.APPLICATION_JSON).build();
+        return Response.ok().entity(stream).type(format).build();
     }
 
     /**
@@ -200,59 +307,127 @@ public class Service {
      *  center_email: An email address
      *  edge_emails: An Array of email addresses
      *  length: An integer representing the maximum traversal search length
+     * Optionally:
+     *  adjacency: "kernel", "snapshot" or "mapped" to read relationships from a snapshot, defaults to the server setting
+     *  budget: time_ms, max_expanded, max_visited and on_exhausted ("partial" or "fail"), defaults to the server settings
+     *  profile: true to end the results with the search's frontier sizes, relationships read by type and timings,
+     *  along with the relationships the Planner expected every engine to read
+     *
+     * The Planner picks the engine: the built-in algorithm, the handwritten BFS, the bidirectional BFS or Dijkstra.
+     * Results are JSON lines, NDJSON or binary records as the Accept header asks, see ResultWriter
      */
     @POST
     @Path("/query_either")
-    public Response query_either(String body, @Context GraphDatabaseService db) throws IOException, ExecutionException {
+    public Response query_either(InputStream body, @Context GraphDatabaseService db, @Context HttpHeaders headers) throws IOException, ExecutionException {
+        final String format = ResultWriter.negotiate(headers.getAcceptableMediaTypes());
 
         StreamingOutput stream = new StreamingOutput() {
             @Override
             public void write(OutputStream os) throws IOException, WebApplicationException {
-                JsonGenerator jg = objectMapper.getJsonFactory().createJsonGenerator(os, JsonEncoding.UTF8);
-
+                final long start = System.nanoTime();
                 // Validate our input or exit right away
-                HashMap input = getValidQueryInput(body);
+                HashMap input = getValidInput(body, false);
+                Budget budget = Budget.forRequest(budget(input));
+                if (Boolean.TRUE.equals(input.get("profile"))) {
+                    budget.profile(Profile.forLevels((int) input.get("length"), start));
+                }
+                CountingOutputStream counted = new CountingOutputStream(os);
+                ResultWriter results = ResultWriter.create(format, counted, budget);
+                String engine = null;
+                try {
+                    String centerEmail = (String) input.get("center_email");
+                    List<String> bibEntries = (ArrayList<String>) input.get("bibliography_entries");
+                    EdgeEmails edgeEmails = (EdgeEmails) input.get("edge_emails");
+                    int length = (int) input.get("length");
+                    String adjacency = (String) input.get("adjacency");
 
-                String centerEmail = (String) input.get("center_email");
-                List<String> bibEntries = (ArrayList<String>) input.get("bibliography_entries");
-                List<String> edgeEmails = (ArrayList<String>) input.get("edge_emails");
-                int length = (int) input.get("length");
+                    engine = streamShortestPathsUsingPlanner(centerEmail, bibEntries, edgeEmails, length, adjacency, budget, results);
 
-                if (edgeEmails.size() <= length) {
-                    // There are few target nodes, so search using the built-in algorithm which (presumably) does a BFS from each end for each
-                    streamShortestPathsUsingBuiltinAlgo(centerEmail, bibEntries, edgeEmails, length, jg);
-                } else {
-                    // There are many target nodes, so search using a BFS only from the source node
-                    streamShortestPathsUsingHandwrittenBFS(centerEmail, bibEntries, edgeEmails, length, jg);
+                    close(results, budget, engine);
+                } finally {
+                    Metrics.record("/query_either", engine, System.nanoTime() - start, budget, counted.getCount());
                 }
-
-                jg.close();
             }
         };
-        return Response.ok().entity(stream).type(MediaType.APPLICATION_JSON).build();
+        return Response.ok().entity(stream).type(format).build();
     }
 
+    /**
+     * JSON formatted body requires:
+     *  center_email: An email address
+     *  edge_emails: An Array of email addresses
+     *  max_cost: An integer representing the maximum total cost of a path
+     * Optionally:
+     *  edge_costs: A map of relationship type to cost, types not listed cost 100
+     *  parallel: true to search backward from the edge emails on all cores
+     *  adjacency: "kernel", "snapshot" or "mapped" to read relationships from a snapshot, defaults to the server setting
+     *  budget: time_ms, max_expanded, max_visited and on_exhausted ("partial" or "fail"), defaults to the server settings
+     *  profile: true to end the results with the search's frontier sizes, relationships read by type and timings
+     *
+     * Results are JSON lines, NDJSON or binary records as the Accept header asks, see ResultWriter
+     */
     @POST
     @Path("/query_shortest")
-    public Response query_shortest(String body, @Context GraphDatabaseService db) throws IOException, ExecutionException {
+    public Response query_shortest(InputStream body, @Context GraphDatabaseService db, @Context HttpHeaders headers) throws IOException, ExecutionException {
+        final String format = ResultWriter.negotiate(headers.getAcceptableMediaTypes());
 
         StreamingOutput stream = new StreamingOutput() {
             @Override
             public void write(OutputStream os) throws IOException, WebApplicationException {
-                JsonGenerator jg = objectMapper.getJsonFactory().createJsonGenerator(os, JsonEncoding.UTF8);
-                HashMap input = getValidDijkstraInput(body);
-
-                String centerEmail = (String) input.get("center_email");
-                List<String> bibEntries = (List<String>) input.get("bibliography_entries");
-                List<String> edgeEmails = (List<String>) input.get("edge_emails");
-                int maxCost = (int) input.get("max_cost");
-                Map<String,Integer> edgeCosts = (Map<String,Integer>) input.get("edge_costs");
-
-                streamShortestPathsUsingDijkstra(centerEmail, bibEntries, edgeEmails, maxCost, edgeCosts, jg);
-                jg.close();
+                final long start = System.nanoTime();
+                HashMap input = getValidInput(body, true);
+                Budget budget = Budget.forRequest(budget(input));
+                if (Boolean.TRUE.equals(input.get("profile"))) {
+                    budget.profile(Profile.forCosts((int) input.get("max_cost"), start));
+                }
+                CountingOutputStream counted = new CountingOutputStream(os);
+                ResultWriter results = ResultWriter.create(format, counted, budget);
+                String engine = Metrics.DIJKSTRA;
+                try {
+                    String centerEmail = (String) input.get("center_email");
+                    List<String> bibEntries = (List<String>) input.get("bibliography_entries");
+                    EdgeEmails edgeEmails = (EdgeEmails) input.get("edge_emails");
+                    int maxCost = (int) input.get("max_cost");
+                    Map<String,Integer> edgeCosts = (Map<String,Integer>) input.get("edge_costs");
+                    String adjacency = (String) input.get("adjacency");
+
+                    if (Boolean.TRUE.equals(input.get("parallel"))) {
+                        engine = Metrics.PARALLEL_DIJKSTRA;
+                        streamShortestPathsUsingParallelDijkstra(centerEmail, bibEntries, edgeEmails, maxCost, edgeCosts, adjacency, budget, results);
+                    } else {
+                        streamShortestPathsUsingDijkstra(centerEmail, bibEntries, edgeEmails, maxCost, edgeCosts, adjacency, budget, results);
+                    }
+                    close(results, budget, engine);
+                } finally {
+                    Metrics.record("/query_shortest", engine, System.nanoTime() - start, budget, counted.getCount());
+                }
             }
         };
-        return Response.ok().entity(stream).type(MediaType.APPLICATION_JSON).build();
+        return Response.ok().entity(stream).type(format).build();
+    }
+
+    /*
+     * Validates the body as it arrives, finding the nodes of its edge emails while the rest is still being read
+     */
+    private HashMap getValidInput(InputStream body, boolean dijkstra) throws IOException {
+        try (Transaction tx = db.beginTx()) {
+            HashMap input = dijkstra ? getValidDijkstraInput(body, nodeCache) : getValidQueryInput(body, nodeCache);
+            tx.success();
+            return input;
+        }
+    }
+
+    /*
+     * @return the request's budget object, which the Validators made sure is a JSON object if there is one
+     */
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> budget(Map<?, ?> input) {
+        return (Map<String, Object>) input.get("budget");
+    }
+
+    private ReadOperations readOperations() {
+        ThreadToStatementContextBridge ctx = dbAPI.getDependencyResolver().resolveDependency(ThreadToStatementContextBridge.class);
+        return ctx.get().readOperations();
     }
 
     private static final List<Node> nodesById(Iterable<Long> ids) {
@@ -263,7 +438,58 @@ public class Service {
         return nodes;
     }
 
-    private void streamShortestPathsUsingBuiltinAlgo(String centerEmail, List<String> bibEntries, List<String> edgeEmails, int maxLength, JsonGenerator jg) throws IOException {
+    /**
+     * Resolves everything once, then lets the Planner pick the engine from the degrees of the nodes found
+     * @return the engine the Planner picked
+     */
+    String streamShortestPathsUsingPlanner(String centerEmail, List<String> bibEntries, EdgeEmails edgeEmails, int maxLength, String adjacencyMode, Budget budget, ResultWriter results) throws IOException {
+        try (Transaction tx = db.beginTx()) {
+            final ReadOperations ops = readOperations();
+            final AdjacencySnapshot snapshot = adjacencyProvider.snapshot(adjacencyMode);
+            final Adjacency adjacency = snapshot != null ? snapshot.adjacency() : new KernelAdjacency(ops);
+            // the node ids the Planner samples degrees from, a count of nodes when there is no snapshot
+            final long nodeIds = snapshot != null ? snapshot.nodeCount() : ops.countsForNode(ReadOperations.ANY_LABEL);
+
+            final Long centerNodeId = nodeCache.findEmailNode(centerEmail);
+            if (centerNodeId == null) {
+                return Metrics.BFS;
+            }
+            final List<Long> bibliographyNodeIds = nodeCache.getBibliographEntryNodes(bibEntries);
+            resolved(budget);
+
+            final Planner.Plan plan = planner.plan(adjacency, nodeIds, centerNodeId, bibliographyNodeIds, edgeEmails.nodeIds(), maxLength);
+            if (budget.profile() != null) {
+                budget.profile().plan(plan);
+            }
+            switch (plan.engine()) {
+                case Metrics.BUILTIN:
+                    streamShortestPathsUsingBuiltinAlgo(db.getNodeById(centerNodeId), notNextTo(adjacency, centerNodeId, bibliographyNodeIds), edgeEmails.nodeIds(), maxLength, budget, results);
+                    break;
+                case Metrics.BIDIRECTIONAL_BFS:
+                    streamShortestPathsUsingBidirectionalBFS(adjacency, centerNodeId, bibliographyNodeIds, edgeEmails, maxLength, budget, results);
+                    break;
+                case Metrics.DIJKSTRA:
+                    // Every relationship costs 1, so the cost of a path is its length
+                    final Map<Long, Integer> startNodes = HashLongIntMaps.newMutableMap();
+                    for (Long nodeId : notNextTo(adjacency, centerNodeId, bibliographyNodeIds)) {
+                        startNodes.put(nodeId, 1);
+                    }
+                    startNodes.put(centerNodeId, 0);
+                    streamShortestPathsUsingDijkstra(adjacency, unitCosts(ops), startNodes, edgeEmails.byNodeId(), maxLength, budget, results);
+                    break;
+                default:
+                    streamShortestPathsUsingHandwrittenBFS(adjacency, centerNodeId, bibliographyNodeIds, edgeEmails.byNodeId(), maxLength, budget, results);
+            }
+
+            // A search cut short read less than it would have, it tells nothing about the estimate
+            if (!budget.isExhausted()) {
+                Metrics.planned(plan.engine(), plan.predicted(), budget.relationships());
+            }
+            return plan.engine();
+        }
+    }
+
+    void streamShortestPathsUsingBuiltinAlgo(String centerEmail, List<String> bibEntries, EdgeEmails edgeEmails, int maxLength, String adjacencyMode, Budget budget, ResultWriter results) throws IOException {
 
         try (Transaction tx = db.beginTx()) {
             final Node centerNode;
@@ -273,14 +499,38 @@ public class Service {
                 return;
             }
 
-            final Collection<Node> edgeEmailNodes = nodesById(nodeCache.getEmailNodes(edgeEmails));
-            final Collection<Node> bibEntryNodes = nodesById(nodeCache.getBibliographEntryNodes(bibEntries));
+            final Adjacency adjacency = adjacencyProvider.adjacency(readOperations(), adjacencyMode);
+            if (!(adjacency instanceof KernelAdjacency)) {
+                // The built-in algorithm can only walk the graph through the core API, on a snapshot the
+                // bidirectional BFS answers the same question (a BFS from each end for each target)
+                final List<Long> bibliographyNodeIds = nodeCache.getBibliographEntryNodes(bibEntries);
+                resolved(budget);
+                streamShortestPathsUsingBidirectionalBFS(adjacency, centerNode.getId(), bibliographyNodeIds, edgeEmails, maxLength, budget, results);
+                return;
+            }
+
+            final List<Long> edgeEmailNodeIds = edgeEmails.nodeIds();
+            final List<Long> bibliographyNodeIds = nodeCache.getBibliographEntryNodes(bibEntries);
+            resolved(budget);
+
+            streamShortestPathsUsingBuiltinAlgo(centerNode, bibliographyNodeIds, edgeEmailNodeIds, maxLength, budget, results);
+        }
+    }
+
+    private void streamShortestPathsUsingBuiltinAlgo(Node centerNode, List<Long> bibliographyNodeIds, List<Long> edgeEmailNodeIds, int maxLength, Budget budget, ResultWriter results) throws IOException {
+        final Collection<Node> edgeEmailNodes = nodesById(edgeEmailNodeIds);
+        final Collection<Node> bibEntryNodes = nodesById(bibliographyNodeIds);
 
-            PathExpander<?> expander = PathExpanders.allTypesAndDirections();
-            PathFinder<org.neo4j.graphdb.Path> shortestPath = GraphAlgoFactory.shortestPath(expander, maxLength);
-            PathFinder<org.neo4j.graphdb.Path> shortestPathViaBib = GraphAlgoFactory.shortestPath(expander, maxLength - 1);
+        CountingExpander expander = new CountingExpander(PathExpanders.<Object>allTypesAndDirections());
+        PathFinder<org.neo4j.graphdb.Path> shortestPath = GraphAlgoFactory.shortestPath(expander, maxLength);
+        PathFinder<org.neo4j.graphdb.Path> shortestPathViaBib = GraphAlgoFactory.shortestPath(expander, maxLength - 1);
 
+        try {
             for (Node edgeEmail : edgeEmailNodes) {
+                // The built-in algorithm can't be stopped part way, only between targets
+                if (!budget.checkTime()) {
+                    return;
+                }
                 HashMap<String, Object> result = new HashMap<>();
                 int length = 0;
                 int count = 0;
@@ -305,16 +555,17 @@ public class Service {
 
                 if (length > 0 && count > 0) {
                     String email = (String) edgeEmail.getProperty("email", "");
-                    writeResultObject(jg, email, length, count);
+                    results.write(edgeEmail.getId(), email, length, count);
                 }
             }
+        } finally {
+            budget.spent(expander.expanded, expander.relationships, 0, 0);
         }
     }
 
-    private void streamShortestPathsUsingHandwrittenBFS(String centerEmail, List<String> bibEntries, List<String> edgeEmails, int maxLength, JsonGenerator jg) throws IOException {
+    void streamShortestPathsUsingHandwrittenBFS(String centerEmail, List<String> bibEntries, EdgeEmails edgeEmails, int maxLength, String adjacencyMode, Budget budget, ResultWriter results) throws IOException {
         try (Transaction tx = db.beginTx()) {
-            ThreadToStatementContextBridge ctx = dbAPI.getDependencyResolver().resolveDependency(ThreadToStatementContextBridge.class);
-            ReadOperations ops = ctx.get().readOperations();
+            final Adjacency adjacency = adjacencyProvider.adjacency(readOperations(), adjacencyMode);
 
             final Long centerNodeId;
             try {
@@ -324,38 +575,79 @@ public class Service {
             }
             List<Long> bibliographyNodeIds = nodeCache.getBibliographEntryNodes(bibEntries);
 
-            final HashLongObjMap<String> edgeEmailsByNodeId = HashLongObjMaps.newMutableMap();
-            for (String edgeEmail : edgeEmails) {
-                try {
-                    edgeEmailsByNodeId.put(nodeCache.getEmailNode(edgeEmail), edgeEmail);
-                } catch (Exception e) {
-                    continue;
-                }
-            }
+            final HashLongObjMap<String> edgeEmailsByNodeId = edgeEmails.byNodeId();
+            resolved(budget);
+
+            streamShortestPathsUsingHandwrittenBFS(adjacency, centerNodeId, bibliographyNodeIds, edgeEmailsByNodeId, maxLength, budget, results);
+        }
+    }
 
+    /*
+     * Reports every target it finds and takes it out of edgeEmailsByNodeId
+     */
+    private void streamShortestPathsUsingHandwrittenBFS(Adjacency unprofiled, long centerNodeId, List<Long> bibliographyNodeIds, HashLongObjMap<String> edgeEmailsByNodeId, int maxLength, Budget budget, ResultWriter results) throws IOException {
+        long expanded = 0;
+        long relationships = 0;
+        long peakFrontier = 0;
+        long peakVisited = 0;
+        final Adjacency adjacency = Profile.adjacency(budget, unprofiled);
+        final TraversalState state = TraversalState.acquire();
+        try {
             int level = 1;
-            HashLongIntMap pathsToLastLevel = HashLongIntMaps.newMutableMapOf(centerNodeId, 1);
-            final LongSet previouslySeen = HashLongSets.newMutableSet();
+            HashLongIntMap pathsToLastLevel = state.next(null);
+            pathsToLastLevel.put(centerNodeId, 1);
+            NodeSet previouslySeen = state.visited();
 
-            Cursor<NodeItem> nodeCursor;
-            Cursor<RelationshipItem> relationshipCursor;
+            AdjacencyCursor relationshipCursor;
             LongIntCursor longIntCursor;
 
+            // The cache follows the committed graph, a snapshot has its own idea of it and is fast enough without
+            final boolean cacheable = unprofiled instanceof KernelAdjacency;
+
+            // A center that keeps coming back has its first levels cached, report the targets on them and carry on from there
+            final EgoNetworkCache.Levels cachedLevels = cacheable ? egoNetworkCache.levels(centerNodeId, bibliographyNodeIds, maxLength, adjacency, budget) : null;
+            if (cachedLevels != null) {
+                for (; level <= Math.min(cachedLevels.depth(), maxLength - 1) && !edgeEmailsByNodeId.isEmpty(); level++) {
+                    if (budget.profile() != null) {
+                        budget.profile().frontier(level - 1, pathsToLastLevel.size());
+                    }
+                    previouslySeen.addAll(pathsToLastLevel);
+                    pathsToLastLevel = cachedLevels.level(level);
+                    longIntCursor = pathsToLastLevel.cursor();
+                    while (longIntCursor.moveNext()) {
+                        long nodeId = longIntCursor.key();
+
+                        if (edgeEmailsByNodeId.containsKey(nodeId)) {
+                            String email = edgeEmailsByNodeId.remove(nodeId);
+                            results.write(nodeId, email, level, longIntCursor.value());
+                        }
+                    }
+                }
+            }
+
             while (level <= maxLength && !edgeEmailsByNodeId.isEmpty() && !pathsToLastLevel.isEmpty()) {
+                peakFrontier = Math.max(peakFrontier, pathsToLastLevel.size());
+                peakVisited = Math.max(peakVisited, previouslySeen.size());
+                if (budget.profile() != null) {
+                    budget.profile().frontier(level - 1, pathsToLastLevel.size());
+                }
                 if (level < maxLength) {
-                    HashLongIntMap pathsToNextLevel = HashLongIntMaps.newMutableMap();
+                    HashLongIntMap pathsToNextLevel = state.next(pathsToLastLevel);
                     // Get nodes at next level, counting by number of times they appear
                     longIntCursor = pathsToLastLevel.cursor();
                     while (longIntCursor.moveNext()) {
+                        // Out of budget, the counts on this level are incomplete so none of them are reported
+                        if (!budget.check(++expanded, previouslySeen.size() + pathsToNextLevel.size())) {
+                            return;
+                        }
                         long nodeId = longIntCursor.key();
                         int pathCount = longIntCursor.value();
 
-                        nodeCursor = ops.nodeCursor(nodeId);
-                        nodeCursor.next();
-                        relationshipCursor = nodeCursor.get().relationships(Direction.BOTH);
+                        relationshipCursor = adjacency.relationships(nodeId);
 
                         while (relationshipCursor.next()) {
-                            long otherId = relationshipCursor.get().otherNode(nodeId);
+                            relationships++;
+                            long otherId = relationshipCursor.otherNode();
                             if (!previouslySeen.contains(otherId)) {
                                 pathsToNextLevel.addValue(otherId, pathCount, 0);
                             }
@@ -370,8 +662,10 @@ public class Service {
                     }
 
                     // Now next level is current level; store visited nodes to prevent re-visiting cycles,
-                    // report any target nodes that appear, then stop searching for them
-                    previouslySeen.addAll(pathsToLastLevel.keySet());
+                    // report any target nodes that appear, then stop searching for them.
+                    // Past a large level most of the graph is about to be visited, a bitmap holds it in a bit per node
+                    previouslySeen = state.visited(previouslySeen, pathsToNextLevel.size());
+                    previouslySeen.addAll(pathsToLastLevel);
                     pathsToLastLevel = pathsToNextLevel;
                     longIntCursor = pathsToLastLevel.cursor();
                     while (longIntCursor.moveNext()) {
@@ -379,7 +673,7 @@ public class Service {
 
                         if (edgeEmailsByNodeId.containsKey(nodeId)) {
                             String email = edgeEmailsByNodeId.remove(nodeId);
-                            writeResultObject(jg, email, level, longIntCursor.value());
+                            results.write(nodeId, email, level, longIntCursor.value());
                         }
                     }
                 } else {
@@ -389,35 +683,198 @@ public class Service {
                     // and it lets us stream results
                     LongObjCursor<String> longObjCursor = edgeEmailsByNodeId.cursor();
                     while (longObjCursor.moveNext()) {
+                        if (!budget.check(++expanded, previouslySeen.size())) {
+                            return;
+                        }
                         long nodeId = longObjCursor.key();
                         int pathCount = 0;
 
-                        nodeCursor = ops.nodeCursor(nodeId);
-                        nodeCursor.next();
-                        relationshipCursor = nodeCursor.get().relationships(Direction.BOTH);
+                        final long[] neighbors = cacheable ? egoNetworkCache.neighbors(nodeId, adjacency) : null;
+                        if (neighbors != null) {
+                            for (long otherId : neighbors) {
+                                pathCount = pathCount + pathsToLastLevel.get(otherId);
+                            }
+                            relationships += neighbors.length;
+                        } else {
+                            relationshipCursor = adjacency.relationships(nodeId);
 
-                        while (relationshipCursor.next()) {
-                            long otherId = relationshipCursor.get().otherNode(nodeId);
+                            while (relationshipCursor.next()) {
+                                relationships++;
+                                long otherId = relationshipCursor.otherNode();
 
-                            if (pathsToLastLevel.containsKey(otherId)) {
-                                pathCount = pathCount + pathsToLastLevel.get(otherId);
+                                if (pathsToLastLevel.containsKey(otherId)) {
+                                    pathCount = pathCount + pathsToLastLevel.get(otherId);
+                                }
                             }
                         }
 
                         if (pathCount > 0) {
-                            writeResultObject(jg, longObjCursor.value(), level, pathCount);
+                            results.write(nodeId, longObjCursor.value(), level, pathCount);
                         }
                     }
                 }
 
                 level++;
             }
+        } finally {
+            state.release();
+            budget.spent(expanded, relationships, peakFrontier, peakVisited);
         }
     }
 
+    /**
+     * Bottom-up steps need every node and its degree, which only a snapshot has at hand, through the kernel this is
+     * the handwritten BFS
+     * @return the engine that searched, the handwritten BFS when there is no snapshot to read
+     */
+    String streamShortestPathsUsingDirectionOptimizingBFS(String centerEmail, List<String> bibEntries, EdgeEmails edgeEmails, int maxLength, String adjacencyMode, Budget budget, ResultWriter results) throws IOException {
+        final AdjacencySnapshot snapshot = adjacencyProvider.snapshot(adjacencyMode);
+        if (snapshot == null) {
+            streamShortestPathsUsingHandwrittenBFS(centerEmail, bibEntries, edgeEmails, maxLength, adjacencyMode, budget, results);
+            return Metrics.BFS;
+        }
+        try (Transaction tx = db.beginTx()) {
+            final Long centerNodeId;
+            try {
+                centerNodeId = nodeCache.getEmailNode(centerEmail);
+            } catch (ExecutionException e) {
+                return Metrics.DIRECTION_OPTIMIZING_BFS;
+            }
+            List<Long> bibliographyNodeIds = nodeCache.getBibliographEntryNodes(bibEntries);
+
+            final HashLongObjMap<String> edgeEmailsByNodeId = edgeEmails.byNodeId();
+            resolved(budget);
+
+            new DirectionOptimizingBFS(snapshot).run(centerNodeId, bibliographyNodeIds, edgeEmailsByNodeId.keySet(), maxLength, budget, new DirectionOptimizingBFS.PathsCallback() {
+                public void found(DirectionOptimizingBFS search, long nodeId, int length, int count) {
+                    try {
+                        results.write(nodeId, edgeEmailsByNodeId.get(nodeId), length, count);
+                    } catch (IOException ex) {
+                        search.finish();
+                    }
+                }
+            });
+        }
+        return Metrics.DIRECTION_OPTIMIZING_BFS;
+    }
+
+    void streamShortestPathsUsingBidirectionalBFS(String centerEmail, List<String> bibEntries, EdgeEmails edgeEmails, int maxLength, String adjacencyMode, Budget budget, ResultWriter results) throws IOException {
+        try (Transaction tx = db.beginTx()) {
+            final Adjacency adjacency = adjacencyProvider.adjacency(readOperations(), adjacencyMode);
+
+            final Long centerNodeId;
+            try {
+                centerNodeId = nodeCache.getEmailNode(centerEmail);
+            } catch (ExecutionException e) {
+                return;
+            }
+            List<Long> bibliographyNodeIds = nodeCache.getBibliographEntryNodes(bibEntries);
+            resolved(budget);
+
+            streamShortestPathsUsingBidirectionalBFS(adjacency, centerNodeId, bibliographyNodeIds, edgeEmails, maxLength, budget, results);
+        }
+    }
+
+    /*
+     * Searches for the targets in the order the request has them
+     */
+    private void streamShortestPathsUsingBidirectionalBFS(Adjacency adjacency, long centerNodeId, List<Long> bibliographyNodeIds, EdgeEmails edgeEmails, int maxLength, Budget budget, ResultWriter results) throws IOException {
+        BidirectionalBFS bfs = new BidirectionalBFS(adjacency, centerNodeId, bibliographyNodeIds, maxLength, budget);
+        for (int i = 0; i < edgeEmails.size(); i++) {
+            long result = bfs.shortestPaths(edgeEmails.nodeId(i));
+            if (budget.isExhausted()) {
+                return;
+            }
+            if (result != BidirectionalBFS.NOT_FOUND) {
+                results.write(edgeEmails.nodeId(i), edgeEmails.email(i), BidirectionalBFS.length(result), BidirectionalBFS.count(result));
+            }
+        }
+    }
+
+    void streamShortestPathsUsingParallelBFS(String centerEmail, List<String> bibEntries, EdgeEmails edgeEmails, int maxLength, String adjacencyMode, Budget budget, ResultWriter results) throws IOException {
+        try (Transaction tx = db.beginTx()) {
+            final Long centerNodeId;
+            try {
+                centerNodeId = nodeCache.getEmailNode(centerEmail);
+            } catch (ExecutionException e) {
+                return;
+            }
+            List<Long> bibliographyNodeIds = nodeCache.getBibliographEntryNodes(bibEntries);
+
+            final HashLongObjMap<String> edgeEmailsByNodeId = edgeEmails.byNodeId();
+            resolved(budget);
+
+            new ParallelBFS(dbAPI, adjacencyProvider.snapshot(adjacencyMode)).run(centerNodeId, bibliographyNodeIds, edgeEmailsByNodeId.keySet(), maxLength, budget, new ParallelBFS.PathsCallback() {
+                public void found(ParallelBFS search, long nodeId, int length, int count) {
+                    try {
+                        results.write(nodeId, edgeEmailsByNodeId.get(nodeId), length, count);
+                    } catch (IOException ex) {
+                        search.finish();
+                    }
+                }
+            });
+        }
+    }
+
+    void streamShortestPathsUsingMultiSourceBFS(List<Map<String, Object>> centers, int maxLength, String adjacencyMode, Budget budget, ResultWriter results) throws IOException {
+        try (Transaction tx = db.beginTx()) {
+            final Adjacency adjacency = adjacencyProvider.adjacency(readOperations(), adjacencyMode);
+
+            for (int start = 0; start < centers.size(); start += MultiSourceBFS.MAX_SOURCES) {
+                final MultiSourceBFS bfs = new MultiSourceBFS(adjacency, maxLength);
+                final List<String> centerEmails = new ArrayList<>();
+                final List<HashLongObjMap<String>> edgeEmailsByNodeId = new ArrayList<>();
+
+                for (Map<String, Object> center : centers.subList(start, Math.min(centers.size(), start + MultiSourceBFS.MAX_SOURCES))) {
+                    final String centerEmail = (String) center.get("center_email");
+                    final Long centerNodeId;
+                    try {
+                        centerNodeId = nodeCache.getEmailNode(centerEmail);
+                    } catch (ExecutionException e) {
+                        continue;
+                    }
+                    List<Long> bibliographyNodeIds = nodeCache.getBibliographEntryNodes((List<String>) center.get("bibliography_entries"));
+
+                    final HashLongObjMap<String> targets = EdgeEmails.resolve((List<String>) center.get("edge_emails"), nodeCache).byNodeId();
+
+                    bfs.addSource(centerNodeId, bibliographyNodeIds, targets.keySet());
+                    centerEmails.add(centerEmail);
+                    edgeEmailsByNodeId.add(targets);
+                }
+                resolved(budget);
+
+                final MutableBoolean failed = new MutableBoolean(false);
+                bfs.run(budget, new MultiSourceBFS.PathsCallback() {
+                    public void found(MultiSourceBFS search, int source, long nodeId, int length, int count) {
+                        try {
+                            results.write(nodeId, centerEmails.get(source), edgeEmailsByNodeId.get(source).get(nodeId), length, count);
+                        } catch (IOException ex) {
+                            failed.setTrue();
+                            search.finish();
+                        }
+                    }
+                });
+                if (failed.isTrue() || budget.isExhausted()) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /*
+     * Every relationship type listed, so the ego cache doesn't take these for costs that only list some types
+     */
+    static final IntIntMap unitCosts(ReadOperations readOps) {
+        final Map<Integer, Integer> costs = new HashMap<>();
+        for (RelationshipType type : GlobalGraphOperations.at(db).getAllRelationshipTypes()) {
+            costs.put(readOps.relationshipTypeGetForName(type.name()), 1);
+        }
+        return HashIntIntMaps.getDefaultFactory().withDefaultValue(1).newImmutableMap(costs);
+    }
+
     private static volatile IntIntMap relationships;
 
-    private static final IntIntMap relationshipCosts(ReadOperations readOps, Map<String,Integer> costs) {
+    static final IntIntMap relationshipCosts(ReadOperations readOps, Map<String,Integer> costs) {
         Builder<Integer, Integer> builder = ImmutableMap.<Integer, Integer>builder();
         for (Map.Entry<String, Integer> e : costs.entrySet()) {
             builder.put(readOps.relationshipTypeGetForName(e.getKey()), e.getValue().intValue());
@@ -428,7 +885,7 @@ public class Service {
     }
 
     //Default costs
-    private static final IntIntMap relationshipCosts(ReadOperations readOps) {
+    static final IntIntMap relationshipCosts(ReadOperations readOps) {
         if (relationships == null) {
             relationships = relationshipCosts(readOps, ImmutableMap.<String, Integer>builder()
                 .put("EqualTo", 4)
@@ -444,9 +901,7 @@ public class Service {
         return relationships;
     }
 
-    private void streamShortestPathsUsingDijkstra(String centerEmail, List<String> bibEntries, List<String> edgeEmails, int maxCost, Map<String,Integer> edgeCosts, JsonGenerator jg) {
-        int centerMaxCost = Math.max(Math.min(4, maxCost), maxCost - 4);
-        int edgeMaxCost = Math.max(0, maxCost - centerMaxCost);
+    void streamShortestPathsUsingDijkstra(String centerEmail, List<String> bibEntries, EdgeEmails edgeEmails, int maxCost, Map<String,Integer> edgeCosts, String adjacencyMode, Budget budget, ResultWriter results) {
         try (Transaction tx = db.beginTx()) {
             final Long centerNodeId;
             try {
@@ -460,80 +915,182 @@ public class Service {
             }
             startNodes.put(centerNodeId, 0);
 
-            final HashLongObjMap<String> edgeEmailsByNodeId = HashLongObjMaps.newMutableMap();
-            for (String edgeEmail : edgeEmails) {
+            final HashLongObjMap<String> edgeEmailsByNodeId = edgeEmails.byNodeId();
+            resolved(budget);
+
+            ReadOperations ops = readOperations();
+            IntIntMap relationshipCosts = edgeCosts == null ? relationshipCosts(ops) : relationshipCosts(ops, edgeCosts);
+
+            streamShortestPathsUsingDijkstra(adjacencyProvider.adjacency(ops, adjacencyMode), relationshipCosts, startNodes, edgeEmailsByNodeId, maxCost, budget, results);
+        } catch (Exception e) {
+            return;
+        }
+    }
+
+    private void streamShortestPathsUsingDijkstra(Adjacency unprofiled, IntIntMap relationshipCosts, Map<Long, Integer> startNodes, HashLongObjMap<String> edgeEmailsByNodeId, int maxCost, Budget budget, ResultWriter results) throws IOException {
+        final Adjacency adjacency = Profile.adjacency(budget, unprofiled);
+        final Traversal.NodeCallback callback = new Traversal.NodeCallback() {
+            public void explored(Traversal traversal, NodeItem node, long nodeId, int cost, int paths) {
                 try {
-                    edgeEmailsByNodeId.put(nodeCache.getEmailNode(edgeEmail), edgeEmail);
-                } catch (Exception e) {
-                    continue;
+                    results.write(nodeId, edgeEmailsByNodeId.get(nodeId), cost, paths);
+                } catch(IOException ex) {
+                    traversal.finish();
                 }
             }
+        };
 
-            ThreadToStatementContextBridge ctx = dbAPI.getDependencyResolver().resolveDependency(ThreadToStatementContextBridge.class);
-            ReadOperations ops = ctx.get().readOperations();
+        // Start nodes that keep coming back have their forward search cached, only the backward searches are left
+        final EgoNetworkCache.Forward forward = unprofiled instanceof KernelAdjacency
+            ? egoNetworkCache.forward(startNodes, relationshipCosts, maxCost, adjacency, budget) : null;
+        if (forward != null) {
+            final List<Long> remaining = new ArrayList<>();
+            final LongObjCursor<String> longObjCursor = edgeEmailsByNodeId.cursor();
+            while (longObjCursor.moveNext()) {
+                final long costPaths = forward.explored(longObjCursor.key());
+                if (costPaths != 0) {
+                    results.write(longObjCursor.key(), longObjCursor.value(), Dijkstra.cost(costPaths), Dijkstra.paths(costPaths));
+                } else {
+                    remaining.add(longObjCursor.key());
+                }
+            }
+            if (!remaining.isEmpty() && forward.frontier() != Integer.MAX_VALUE) {
+                new BidirectionalDijkstra(adjacency, relationshipCosts, forward.search(), forward.frontier(), remaining, maxCost, callback).run(budget);
+            }
+            return;
+        }
+
+        new BidirectionalDijkstra(adjacency, relationshipCosts, startNodes, edgeEmailsByNodeId.keySet(), maxCost, callback).run(budget);
+    }
+
+    void streamShortestPathsUsingParallelDijkstra(String centerEmail, List<String> bibEntries, EdgeEmails edgeEmails, int maxCost, Map<String,Integer> edgeCosts, String adjacencyMode, Budget budget, ResultWriter results) {
+        try (Transaction tx = db.beginTx()) {
+            final Long centerNodeId;
+            try {
+                centerNodeId = nodeCache.getEmailNode(centerEmail);
+            } catch (ExecutionException e) {
+                return;
+            }
+            Map<Long, Integer> startNodes = HashLongIntMaps.newMutableMap();
+            for (Long nodeId : nodeCache.getBibliographEntryNodes(bibEntries))  {
+                startNodes.put(nodeId, 1);
+            }
+            startNodes.put(centerNodeId, 0);
+
+            final HashLongObjMap<String> edgeEmailsByNodeId = edgeEmails.byNodeId();
+            resolved(budget);
+
+            ReadOperations ops = readOperations();
             IntIntMap relationshipCosts = edgeCosts == null ? relationshipCosts(ops) : relationshipCosts(ops, edgeCosts);
 
-            Dijkstra centerTraversal = new Dijkstra(ops, relationshipCosts, startNodes, centerMaxCost, new Traversal.NodeCallback() {
-                public void explored(Traversal traversal, NodeItem node, long nodeId, int cost, int paths) {
-                    String email = edgeEmailsByNodeId.remove(nodeId);
-                    if (email != null) { //found a match!
-                        try {
-                            writeResultObject(jg, email, cost, paths);
-                        } catch(IOException ex) {
-                            traversal.finish();
-                            return;
-                        }
-                        if (edgeEmailsByNodeId.isEmpty()) {
-                            traversal.finish();
-                        }
-                    }
-                }
-            });
-            centerTraversal.run();
-            for (Long nodeId : edgeEmailsByNodeId.keySet()) {
-                // java doesn't let you use mutable variables in a closure
-                final MutableInt minCost = new MutableInt(0);
-                final MutableInt totalPaths = new MutableInt(0);
-
-                new Dijkstra(ops, relationshipCosts, ImmutableMap.<Long, Integer>of(nodeId, 0), edgeMaxCost, new Traversal.NodeCallback() {
-                    public void explored(Traversal traversal, NodeItem node, long connectingNode, int cost, int paths) {
-                        if (centerTraversal.hasExplored(connectingNode)) {
-                            cost = centerTraversal.getCost(connectingNode) + cost;
-                            paths = centerTraversal.getPaths(connectingNode) * paths;
-                            if (minCost.intValue() == 0 || cost < minCost.intValue()) {
-                                minCost.setValue(cost);
-                                totalPaths.setValue(paths);
-                            } else if (cost == minCost.intValue()) {
-                                totalPaths.add(paths);
-                            } else {//keep adding up connecting paths until we hit a higher cost
+            new ParallelDijkstra(dbAPI, adjacencyProvider.snapshot(adjacencyMode), relationshipCosts, maxCost)
+                .run(startNodes, edgeEmailsByNodeId.keySet(), budget, new Traversal.NodeCallback() {
+                    public void explored(Traversal traversal, NodeItem node, long nodeId, int cost, int paths) {
+                        // results come in from every worker, one at a time through the same writer
+                        synchronized (results) {
+                            try {
+                                results.write(nodeId, edgeEmailsByNodeId.get(nodeId), cost, paths);
+                            } catch(IOException ex) {
                                 traversal.finish();
                             }
                         }
                     }
-                }).run();
-                if (minCost.intValue() == 0) { //we didnt find any connections
-                    continue;
-                }
-
-                String email = edgeEmailsByNodeId.get(nodeId);
-                try {
-                    writeResultObject(jg, email, minCost.intValue(), totalPaths.intValue());
-                } catch(IOException ex) {
-                    return;
-                }
-            }
+                });
         } catch (Exception e) {
             return;
         }
     }
 
-    private void writeResultObject(JsonGenerator jg, String email, int length, int count) throws IOException {
-        jg.writeStartObject();
-        jg.writeStringField("email", email);
-        jg.writeNumberField("length", length);
-        jg.writeNumberField("count", count);
-        jg.writeEndObject();
-        jg.writeRaw("\n");
-        jg.flush();
+    /*
+     * Ends the response with a truncation marker, or fails it, when the search ran out of budget,
+     * then with the profile when the request asked for one
+     */
+    private void close(ResultWriter results, Budget budget, String engine) throws IOException {
+        if (budget.isExhausted()) {
+            if (budget.failsWhenExhausted()) {
+                throw Exceptions.timedOut;
+            }
+            results.truncated(budget.exhaustedBy());
+        }
+        if (budget.profile() != null) {
+            try (Transaction tx = db.beginTx()) {
+                final ReadOperations ops = readOperations();
+                results.profile(budget.profile(), engine, new Profile.TypeNames() {
+                    public String name(int typeId) {
+                        try {
+                            return ops.relationshipTypeGetName(typeId);
+                        } catch (RelationshipTypeIdNotFoundKernelException e) {
+                            return String.valueOf(typeId);
+                        }
+                    }
+                });
+                tx.success();
+            }
+        }
+        results.close();
+    }
+
+    /*
+     * @return the bibliography entries the center doesn't reach in one step. The BFS only pretends there are length 1
+     * paths to the others, engines that start from every entry would count the center's paths to them twice
+     */
+    private static List<Long> notNextTo(Adjacency adjacency, long centerNodeId, List<Long> bibliographyNodeIds) {
+        if (bibliographyNodeIds.isEmpty()) {
+            return bibliographyNodeIds;
+        }
+        final LongSet centerNeighbors = HashLongSets.newMutableSet();
+        final AdjacencyCursor relationshipCursor = adjacency.relationships(centerNodeId);
+        while (relationshipCursor.next()) {
+            centerNeighbors.add(relationshipCursor.otherNode());
+        }
+        final List<Long> notNext = new ArrayList<>();
+        for (Long nodeId : bibliographyNodeIds) {
+            if (!centerNeighbors.contains(nodeId.longValue())) {
+                notNext.add(nodeId);
+            }
+        }
+        return notNext;
+    }
+
+    /*
+     * Whatever the request spent so far went into finding its nodes
+     */
+    private static void resolved(Budget budget) {
+        if (budget.profile() != null) {
+            budget.profile().resolved();
+        }
+    }
+
+    /*
+     * Counts the nodes the built-in algorithm expands and the relationships it reads, from both of its sides
+     */
+    private static final class CountingExpander implements PathExpander<Object> {
+        private final PathExpander<Object> expander;
+        private final CountingExpander counts;
+        private long expanded;
+        private long relationships;
+
+        private CountingExpander(PathExpander<Object> expander) {
+            this.expander = expander;
+            this.counts = this;
+        }
+
+        private CountingExpander(PathExpander<Object> expander, CountingExpander counts) {
+            this.expander = expander;
+            this.counts = counts;
+        }
+
+        public Iterable<Relationship> expand(org.neo4j.graphdb.Path path, BranchState<Object> state) {
+            this.counts.expanded++;
+            return Iterables.transform(this.expander.expand(path, state), new Function<Relationship, Relationship>() {
+                public Relationship apply(Relationship relationship) {
+                    counts.relationships++;
+                    return relationship;
+                }
+            });
+        }
+
+        public PathExpander<Object> reverse() {
+            return new CountingExpander(this.expander.reverse(), this.counts);
+        }
     }
 }
@@ -0,0 +1,199 @@
+package com.maxdemarzi.shortest;
+
+import java.util.Arrays;
+
+import net.openhft.koloboke.collect.LongCursor;
+import net.openhft.koloboke.collect.map.LongIntMap;
+import net.openhft.koloboke.collect.set.hash.HashLongSet;
+import net.openhft.koloboke.collect.set.hash.HashLongSets;
+
+/**
+ * A set of node ids that is emptied in constant time once it is large, so it can be kept and reused from one search
+ * to the next.
+ *
+ * It starts out as a hash set. Once it holds HASH_LIMIT nodes, and they are dense enough that a page of stamps has
+ * at least DENSITY of them on average, every node id gets a stamp, and it is in the set while its stamp is the
+ * current generation. The stamps are chars in pages of 256, only allocated once a node on them is added, in chunks
+ * of 256 pages. Clearing moves on to the next generation and goes back to hashing, so a small search never touches
+ * the pages a big one left behind. Once the generations wrap around every stamp is zeroed, every 65535 clears.
+ *
+ * Nodes too scattered for pages, ids spread over the whole store, stay hashed however many there are: a page costs
+ * 512 bytes and a hashed node about ENTRY_BYTES.
+ */
+final class StampedNodeSet implements NodeSet {
+
+    static final int HASH_LIMIT = 1 << 12;
+    private static final int DENSITY = 16;
+    private static final int ENTRY_BYTES = 16;
+
+    private static final int PAGE_BITS = 8;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int CHUNK_BITS = 8;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+    private HashLongSet hashed = HashLongSets.newMutableSet();
+    private char[][][] chunks = new char[16][][];
+    private int chunkCount;
+    private int pageCount;
+    private char generation = 1;
+    private boolean paged;
+    private long hashLimit = HASH_LIMIT;
+    private long size;
+
+    public boolean contains(long nodeId) {
+        if (!this.paged) {
+            return this.hashed.contains(nodeId);
+        }
+        final long chunk = nodeId >>> (PAGE_BITS + CHUNK_BITS);
+        if (chunk >= this.chunks.length) {
+            return false;
+        }
+        final char[][] pages = this.chunks[(int) chunk];
+        if (pages == null) {
+            return false;
+        }
+        final char[] stamps = pages[(int) (nodeId >>> PAGE_BITS) & (CHUNK_SIZE - 1)];
+        return stamps != null && stamps[(int) nodeId & (PAGE_SIZE - 1)] == this.generation;
+    }
+
+    public boolean add(long nodeId) {
+        if (this.paged) {
+            return stamp(nodeId);
+        }
+        if (!this.hashed.add(nodeId)) {
+            return false;
+        }
+        if (++this.size >= this.hashLimit) {
+            page();
+        }
+        return true;
+    }
+
+    private boolean stamp(long nodeId) {
+        final int chunk = (int) (nodeId >>> (PAGE_BITS + CHUNK_BITS));
+        if (chunk >= this.chunks.length) {
+            this.chunks = Arrays.copyOf(this.chunks, Math.max(chunk + 1, this.chunks.length * 2));
+        }
+        char[][] pages = this.chunks[chunk];
+        if (pages == null) {
+            pages = this.chunks[chunk] = new char[CHUNK_SIZE][];
+            this.chunkCount++;
+        }
+        final int page = (int) (nodeId >>> PAGE_BITS) & (CHUNK_SIZE - 1);
+        char[] stamps = pages[page];
+        if (stamps == null) {
+            stamps = pages[page] = new char[PAGE_SIZE];
+            this.pageCount++;
+        }
+        final int index = (int) nodeId & (PAGE_SIZE - 1);
+        if (stamps[index] == this.generation) {
+            return false;
+        }
+        stamps[index] = this.generation;
+        this.size++;
+        return true;
+    }
+
+    /*
+     * Moves the hashed nodes to pages if there are enough of them on each, or checks again once there are twice as many
+     */
+    private void page() {
+        final HashLongSet touched = HashLongSets.newMutableSet();
+        LongCursor cursor = this.hashed.cursor();
+        while (cursor.moveNext()) {
+            touched.add(cursor.elem() >>> PAGE_BITS);
+        }
+        if ((long) touched.size() * DENSITY > this.size) {
+            this.hashLimit = this.size * 2;
+            return;
+        }
+        this.paged = true;
+        this.size = 0;
+        cursor = this.hashed.cursor();
+        while (cursor.moveNext()) {
+            stamp(cursor.elem());
+        }
+        this.hashed.clear();
+    }
+
+    public void addAll(LongIntMap nodes) {
+        final LongCursor cursor = nodes.keySet().cursor();
+        while (cursor.moveNext()) {
+            add(cursor.elem());
+        }
+    }
+
+    public void addTo(NodeSet other) {
+        if (!this.paged) {
+            final LongCursor cursor = this.hashed.cursor();
+            while (cursor.moveNext()) {
+                other.add(cursor.elem());
+            }
+            return;
+        }
+        for (int chunk = 0; chunk < this.chunks.length; chunk++) {
+            final char[][] pages = this.chunks[chunk];
+            if (pages == null) {
+                continue;
+            }
+            for (int page = 0; page < CHUNK_SIZE; page++) {
+                final char[] stamps = pages[page];
+                if (stamps == null) {
+                    continue;
+                }
+                final long first = (((long) chunk << CHUNK_BITS) | page) << PAGE_BITS;
+                for (int i = 0; i < PAGE_SIZE; i++) {
+                    if (stamps[i] == this.generation) {
+                        other.add(first | i);
+                    }
+                }
+            }
+        }
+    }
+
+    public long size() {
+        return this.size;
+    }
+
+    /**
+     * @return how many pages of stamps are allocated
+     */
+    int pages() {
+        return this.pageCount;
+    }
+
+    /**
+     * @return roughly how much memory the hashed nodes and the pages of stamps take
+     */
+    long bytes() {
+        return (this.paged ? 0 : this.size * ENTRY_BYTES)
+                + (long) this.pageCount * PAGE_SIZE * 2
+                + (long) this.chunkCount * CHUNK_SIZE * 8;
+    }
+
+    public void clear() {
+        if (this.paged) {
+            if (++this.generation == 0) {
+                for (char[][] pages : this.chunks) {
+                    if (pages == null) {
+                        continue;
+                    }
+                    for (char[] stamps : pages) {
+                        if (stamps != null) {
+                            Arrays.fill(stamps, (char) 0);
+                        }
+                    }
+                }
+                this.generation = 1;
+            }
+            this.paged = false;
+        } else if (this.size > HASH_LIMIT) {
+            // don't keep a large table around that every later clear would have to go through
+            this.hashed = HashLongSets.newMutableSet();
+        } else {
+            this.hashed.clear();
+        }
+        this.hashLimit = HASH_LIMIT;
+        this.size = 0;
+    }
+}
@@ -5,6 +5,7 @@ import org.neo4j.kernel.api.cursor.NodeItem;
 public abstract class Traversal {
 
     private boolean finished;
+    protected Profile profile;
 
     public Traversal() {
         this.finished = false;
@@ -23,9 +24,29 @@ public abstract class Traversal {
     }
 
     public void run() {
+        this.run(Budget.UNLIMITED);
+    }
+
+    /**
+     * Steps until finished, or until the budget runs out, counting every step as an expanded node
+     */
+    public void run(Budget budget) {
+        this.useProfile(budget.profile());
+        long steps = 0;
         while (!this.isFinished()) {
             this.step();
+            if (!budget.check(++steps, this.visited())) {
+                this.finish();
+            }
         }
+        budget.spent(steps, this.relationships(), this.peakFrontier(), this.visited());
+    }
+
+    /**
+     * @param profile: where to report the costs the traversal explores nodes at, null for nowhere
+     */
+    void useProfile(Profile profile) {
+        this.profile = profile;
     }
 
     public void finish() {
@@ -41,4 +62,25 @@ public abstract class Traversal {
     protected abstract boolean hasExplored(long nodeId);
     protected abstract int getCost(long nodeId);
     protected abstract int getPaths(long nodeId);
+
+    /**
+     * @return the number of entries in the traversal's largest visited map
+     */
+    protected long visited() {
+        return 0;
+    }
+
+    /**
+     * @return the number of relationships read so far
+     */
+    protected long relationships() {
+        return 0;
+    }
+
+    /**
+     * @return the largest the traversal's queue got
+     */
+    protected long peakFrontier() {
+        return 0;
+    }
 }
@@ -0,0 +1,130 @@
+package com.maxdemarzi.shortest;
+
+import net.openhft.koloboke.collect.map.hash.HashLongIntMap;
+import net.openhft.koloboke.collect.map.hash.HashLongIntMaps;
+import net.openhft.koloboke.collect.map.hash.HashLongLongMap;
+import net.openhft.koloboke.collect.map.hash.HashLongLongMaps;
+
+/**
+ * The maps and sets a search keeps its frontiers, visited nodes and costs in, kept per thread and lent to one
+ * search at a time. A request thread or worker that searches over and over stops allocating them, and stops
+ * growing them by rehashing once they are as big as its searches get.
+ *
+ * The frontier maps are double buffered, the next level goes into whichever one isn't the current level, cleared
+ * first. The visited set is a StampedNodeSet, hashed while small or scattered and cleared in constant time once
+ * it is paged, which a search whose frontier grows large trades for a NodeBitmap. Maps and sets that grew past
+ * MAX_RETAINED_ENTRIES or MAX_RETAINED_BYTES aren't kept once the search is done, so one huge search doesn't leave
+ * its thread holding on to all that memory.
+ *
+ * A search that finds its thread's state lent out already, started from another search's callback, gets
+ * a fresh one of its own.
+ */
+final class TraversalState {
+
+    private static final int MAX_RETAINED_ENTRIES = 1 << 16;
+    private static final long MAX_RETAINED_BYTES = 4 << 20;
+
+    private static final ThreadLocal<TraversalState> states = new ThreadLocal<TraversalState>() {
+        @Override
+        protected TraversalState initialValue() {
+            return new TraversalState();
+        }
+    };
+
+    private HashLongIntMap first = HashLongIntMaps.newMutableMap();
+    private HashLongIntMap second = HashLongIntMaps.newMutableMap();
+    private HashLongLongMap paths = HashLongLongMaps.newMutableMap(500);
+    private HashLongLongMap backwardPaths = HashLongLongMaps.newMutableMap(500);
+    private StampedNodeSet visited = new StampedNodeSet();
+    private NodeBitmap bitmap = new NodeBitmap();
+    private int peakFrontier;
+    private boolean lent;
+
+    private TraversalState() {
+    }
+
+    /**
+     * @return the state of this thread, empty, to give back with release() once the search is done
+     */
+    static TraversalState acquire() {
+        final TraversalState state = states.get();
+        if (state.lent) {
+            return new TraversalState();
+        }
+        state.lent = true;
+        return state;
+    }
+
+    /**
+     * @param current: the current level, null or a map that isn't one of ours before the first level
+     * @return an empty frontier map that isn't the current level
+     */
+    HashLongIntMap next(HashLongIntMap current) {
+        final HashLongIntMap next = current == this.first ? this.second : this.first;
+        this.peakFrontier = Math.max(this.peakFrontier, next.size());
+        next.clear();
+        return next;
+    }
+
+    NodeSet visited() {
+        return this.visited;
+    }
+
+    /**
+     * @param frontier: the size of the search's current level
+     * @return the visited set to go on with, the thread's NodeBitmap holding the same nodes once the frontier is dense
+     */
+    NodeSet visited(NodeSet visited, long frontier) {
+        if (!NodeBitmap.dense(visited, frontier)) {
+            return visited;
+        }
+        visited.addTo(this.bitmap);
+        return this.bitmap;
+    }
+
+    /**
+     * @return an empty map for a Dijkstra search to keep its costs and paths in
+     */
+    HashLongLongMap paths() {
+        return this.paths;
+    }
+
+    /**
+     * @return another one, for the backward side of a bidirectional Dijkstra search
+     */
+    HashLongLongMap backwardPaths() {
+        return this.backwardPaths;
+    }
+
+    void release() {
+        if (Math.max(this.peakFrontier, Math.max(this.first.size(), this.second.size())) > MAX_RETAINED_ENTRIES) {
+            this.first = HashLongIntMaps.newMutableMap();
+            this.second = HashLongIntMaps.newMutableMap();
+        } else {
+            this.first.clear();
+            this.second.clear();
+        }
+        this.peakFrontier = 0;
+        this.paths = cleared(this.paths);
+        this.backwardPaths = cleared(this.backwardPaths);
+        if (this.visited.bytes() > MAX_RETAINED_BYTES) {
+            this.visited = new StampedNodeSet();
+        } else {
+            this.visited.clear();
+        }
+        if (this.bitmap.bytes() > MAX_RETAINED_BYTES) {
+            this.bitmap = new NodeBitmap();
+        } else {
+            this.bitmap.clear();
+        }
+        this.lent = false;
+    }
+
+    private static HashLongLongMap cleared(HashLongLongMap map) {
+        if (map.size() > MAX_RETAINED_ENTRIES) {
+            return HashLongLongMaps.newMutableMap(500);
+        }
+        map.clear();
+        return map;
+    }
+}
@@ -1,27 +1,59 @@
 package com.maxdemarzi.shortest;
 
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonProcessingException;
+import org.codehaus.jackson.JsonToken;
 import org.codehaus.jackson.map.ObjectMapper;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 public class Validators {
 
     private static final ObjectMapper objectMapper = new ObjectMapper();
 
+    // A search adds a cost from each side where they meet, at most max_cost each
+    static final int MAX_COST = Integer.MAX_VALUE / 2;
+
     public static HashMap getValidQueryInput(String body) throws IOException {
         HashMap input = parseInput(body);
         validateStartNodes(input);
         validateEndNodes(input);
         validateLength(input);
+        validateBudget(input);
         return input;
     }
 
-    public static HashMap getValidDijkstraInput(String body) throws IOException {
-        HashMap input = parseInput(body);
+    /**
+     * Reads the body as it arrives, resolving edge_emails to an EdgeEmails along the way, in a transaction
+     */
+    public static HashMap getValidQueryInput(InputStream body, NodeCache nodeCache) throws IOException {
+        HashMap input = parseInput(body, nodeCache);
+        validateStartNodes(input);
+        validateEndNodes(input);
+        validateLength(input);
+        validateBudget(input);
+        return input;
+    }
+
+    public static HashMap getValidDijkstraInput(InputStream body, NodeCache nodeCache) throws IOException {
+        HashMap input = parseInput(body, nodeCache);
         validateStartNodes(input);
         validateEndNodes(input);
         validateCost(input);
+        validateBudget(input);
+        return input;
+    }
+
+    public static HashMap getValidBatchQueryInput(String body) throws IOException {
+        HashMap input = parseInput(body);
+        validateCenters(input);
+        validateLength(input);
+        validateBudget(input);
         return input;
     }
 
@@ -33,6 +65,54 @@ public class Validators {
         }
     }
 
+    /*
+     * Binds every field but edge_emails as parseInput(String) would, edge_emails are resolved a batch at a time
+     * and never all held as a list
+     */
+    private static HashMap parseInput(InputStream body, NodeCache nodeCache) throws IOException {
+        try (JsonParser parser = objectMapper.getJsonFactory().createJsonParser(body)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw Exceptions.invalidInput;
+            }
+            HashMap input = new HashMap();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                parser.nextToken();
+                if ("edge_emails".equals(field)) {
+                    input.put(field, parseEdgeEmails(parser, nodeCache));
+                } else {
+                    input.put(field, objectMapper.readValue(parser, Object.class));
+                }
+            }
+            return input;
+        } catch (JsonProcessingException e) {
+            throw Exceptions.invalidInput;
+        }
+    }
+
+    private static EdgeEmails parseEdgeEmails(JsonParser parser, NodeCache nodeCache) throws IOException {
+        // Make sure the edge_emails is an array of emails, before reading the rest of the body
+        if (parser.getCurrentToken() != JsonToken.START_ARRAY) {
+            throw Exceptions.invalidEdgeEmailsParameter;
+        }
+        EdgeEmails edgeEmails = new EdgeEmails();
+        // Enough for every worker to look up a batch
+        int batchSize = NodeCache.BATCH_SIZE * Workers.parallelism();
+        List<String> batch = new ArrayList<>();
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            if (parser.getCurrentToken() != JsonToken.VALUE_STRING) {
+                throw Exceptions.invalidEdgeEmailsParameter;
+            }
+            batch.add(parser.getText());
+            if (batch.size() == batchSize) {
+                edgeEmails.addAll(batch, nodeCache);
+                batch.clear();
+            }
+        }
+        edgeEmails.addAll(batch, nodeCache);
+        return edgeEmails;
+    }
+
     private static void validateStartNodes(HashMap input) {
         // Make sure it has a center_email parameter
         if (!input.containsKey("center_email")) {
@@ -63,6 +143,44 @@ public class Validators {
         }
     }
 
+    private static void validateCenters(HashMap input) {
+        // Make sure it has a centers parameter
+        if (!input.containsKey("centers")) {
+            throw Exceptions.missingCentersParameter;
+        }
+        // Make sure centers is a list of queries, each with its own start and end nodes
+        if (!(input.get("centers") instanceof List) || ((List) input.get("centers")).isEmpty()) {
+            throw Exceptions.invalidCentersParameter;
+        }
+        for (Object center : (List) input.get("centers")) {
+            if (!(center instanceof HashMap)) {
+                throw Exceptions.invalidCentersParameter;
+            }
+            validateStartNodes((HashMap) center);
+            validateEndNodes((HashMap) center);
+        }
+    }
+
+    private static void validateBudget(HashMap input) {
+        // The budget is optional
+        if (!input.containsKey("budget")) {
+            return;
+        }
+        // Make sure the budget is an object of non negative limits and a known mode
+        if (!(input.get("budget") instanceof Map)) {
+            throw Exceptions.invalidBudgetParameter;
+        }
+        Map<?, ?> budget = (Map<?, ?>) input.get("budget");
+        for (String limit : new String[] {"time_ms", "max_expanded", "max_visited"}) {
+            if (budget.containsKey(limit) && !(budget.get(limit) instanceof Number && ((Number) budget.get(limit)).longValue() >= 0)) {
+                throw Exceptions.invalidBudgetParameter;
+            }
+        }
+        if (budget.containsKey("on_exhausted") && !Budget.PARTIAL.equals(budget.get("on_exhausted")) && !Budget.FAIL.equals(budget.get("on_exhausted"))) {
+            throw Exceptions.invalidBudgetParameter;
+        }
+    }
+
     private static void validateLength(HashMap input) {
         // Make sure the length is not blank
         if (!input.containsKey("length")) {
@@ -79,10 +197,25 @@ public class Validators {
         if (!input.containsKey("max_cost")) {
             throw Exceptions.missingCostParameter;
         }
-        // Make sure the max_cost is not blank
-        if (input.get("max_cost") == "") {
+        // Make sure the max_cost is a non negative int, small enough that adding two costs can't overflow
+        if (!isCost(input.get("max_cost"), MAX_COST)) {
             throw Exceptions.invalidCostParameter;
         }
+        // The edge_costs are optional, an object of non negative int costs by relationship type
+        if (input.containsKey("edge_costs")) {
+            if (!(input.get("edge_costs") instanceof Map)) {
+                throw Exceptions.invalidEdgeCostsParameter;
+            }
+            for (Object cost : ((Map) input.get("edge_costs")).values()) {
+                if (!isCost(cost, Integer.MAX_VALUE)) {
+                    throw Exceptions.invalidEdgeCostsParameter;
+                }
+            }
+        }
+    }
+
+    private static boolean isCost(Object cost, int max) {
+        return cost instanceof Integer && (Integer) cost >= 0 && (Integer) cost <= max;
     }
 
 }
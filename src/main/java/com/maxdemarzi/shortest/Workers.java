@@ -0,0 +1,73 @@
+package com.maxdemarzi.shortest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.kernel.GraphDatabaseAPI;
+import org.neo4j.kernel.api.Statement;
+import org.neo4j.kernel.impl.core.ThreadToStatementContextBridge;
+
+/**
+ * The pool the parallel searches run their work on, one thread per core, shared by every request.
+ */
+final class Workers {
+
+    private static final ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    private Workers() {
+    }
+
+    static interface AdjacencyWork<T> {
+        public T run(Adjacency adjacency);
+    }
+
+    static int parallelism() {
+        return pool.getParallelism();
+    }
+
+    /**
+     * Workers don't share cursors, each reads through its own view of the snapshot,
+     * or its own transaction and statement
+     *
+     * @param snapshot: the snapshot to read relationships from, or null to read through the kernel
+     * @param budget: the request's budget, the relationships are counted by type when it is profiled
+     */
+    static <T> T withAdjacency(GraphDatabaseAPI db, AdjacencySnapshot snapshot, Budget budget, AdjacencyWork<T> work) {
+        if (snapshot != null) {
+            return work.run(Profile.adjacency(budget, snapshot.adjacency()));
+        }
+        try (Transaction tx = db.beginTx();
+             Statement statement = db.getDependencyResolver().resolveDependency(ThreadToStatementContextBridge.class).get()) {
+            final T result = work.run(Profile.adjacency(budget, new KernelAdjacency(statement.readOperations())));
+            tx.success();
+            return result;
+        }
+    }
+
+    /**
+     * Runs the tasks on the pool and waits for all of them
+     * @return their results, in the same order as the tasks
+     */
+    static <T> List<T> invokeAll(List<Callable<T>> tasks) {
+        final List<T> results = new ArrayList<>(tasks.size());
+        try {
+            for (Future<T> future : pool.invokeAll(tasks)) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for workers", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+        return results;
+    }
+}
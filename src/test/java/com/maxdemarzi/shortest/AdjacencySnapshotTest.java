@@ -0,0 +1,344 @@
+package com.maxdemarzi.shortest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.DynamicRelationshipType;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.kernel.GraphDatabaseAPI;
+import org.neo4j.kernel.impl.core.ThreadToStatementContextBridge;
+import org.neo4j.test.TestGraphDatabaseFactory;
+import org.neo4j.tooling.GlobalGraphOperations;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AdjacencySnapshotTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private GraphDatabaseService db;
+
+    @Before
+    public void setUp() {
+        db = new TestGraphDatabaseFactory().newEmbeddedDatabase(folder.getRoot());
+        db.execute(ShortestTest.MODEL_STATEMENT);
+        try (Transaction tx = db.beginTx()) {
+            // a relationship to itself is listed once, like the kernel does
+            Node loop = db.findNode(Labels.Email, "email", "eight@maxdemarzi.com");
+            loop.createRelationshipTo(loop, DynamicRelationshipType.withName("Follows"));
+            tx.success();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        db.shutdown();
+    }
+
+    @Test
+    public void shouldHaveSameRelationshipsAsTheKernel() {
+        assertSameRelationshipsAsTheKernel(CsrSnapshot.build((GraphDatabaseAPI) db));
+    }
+
+    @Test
+    public void mappedShouldHaveSameRelationshipsAsTheKernel() throws Exception {
+        File file = new File(folder.getRoot(), MappedSnapshot.FILE_NAME);
+        MappedSnapshot.write(CsrSnapshot.build((GraphDatabaseAPI) db), 1L, file);
+
+        assertSameRelationshipsAsTheKernel(MappedSnapshot.open(file));
+    }
+
+    @Test
+    public void shouldListOnlyTheTypesAskedFor() throws Exception {
+        // past the dense node threshold the kernel keeps a chain per type
+        try (Transaction tx = db.beginTx()) {
+            Node hub = db.findNode(Labels.Email, "email", "one@maxdemarzi.com");
+            for (int i = 0; i < 200; i++) {
+                hub.createRelationshipTo(db.createNode(), DynamicRelationshipType.withName("Unlisted"));
+            }
+            tx.success();
+        }
+        File file = new File(folder.getRoot(), MappedSnapshot.FILE_NAME);
+        CsrSnapshot snapshot = CsrSnapshot.build((GraphDatabaseAPI) db);
+        MappedSnapshot.write(snapshot, 1L, file);
+
+        try (Transaction tx = db.beginTx()) {
+            Adjacency kernel = new KernelAdjacency(((GraphDatabaseAPI) db).getDependencyResolver()
+                .resolveDependency(ThreadToStatementContextBridge.class).get().readOperations());
+            for (Adjacency adjacency : new Adjacency[]{kernel, snapshot.adjacency(), MappedSnapshot.open(file).adjacency()}) {
+                assertSameTypedRelationships(adjacency, "Follows");
+                assertSameTypedRelationships(adjacency, "Follows", "Unlisted");
+                assertSameTypedRelationships(adjacency);
+            }
+        }
+    }
+
+    @Test
+    public void shouldRejectTruncatedOrCorruptFiles() throws Exception {
+        File file = new File(folder.getRoot(), MappedSnapshot.FILE_NAME);
+        MappedSnapshot.write(CsrSnapshot.build((GraphDatabaseAPI) db), 1L, file);
+        byte[] bytes = Files.readAllBytes(file.toPath());
+
+        Files.write(file.toPath(), Arrays.copyOf(bytes, bytes.length - 1));
+        assertUnreadable(file);
+
+        Files.write(file.toPath(), Arrays.copyOf(bytes, bytes.length + 8));
+        assertUnreadable(file);
+
+        // the first node's degree, far larger than its record
+        byte[] corrupt = bytes.clone();
+        corrupt[4 + 4 + 8 + 8 + 4 + (ByteBuffer.wrap(bytes).getInt(24) + 1) * 4] = 0x7f;
+        Files.write(file.toPath(), corrupt);
+        assertUnreadable(file);
+
+        Files.write(file.toPath(), bytes);
+        assertNotNull(MappedSnapshot.open(file));
+    }
+
+    private static void assertUnreadable(File file) throws Exception {
+        try {
+            MappedSnapshot.open(file);
+            fail("Opened a broken snapshot");
+        } catch (IllegalStateException e) {
+            // rebuilt by the provider
+        }
+    }
+
+    @Test
+    public void shouldReuseSnapshotUntilNextCommit() {
+        AdjacencyProvider provider = AdjacencyProvider.getInstance(db);
+        AdjacencySnapshot first = provider.refresh(AdjacencyProvider.SNAPSHOT);
+        assertSame(first, provider.refresh(AdjacencyProvider.SNAPSHOT));
+
+        createNode();
+        assertNotSame(first, provider.refresh(AdjacencyProvider.SNAPSHOT));
+    }
+
+    @Test
+    public void shouldReadStaleSnapshotWhileRebuildingInTheBackground() throws Exception {
+        AdjacencyProvider provider = AdjacencyProvider.getInstance(db);
+        try {
+            // the first request only starts building it
+            assertNull(provider.snapshot(AdjacencyProvider.SNAPSHOT));
+            AdjacencySnapshot first = awaitSnapshot(provider, AdjacencyProvider.SNAPSHOT, null);
+            assertNotNull(first);
+
+            createNode();
+            provider.setMaxStaleMillis(60_000);
+            assertSame(first, provider.snapshot(AdjacencyProvider.SNAPSHOT));
+
+            // the update started by that request replaces it
+            assertNotSame(first, awaitSnapshot(provider, AdjacencyProvider.SNAPSHOT, first));
+
+            createNode();
+            provider.setMaxStaleMillis(0);
+            assertNull(provider.snapshot(AdjacencyProvider.SNAPSHOT));
+        } finally {
+            provider.setMaxStaleMillis(AdjacencyProvider.DEFAULT_MAX_STALE_MILLIS);
+        }
+    }
+
+    @Test
+    public void shouldWriteMappedSnapshotInTheBackground() throws Exception {
+        AdjacencyProvider provider = AdjacencyProvider.getInstance(db);
+        assertNull(provider.snapshot(AdjacencyProvider.MAPPED));
+        AdjacencySnapshot mapped = awaitSnapshot(provider, AdjacencyProvider.MAPPED, null);
+        assertTrue(mapped instanceof MappedSnapshot);
+        assertSameRelationshipsAsTheKernel(mapped);
+    }
+
+    @Test
+    public void shouldApplyCommittedRelationshipsToTheSnapshots() {
+        AdjacencyProvider provider = AdjacencyProvider.getInstance(db);
+        assertNotNull(provider.refresh(AdjacencyProvider.SNAPSHOT));
+        assertNotNull(provider.refresh(AdjacencyProvider.MAPPED));
+
+        try (Transaction tx = db.beginTx()) {
+            Node one = db.findNode(Labels.Email, "email", "one@maxdemarzi.com");
+            Node added = db.createNode();
+            one.createRelationshipTo(added, DynamicRelationshipType.withName("Follows"));
+            added.createRelationshipTo(added, DynamicRelationshipType.withName("Follows"));
+            added.createRelationshipTo(one, DynamicRelationshipType.withName("Added"));
+            tx.success();
+        }
+        db.execute("MATCH (:Email {email:'two@maxdemarzi.com'})-[r]-() DELETE r").close();
+        long relationshipId;
+        try (Transaction tx = db.beginTx()) {
+            Node three = db.findNode(Labels.Email, "email", "three@maxdemarzi.com");
+            relationshipId = three.createRelationshipTo(db.createNode(), DynamicRelationshipType.withName("Follows")).getId();
+            tx.success();
+        }
+        try (Transaction tx = db.beginTx()) {
+            db.getRelationshipById(relationshipId).delete();
+            tx.success();
+        }
+
+        for (String mode : new String[]{AdjacencyProvider.SNAPSHOT, AdjacencyProvider.MAPPED}) {
+            AdjacencySnapshot updated = provider.refresh(mode);
+            assertTrue(mode, updated instanceof DeltaSnapshot);
+            assertSameRelationshipsAsTheKernel(updated);
+        }
+    }
+
+    @Test
+    public void shouldReadTheStoreWhileRelationshipsAreCommitted() throws Exception {
+        // enough relationships for commits to land while they are read
+        try (Transaction tx = db.beginTx()) {
+            Node one = db.findNode(Labels.Email, "email", "one@maxdemarzi.com");
+            for (int i = 0; i < 20_000; i++) {
+                one.createRelationshipTo(db.createNode(), DynamicRelationshipType.withName("Follows"));
+            }
+            tx.success();
+        }
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final Thread writer = new Thread(new Runnable() {
+            public void run() {
+                final Deque<Long> created = new ArrayDeque<>();
+                while (writing.get()) {
+                    try (Transaction tx = db.beginTx()) {
+                        Node two = db.findNode(Labels.Email, "email", "two@maxdemarzi.com");
+                        created.add(two.createRelationshipTo(db.createNode(), DynamicRelationshipType.withName("Follows")).getId());
+                        if (created.size() > 10) {
+                            db.getRelationshipById(created.poll()).delete();
+                        }
+                        tx.success();
+                    }
+                }
+            }
+        });
+        writer.start();
+        AdjacencyProvider provider = AdjacencyProvider.getInstance(db);
+        try {
+            for (int i = 0; i < 10; i++) {
+                assertNotNull(CsrSnapshot.build((GraphDatabaseAPI) db));
+            }
+            assertNotNull(provider.refresh(AdjacencyProvider.SNAPSHOT));
+            assertNotNull(provider.refresh(AdjacencyProvider.MAPPED));
+        } finally {
+            writing.set(false);
+            writer.join();
+        }
+
+        assertSameRelationshipsAsTheKernel(provider.refresh(AdjacencyProvider.SNAPSHOT));
+        assertSameRelationshipsAsTheKernel(provider.refresh(AdjacencyProvider.MAPPED));
+    }
+
+    private static AdjacencySnapshot awaitSnapshot(AdjacencyProvider provider, String mode, AdjacencySnapshot replaced) throws Exception {
+        AdjacencySnapshot snapshot = provider.snapshot(mode);
+        for (int i = 0; i < 500 && (snapshot == null || snapshot == replaced); i++) {
+            Thread.sleep(10);
+            snapshot = provider.snapshot(mode);
+        }
+        return snapshot;
+    }
+
+    @Test
+    public void shouldLoadPersistedSnapshotUntilNextCommit() {
+        AdjacencyProvider provider = AdjacencyProvider.getInstance(db);
+        assertFalse(provider.load());
+        assertNotNull(provider.refresh(AdjacencyProvider.MAPPED));
+        assertTrue(provider.load());
+
+        createNode();
+        assertFalse(provider.load());
+    }
+
+    private void createNode() {
+        try (Transaction tx = db.beginTx()) {
+            db.createNode(Labels.Email).setProperty("email", "new@maxdemarzi.com");
+            tx.success();
+        }
+    }
+
+    private void assertSameRelationshipsAsTheKernel(AdjacencySnapshot snapshot) {
+        Adjacency adjacency = snapshot.adjacency();
+
+        try (Transaction tx = db.beginTx()) {
+            for (Node node : GlobalGraphOperations.at(db).getAllNodes()) {
+                List<String> expected = new ArrayList<>();
+                for (Relationship relationship : node.getRelationships(Direction.BOTH)) {
+                    expected.add(relationship.getOtherNode(node).getId() + ":" + relationship.getType().name());
+                }
+                List<String> actual = new ArrayList<>();
+                AdjacencyCursor cursor = adjacency.relationships(node.getId());
+                while (cursor.next()) {
+                    actual.add(cursor.otherNode() + ":" + relationshipTypeName(cursor.type()));
+                    // reading a degree leaves the cursor where it is
+                    assertEquals(db.getNodeById(cursor.otherNode()).getDegree(), adjacency.degree(cursor.otherNode()));
+                }
+                Collections.sort(expected);
+                Collections.sort(actual);
+
+                assertEquals(expected, actual);
+                assertEquals(expected.size(), adjacency.degree(node.getId()));
+            }
+        }
+    }
+
+    private void assertSameTypedRelationships(Adjacency adjacency, String... typeNames) {
+        RelationshipType[] relationshipTypes = new RelationshipType[typeNames.length];
+        int[] types = new int[typeNames.length];
+        for (int i = 0; i < typeNames.length; i++) {
+            relationshipTypes[i] = DynamicRelationshipType.withName(typeNames[i]);
+            types[i] = relationshipTypeId(relationshipTypes[i]);
+        }
+        for (Node node : GlobalGraphOperations.at(db).getAllNodes()) {
+            List<String> expected = new ArrayList<>();
+            if (types.length > 0) {
+                for (Relationship relationship : node.getRelationships(Direction.BOTH, relationshipTypes)) {
+                    expected.add(relationship.getOtherNode(node).getId() + ":" + relationship.getType().name());
+                }
+            }
+            List<String> actual = new ArrayList<>();
+            AdjacencyCursor cursor = adjacency.relationships(node.getId(), types);
+            while (cursor.next()) {
+                actual.add(cursor.otherNode() + ":" + relationshipTypeName(cursor.type()));
+            }
+            Collections.sort(expected);
+            Collections.sort(actual);
+
+            assertEquals(expected, actual);
+        }
+    }
+
+    private String relationshipTypeName(int type) {
+        for (RelationshipType relationshipType : GlobalGraphOperations.at(db).getAllRelationshipTypes()) {
+            if (relationshipTypeId(relationshipType) == type) {
+                return relationshipType.name();
+            }
+        }
+        return null;
+    }
+
+    private int relationshipTypeId(RelationshipType relationshipType) {
+        return ((GraphDatabaseAPI) db).getDependencyResolver()
+            .resolveDependency(ThreadToStatementContextBridge.class)
+            .get().readOperations().relationshipTypeGetForName(relationshipType.name());
+    }
+}
@@ -0,0 +1,125 @@
+package com.maxdemarzi.shortest;
+
+import net.openhft.koloboke.collect.map.IntIntMap;
+import net.openhft.koloboke.collect.map.hash.HashIntIntMaps;
+import net.openhft.koloboke.collect.map.hash.HashLongLongMap;
+import net.openhft.koloboke.collect.map.hash.HashLongLongMaps;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.kernel.GraphDatabaseAPI;
+import org.neo4j.kernel.api.ReadOperations;
+import org.neo4j.kernel.api.cursor.NodeItem;
+import org.neo4j.kernel.impl.core.ThreadToStatementContextBridge;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the bidirectional and parallel searches against a single Dijkstra run out to max cost on generated graphs.
+ */
+public class BidirectionalDijkstraTest {
+
+    private static final int EMAILS = 2000;
+    private static final int BIBLIOGRAPHY_ENTRIES = 200;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private GraphDatabaseService db;
+
+    @After
+    public void tearDown() {
+        db.shutdown();
+    }
+
+    @Test
+    public void shouldMatchDijkstraWithEqualCosts() {
+        assertSameAsDijkstra("uniform", false, 16);
+    }
+
+    @Test
+    public void shouldMatchDijkstraWithMixedCosts() {
+        assertSameAsDijkstra("powerlaw", true, 12);
+    }
+
+    private void assertSameAsDijkstra(String distribution, boolean mixedCosts, int maxCost) {
+        db = new TestGraphDatabaseFactory().newEmbeddedDatabase(folder.getRoot());
+        GraphGenerator generator = new GraphGenerator(db, 7);
+        generator.generate(EMAILS, BIBLIOGRAPHY_ENTRIES, 4, distribution);
+
+        try (Transaction tx = db.beginTx()) {
+            ReadOperations ops = ((GraphDatabaseAPI) db).getDependencyResolver()
+                .resolveDependency(ThreadToStatementContextBridge.class).get().readOperations();
+            IntIntMap relationshipCosts = HashIntIntMaps.getDefaultFactory().withDefaultValue(100).newMutableMap();
+            for (int type = 0; type < 8; type++) {
+                relationshipCosts.put(type, mixedCosts ? 1 + type % 3 : 4);
+            }
+            Adjacency adjacency = new KernelAdjacency(ops);
+            int found = 0;
+
+            for (int i = 0; i < 5; i++) {
+                Map<Long, Integer> startNodes = new HashMap<>();
+                for (String entry : generator.randomBibliographyEntries(BIBLIOGRAPHY_ENTRIES, 2)) {
+                    startNodes.put(db.findNode(Labels.BibliographyEntry, "id", Long.parseLong(entry)).getId(), 1);
+                }
+                startNodes.put(emailNodeId(generator.randomEmails(EMAILS, 1).get(0)), 0);
+                List<Long> targets = new ArrayList<>();
+                for (String email : generator.randomEmails(EMAILS, 50)) {
+                    Long nodeId = emailNodeId(email);
+                    if (!targets.contains(nodeId)) {
+                        targets.add(nodeId);
+                    }
+                }
+
+                final HashLongLongMap expected = HashLongLongMaps.newMutableMap();
+                new Dijkstra(adjacency, relationshipCosts, startNodes, maxCost, new Traversal.NodeCallback() {
+                    public void explored(Traversal traversal, NodeItem node, long nodeId, int cost, int paths) {
+                        expected.put(nodeId, (((long) paths) << 32) | cost);
+                    }
+                }).run();
+
+                final HashLongLongMap actual = HashLongLongMaps.newMutableMap();
+                new BidirectionalDijkstra(adjacency, relationshipCosts, startNodes, targets, maxCost, new Traversal.NodeCallback() {
+                    public void explored(Traversal traversal, NodeItem node, long nodeId, int cost, int paths) {
+                        assertFalse("reported twice " + nodeId, actual.containsKey(nodeId));
+                        actual.put(nodeId, (((long) paths) << 32) | cost);
+                    }
+                }).run();
+                for (Long target : targets) {
+                    assertEquals("target " + target, expected.containsKey(target), actual.containsKey(target));
+                    assertEquals("target " + target, expected.get(target), actual.get(target));
+                }
+
+                final HashLongLongMap parallel = HashLongLongMaps.newMutableMap();
+                new ParallelDijkstra((GraphDatabaseAPI) db, null, relationshipCosts, maxCost).run(startNodes, targets, new Traversal.NodeCallback() {
+                    public void explored(Traversal traversal, NodeItem node, long nodeId, int cost, int paths) {
+                        synchronized (parallel) {
+                            assertFalse("reported twice in parallel " + nodeId, parallel.containsKey(nodeId));
+                            parallel.put(nodeId, (((long) paths) << 32) | cost);
+                        }
+                    }
+                });
+                assertEquals(actual, parallel);
+                found += actual.size();
+            }
+            assertTrue("some targets should be in reach", found > 0);
+            tx.success();
+        }
+    }
+
+    private long emailNodeId(String email) {
+        return db.findNode(Labels.Email, "email", email).getId();
+    }
+}
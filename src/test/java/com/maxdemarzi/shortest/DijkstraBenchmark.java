@@ -0,0 +1,126 @@
+package com.maxdemarzi.shortest;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+
+import net.openhft.koloboke.collect.map.IntIntMap;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.factory.GraphDatabaseFactory;
+import org.neo4j.io.fs.FileUtils;
+import org.neo4j.kernel.GraphDatabaseAPI;
+import org.neo4j.kernel.api.ReadOperations;
+import org.neo4j.kernel.api.cursor.NodeItem;
+import org.neo4j.kernel.impl.core.ThreadToStatementContextBridge;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a single Dijkstra.step() in isolation: one queue poll plus the expansion of one node.
+ * When a traversal runs out of nodes a new one is started from the same center, so the cost
+ * of constructing a Dijkstra is spread over all the steps it takes.
+ *
+ * Run with: mvn -Pbenchmark test-compile exec:exec -Dbenchmark=DijkstraBenchmark
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class DijkstraBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Graph {
+        @Param({"1000", "10000", "100000"})
+        public int emails;
+
+        @Param({"4", "16"})
+        public int averageDegree;
+
+        @Param({"uniform", "powerlaw"})
+        public String distribution;
+
+        File storeDir;
+        GraphDatabaseService db;
+        long centerNodeId;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            storeDir = Files.createTempDir();
+            db = new GraphDatabaseFactory().newEmbeddedDatabase(storeDir);
+
+            GraphGenerator generator = new GraphGenerator(db, 42);
+            generator.generate(emails, emails / 10, averageDegree, distribution);
+            try (Transaction tx = db.beginTx()) {
+                centerNodeId = NodeCache.getInstance(db).getEmailNode(generator.randomEmails(emails, 1).get(0));
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            db.shutdown();
+            FileUtils.deleteRecursively(storeDir);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Search {
+        @Param({"16"})
+        public int maxCost;
+
+        @Param({"kernel", "snapshot", "mapped"})
+        public String adjacency;
+
+        private static final Traversal.NodeCallback NOOP = new Traversal.NodeCallback() {
+            public void explored(Traversal traversal, NodeItem node, long nodeId, int cost, int paths) {
+            }
+        };
+
+        Transaction tx;
+        Adjacency graphAdjacency;
+        IntIntMap relationshipCosts;
+        Map<Long, Integer> startNodes;
+        Dijkstra dijkstra;
+
+        // Transactions are bound to a thread, JMH runs Thread scoped setup on the benchmark thread
+        @Setup(Level.Iteration)
+        public void setUp(Graph graph) {
+            tx = graph.db.beginTx();
+            ThreadToStatementContextBridge ctx = ((GraphDatabaseAPI) graph.db).getDependencyResolver()
+                .resolveDependency(ThreadToStatementContextBridge.class);
+            ReadOperations ops = ctx.get().readOperations();
+            relationshipCosts = Service.relationshipCosts(ops);
+            graphAdjacency = AdjacencyProvider.getInstance(graph.db).adjacency(ops, adjacency);
+            startNodes = ImmutableMap.of(graph.centerNodeId, 0);
+            restart();
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() {
+            tx.close();
+        }
+
+        void restart() {
+            dijkstra = new Dijkstra(graphAdjacency, relationshipCosts, startNodes, maxCost, NOOP);
+        }
+    }
+
+    @Benchmark
+    public void step(Search search) {
+        if (search.dijkstra.isFinished()) {
+            search.restart();
+        }
+        search.dijkstra.step();
+    }
+
+    @Benchmark
+    public void run(Search search) {
+        search.restart();
+        search.dijkstra.run();
+    }
+}
@@ -0,0 +1,122 @@
+package com.maxdemarzi.shortest;
+
+import net.openhft.koloboke.collect.map.hash.HashLongLongMap;
+import net.openhft.koloboke.collect.map.hash.HashLongLongMaps;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.kernel.GraphDatabaseAPI;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the direction-optimizing search against a single source MS-BFS on a generated small world graph,
+ * going bottom-up as soon as it can, never, and where the heuristic decides.
+ */
+public class DirectionOptimizingBFSTest {
+
+    private static final int EMAILS = 2000;
+    private static final int BIBLIOGRAPHY_ENTRIES = 200;
+    private static final int LENGTH = 5;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private GraphDatabaseService db;
+    private GraphGenerator generator;
+    private CsrSnapshot snapshot;
+
+    @Before
+    public void setUp() {
+        db = new TestGraphDatabaseFactory().newEmbeddedDatabase(folder.getRoot());
+        generator = new GraphGenerator(db, 11);
+        generator.generate(EMAILS, BIBLIOGRAPHY_ENTRIES, 8, "powerlaw");
+        snapshot = CsrSnapshot.build((GraphDatabaseAPI) db);
+    }
+
+    @After
+    public void tearDown() {
+        db.shutdown();
+    }
+
+    @Test
+    public void shouldMatchTopDownWhenAlwaysBottomUp() {
+        assertTrue(assertSameAsMultiSourceBFS(snapshot, 1 << 20, 0) > 0);
+    }
+
+    @Test
+    public void shouldMatchTopDownWhenNeverBottomUp() {
+        assertEquals(0, assertSameAsMultiSourceBFS(snapshot, 0, 0));
+    }
+
+    @Test
+    public void shouldMatchTopDownWhenSwitching() {
+        assertSameAsMultiSourceBFS(snapshot, DirectionOptimizingBFS.ALPHA, DirectionOptimizingBFS.BETA);
+    }
+
+    @Test
+    public void shouldMatchTopDownOnMappedSnapshot() throws Exception {
+        File file = new File(folder.getRoot(), "bfs.adjacency");
+        assertTrue(assertSameAsMultiSourceBFS(MappedSnapshot.write(snapshot, 0, file), 1 << 20, 0) > 0);
+    }
+
+    /*
+     * @return the number of levels expanded bottom-up
+     */
+    private int assertSameAsMultiSourceBFS(AdjacencySnapshot snapshot, int alpha, int beta) {
+        int bottomUpLevels = 0;
+        int found = 0;
+        try (Transaction tx = db.beginTx()) {
+            for (int i = 0; i < 5; i++) {
+                List<Long> bibliographyNodeIds = new ArrayList<>();
+                for (String entry : generator.randomBibliographyEntries(BIBLIOGRAPHY_ENTRIES, 2)) {
+                    bibliographyNodeIds.add(db.findNode(Labels.BibliographyEntry, "id", Long.parseLong(entry)).getId());
+                }
+                long centerNodeId = emailNodeId(generator.randomEmails(EMAILS, 1).get(0));
+                List<Long> targets = new ArrayList<>();
+                for (String email : generator.randomEmails(EMAILS, 200)) {
+                    targets.add(emailNodeId(email));
+                }
+
+                final HashLongLongMap expected = HashLongLongMaps.newMutableMap();
+                MultiSourceBFS multiSourceBFS = new MultiSourceBFS(snapshot.adjacency(), LENGTH);
+                multiSourceBFS.addSource(centerNodeId, bibliographyNodeIds, targets);
+                multiSourceBFS.run(new MultiSourceBFS.PathsCallback() {
+                    public void found(MultiSourceBFS search, int source, long nodeId, int length, int count) {
+                        expected.put(nodeId, (((long) count) << 32) | length);
+                    }
+                });
+
+                final HashLongLongMap actual = HashLongLongMaps.newMutableMap();
+                DirectionOptimizingBFS bfs = new DirectionOptimizingBFS(snapshot, alpha, beta);
+                bfs.run(centerNodeId, bibliographyNodeIds, targets, LENGTH, new DirectionOptimizingBFS.PathsCallback() {
+                    public void found(DirectionOptimizingBFS search, long nodeId, int length, int count) {
+                        actual.put(nodeId, (((long) count) << 32) | length);
+                    }
+                });
+
+                assertEquals(expected, actual);
+                bottomUpLevels += bfs.bottomUpLevels();
+                found += actual.size();
+            }
+            tx.success();
+        }
+        assertTrue("some targets should be in reach", found > 0);
+        return bottomUpLevels;
+    }
+
+    private long emailNodeId(String email) {
+        return db.findNode(Labels.Email, "email", email).getId();
+    }
+}
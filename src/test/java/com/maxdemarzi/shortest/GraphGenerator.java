@@ -0,0 +1,139 @@
+package com.maxdemarzi.shortest;
+
+import org.neo4j.graphdb.DynamicRelationshipType;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.Transaction;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds synthetic Email / BibliographyEntry graphs for the benchmarks.
+ *
+ * Every node gets roughly averageDegree relationships. With the "uniform" distribution the other end
+ * of each relationship is picked uniformly at random, with "powerlaw" it is picked by preferential attachment,
+ * which gives the handful of hubs we see in the co-author graph.
+ */
+public final class GraphGenerator {
+
+    private static final RelationshipType[] TYPES = {
+        DynamicRelationshipType.withName("EqualTo"),
+        DynamicRelationshipType.withName("HasEmail"),
+        DynamicRelationshipType.withName("AuthoredBy"),
+        DynamicRelationshipType.withName("ContainsEmail"),
+        DynamicRelationshipType.withName("CoAuthorOf"),
+        DynamicRelationshipType.withName("Follows"),
+        DynamicRelationshipType.withName("hasContact"),
+        DynamicRelationshipType.withName("HasUrl"),
+        // not part of the default costs, so Dijkstra treats it as too expensive
+        DynamicRelationshipType.withName("Unlisted")
+    };
+
+    private static final int BATCH_SIZE = 10_000;
+
+    private final GraphDatabaseService db;
+    private final Random random;
+
+    public GraphGenerator(GraphDatabaseService db, long seed) {
+        this.db = db;
+        this.random = new Random(seed);
+    }
+
+    public static String email(int i) {
+        return "user" + i + "@example.com";
+    }
+
+    public static String bibliographyEntry(int i) {
+        return String.valueOf(i);
+    }
+
+    public void generate(int emailCount, int bibliographyCount, int averageDegree, String distribution) {
+        try (Transaction tx = db.beginTx()) {
+            db.schema().indexFor(Labels.Email).on("email").create();
+            db.schema().indexFor(Labels.BibliographyEntry).on("id").create();
+            tx.success();
+        }
+
+        List<Long> nodeIds = new ArrayList<>(emailCount + bibliographyCount);
+        Transaction tx = db.beginTx();
+        try {
+            for (int i = 0; i < emailCount; i++) {
+                Node node = db.createNode(Labels.Email);
+                node.setProperty("email", email(i));
+                nodeIds.add(node.getId());
+                if (i % BATCH_SIZE == 0) {
+                    tx = commit(tx);
+                }
+            }
+            for (int i = 0; i < bibliographyCount; i++) {
+                Node node = db.createNode(Labels.BibliographyEntry);
+                node.setProperty("id", (long) i);
+                nodeIds.add(node.getId());
+                if (i % BATCH_SIZE == 0) {
+                    tx = commit(tx);
+                }
+            }
+
+            // For preferential attachment every relationship end is remembered once, so picking
+            // a random element of this list picks a node proportionally to its degree
+            final boolean powerLaw = "powerlaw".equals(distribution);
+            List<Long> ends = new ArrayList<>();
+            long relationships = (long) nodeIds.size() * averageDegree / 2;
+            for (long r = 0; r < relationships; r++) {
+                long from = nodeIds.get(random.nextInt(nodeIds.size()));
+                long to;
+                if (powerLaw && !ends.isEmpty() && random.nextInt(10) != 0) {
+                    to = ends.get(random.nextInt(ends.size()));
+                } else {
+                    to = nodeIds.get(random.nextInt(nodeIds.size()));
+                }
+                if (from == to) {
+                    continue;
+                }
+                RelationshipType type = TYPES[random.nextInt(TYPES.length)];
+                db.getNodeById(from).createRelationshipTo(db.getNodeById(to), type);
+                if (powerLaw) {
+                    ends.add(from);
+                    ends.add(to);
+                }
+                if (r % BATCH_SIZE == 0) {
+                    tx = commit(tx);
+                }
+            }
+            tx.success();
+        } finally {
+            tx.close();
+        }
+
+        try (Transaction indexTx = db.beginTx()) {
+            db.schema().awaitIndexesOnline(1, TimeUnit.MINUTES);
+            indexTx.success();
+        }
+    }
+
+    public List<String> randomEmails(int emailCount, int howMany) {
+        List<String> emails = new ArrayList<>(howMany);
+        for (int i = 0; i < howMany; i++) {
+            emails.add(email(random.nextInt(emailCount)));
+        }
+        return emails;
+    }
+
+    public List<String> randomBibliographyEntries(int bibliographyCount, int howMany) {
+        List<String> entries = new ArrayList<>(howMany);
+        for (int i = 0; i < howMany && bibliographyCount > 0; i++) {
+            entries.add(bibliographyEntry(random.nextInt(bibliographyCount)));
+        }
+        return entries;
+    }
+
+    private Transaction commit(Transaction tx) {
+        tx.success();
+        tx.close();
+        return db.beginTx();
+    }
+}
@@ -0,0 +1,37 @@
+package com.maxdemarzi.shortest;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MetricsTest {
+
+    @Test
+    public void shouldPutEveryValueInABucketThatHoldsIt() {
+        for (long value = 0; value < 1_000_000; value += 1 + value / 100) {
+            int bucket = Metrics.Histogram.bucket(value);
+            assertTrue(value <= Metrics.Histogram.upperBound(bucket));
+            assertTrue(bucket == 0 || value > Metrics.Histogram.upperBound(bucket - 1));
+        }
+        int last = Metrics.Histogram.bucket(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, Metrics.Histogram.upperBound(last));
+    }
+
+    @Test
+    public void shouldFindQuantilesWithinAnEighth() {
+        Metrics.Histogram histogram = new Metrics.Histogram();
+        for (long micros = 1; micros <= 10_000; micros++) {
+            histogram.record(micros);
+        }
+        assertEquals(10_000, histogram.count());
+        assertWithinAnEighth(5_000, histogram.quantile(0.5));
+        assertWithinAnEighth(9_900, histogram.quantile(0.99));
+        assertWithinAnEighth(9_990, histogram.quantile(0.999));
+        assertEquals(0, new Metrics.Histogram().quantile(0.5));
+    }
+
+    private static void assertWithinAnEighth(long expected, long actual) {
+        assertTrue(actual + " for " + expected, actual >= expected && actual <= expected + expected / 8);
+    }
+}
@@ -0,0 +1,137 @@
+package com.maxdemarzi.shortest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NodeIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private GraphDatabaseService db;
+
+    @Before
+    public void setUp() {
+        db = new TestGraphDatabaseFactory().newEmbeddedDatabase(folder.getRoot());
+        db.execute(ShortestTest.MODEL_STATEMENT);
+    }
+
+    @After
+    public void tearDown() {
+        db.shutdown();
+    }
+
+    @Test
+    public void shouldFindTheSameNodesAsTheLabelIndexes() {
+        NodeIndex index = new NodeIndex(db);
+        assertFalse(index.isLoaded());
+        index.load();
+        assertTrue(index.isLoaded());
+
+        try (Transaction tx = db.beginTx()) {
+            for (String email : new String[]{"start", "one", "two", "five", "eight", "onebibmail", "unconnected"}) {
+                assertEquals(db.findNode(Labels.Email, "email", email + "@maxdemarzi.com").getId(),
+                        index.emailNode(email + "@maxdemarzi.com"));
+            }
+            assertEquals(db.findNode(Labels.BibliographyEntry, "id", 1L).getId(), index.bibliographyEntryNode("1"));
+            assertEquals(db.findNode(Labels.BibliographyEntry, "id", 1L).getId(), index.bibliographyEntryNode("01"));
+            tx.success();
+        }
+        assertEquals(NodeIdTable.NONE, index.emailNode("missing@maxdemarzi.com"));
+        assertEquals(NodeIdTable.NONE, index.bibliographyEntryNode("2"));
+        assertEquals(NodeIdTable.NONE, index.bibliographyEntryNode("one"));
+        index.stop();
+    }
+
+    @Test
+    public void shouldFollowCommittedChanges() {
+        NodeIndex index = new NodeIndex(db);
+        // committed before the scan, applied after it
+        db.execute("MATCH (n:Email {email:'one@maxdemarzi.com'}) SET n.email = 'uno@maxdemarzi.com'").close();
+        index.load();
+        long one = index.emailNode("uno@maxdemarzi.com");
+        assertTrue(one != NodeIdTable.NONE);
+        assertEquals(NodeIdTable.NONE, index.emailNode("one@maxdemarzi.com"));
+
+        long created;
+        try (Transaction tx = db.beginTx()) {
+            Node node = db.createNode(Labels.Email);
+            node.setProperty("email", "new@maxdemarzi.com");
+            created = node.getId();
+            db.createNode(Labels.BibliographyEntry).setProperty("id", 2L);
+            tx.success();
+        }
+        assertEquals(created, index.emailNode("new@maxdemarzi.com"));
+        assertTrue(index.bibliographyEntryNode("2") != NodeIdTable.NONE);
+
+        db.execute("MATCH (n:Email {email:'eight@maxdemarzi.com'}) DETACH DELETE n").close();
+        db.execute("MATCH (n:Email {email:'seven@maxdemarzi.com'}) REMOVE n:Email").close();
+        db.execute("MATCH (n:Email {email:'six@maxdemarzi.com'}) REMOVE n.email").close();
+        db.execute("MATCH (n {email:'seven@maxdemarzi.com'}) SET n:Email").close();
+        assertEquals(NodeIdTable.NONE, index.emailNode("eight@maxdemarzi.com"));
+        assertEquals(NodeIdTable.NONE, index.emailNode("six@maxdemarzi.com"));
+        assertTrue(index.emailNode("seven@maxdemarzi.com") != NodeIdTable.NONE);
+        assertEquals(one, index.emailNode("uno@maxdemarzi.com"));
+
+        // a rolled back transaction changes nothing
+        try (Transaction tx = db.beginTx()) {
+            db.createNode(Labels.Email).setProperty("email", "rolledback@maxdemarzi.com");
+            tx.failure();
+        }
+        assertEquals(NodeIdTable.NONE, index.emailNode("rolledback@maxdemarzi.com"));
+        index.stop();
+    }
+
+    @Test
+    public void shouldKeepEveryKeyThroughGrowingAndRemoving() {
+        assertKeepsEveryKey(new NodeIdTable());
+    }
+
+    @Test
+    public void shouldKeepEveryKeyAcrossManyBuffers() {
+        // buffers of 1024 slots and 4KB of keys, as the 1GB ones are split past 64M slots or 1GB of keys
+        NodeIdTable table = new NodeIdTable(10, 12);
+        assertKeepsEveryKey(table);
+        assertTrue(table.bytes() > 16 * 1024 * 16 + 4096 * 16);
+    }
+
+    private static void assertKeepsEveryKey(NodeIdTable table) {
+        Map<String, Long> expected = new HashMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 50000; i++) {
+            String key = "email" + random.nextInt(20000) + "@éxample.com";
+            if (random.nextInt(3) == 0) {
+                Long nodeId = expected.remove(key);
+                table.remove(key, nodeId == null ? i : nodeId);
+            } else {
+                expected.put(key, (long) i);
+                table.put(key, i);
+            }
+        }
+        assertEquals(expected.size(), table.size());
+        for (Map.Entry<String, Long> entry : expected.entrySet()) {
+            assertEquals(entry.getValue().longValue(), table.get(entry.getKey()));
+        }
+        for (int i = 0; i < 20000; i++) {
+            String key = "email" + i + "@éxample.com";
+            if (!expected.containsKey(key)) {
+                assertEquals(NodeIdTable.NONE, table.get(key));
+            }
+        }
+    }
+}
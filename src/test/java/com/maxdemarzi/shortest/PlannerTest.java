@@ -0,0 +1,72 @@
+package com.maxdemarzi.shortest;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+public class PlannerTest {
+
+    // Every node leads to 10 more, the graph is big enough not to matter
+    private static final Planner.Statistics GROWING = new Planner.Statistics(10, 1e12, 0, 0);
+
+    @After
+    public void tearDown() {
+        Planner.setWeights(Planner.DEFAULT_WEIGHTS);
+    }
+
+    @Test
+    public void shouldSearchFromTheCenterForManyTargets() {
+        Planner.Plan plan = Planner.plan(GROWING, true, 10, new long[0], degrees(1000, 10), 4);
+        assertEquals(Metrics.BFS, plan.engine());
+        // 10 + 100 + 1000 from the center, then 10 for every target
+        assertEquals(11110, plan.predicted());
+    }
+
+    @Test
+    public void shouldMeetInTheMiddleForAFarAwayTarget() {
+        Planner.Plan plan = Planner.plan(GROWING, true, 10, new long[0], degrees(1, 10), 6);
+        assertEquals(Metrics.BIDIRECTIONAL_BFS, plan.engine());
+        assertEquals(2220, plan.predicted());
+        assertEquals(111120, plan.estimate(Metrics.BFS));
+    }
+
+    @Test
+    public void shouldGrowTheCheaperSideForABusyCenter() {
+        Planner.Plan plan = Planner.plan(GROWING, true, 1000, new long[0], degrees(5, 1), 4);
+        assertEquals(Metrics.DIJKSTRA, plan.engine());
+        // the center's relationships, then three levels out of every target
+        assertEquals(1000 + 5 * 111, plan.predicted());
+    }
+
+    @Test
+    public void shouldOnlyPickTheBuiltinAlgorithmThroughTheKernel() {
+        Planner.setWeights("builtin:0.5");
+        assertEquals(Metrics.BUILTIN, Planner.plan(GROWING, true, 10, new long[0], degrees(1, 10), 6).engine());
+
+        Planner.Plan plan = Planner.plan(GROWING, false, 10, new long[0], degrees(1, 10), 6);
+        assertEquals(Metrics.BIDIRECTIONAL_BFS, plan.engine());
+        assertEquals(-1, plan.estimate(Metrics.BUILTIN));
+    }
+
+    @Test
+    public void shouldNeverExpectMoreThanTheGraphPerLevel() {
+        Planner.Statistics small = new Planner.Statistics(10, 50, 0, 0);
+        Planner.Plan plan = Planner.plan(small, true, 10, new long[0], degrees(1, 10), 6);
+        // 10 from the center, 50 for each of the next four levels, 10 from the target
+        assertEquals(220, plan.estimate(Metrics.BFS));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectUnknownEngines() {
+        Planner.setWeights("dijkstra:2,astar:1");
+    }
+
+    private static long[] degrees(int targets, long degree) {
+        long[] degrees = new long[targets];
+        Arrays.fill(degrees, degree);
+        return degrees;
+    }
+}
@@ -0,0 +1,158 @@
+package com.maxdemarzi.shortest;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.factory.GraphDatabaseFactory;
+import org.neo4j.io.fs.FileUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures each traversal engine behind the Service endpoints on the same synthetic graph.
+ *
+ * Run with: mvn -Pbenchmark test-compile exec:exec
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ServiceBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int emails;
+
+    @Param({"4", "16"})
+    public int averageDegree;
+
+    @Param({"uniform", "powerlaw"})
+    public String distribution;
+
+    @Param({"10", "1000"})
+    public int targets;
+
+    @Param({"4"})
+    public int length;
+
+    @Param({"16"})
+    public int maxCost;
+
+    @Param({"kernel", "snapshot", "mapped"})
+    public String adjacency;
+
+    private File storeDir;
+    private GraphDatabaseService db;
+    private Service service;
+    private ResultWriter results;
+
+    private String centerEmail;
+    private List<String> bibEntries;
+    private EdgeEmails edgeEmails;
+    private List<Map<String, Object>> centers;
+    private List<EdgeEmails> centerEdgeEmails;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        storeDir = Files.createTempDir();
+        db = new GraphDatabaseFactory().newEmbeddedDatabase(storeDir);
+
+        int bibliographyEntries = emails / 10;
+        GraphGenerator generator = new GraphGenerator(db, 42);
+        generator.generate(emails, bibliographyEntries, averageDegree, distribution);
+
+        centerEmail = generator.randomEmails(emails, 1).get(0);
+        bibEntries = generator.randomBibliographyEntries(bibliographyEntries, 3);
+        List<String> edgeEmailList = generator.randomEmails(emails, targets);
+
+        // A batch of centers, each with its own targets, as a recommendation job would send them
+        centers = new ArrayList<>();
+        for (int i = 0; i < MultiSourceBFS.MAX_SOURCES; i++) {
+            Map<String, Object> center = new HashMap<>();
+            center.put("center_email", generator.randomEmails(emails, 1).get(0));
+            center.put("bibliography_entries", generator.randomBibliographyEntries(bibliographyEntries, 3));
+            center.put("edge_emails", generator.randomEmails(emails, targets));
+            centers.add(center);
+        }
+
+        service = new Service(db);
+
+        // Requests have their edge emails found while the body is read, before the search
+        NodeCache nodeCache = NodeCache.getInstance(db);
+        try (Transaction tx = db.beginTx()) {
+            edgeEmails = EdgeEmails.resolve(edgeEmailList, nodeCache);
+            centerEdgeEmails = new ArrayList<>();
+            for (Map<String, Object> center : centers) {
+                centerEdgeEmails.add(EdgeEmails.resolve((List<String>) center.get("edge_emails"), nodeCache));
+            }
+            tx.success();
+        }
+        results = ResultWriter.create(ResultWriter.JSON, ByteStreams.nullOutputStream(), Budget.UNLIMITED);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        results.close();
+        db.shutdown();
+        FileUtils.deleteRecursively(storeDir);
+    }
+
+    @Benchmark
+    public void builtinAlgo() throws IOException {
+        service.streamShortestPathsUsingBuiltinAlgo(centerEmail, bibEntries, edgeEmails, length, adjacency, Budget.UNLIMITED, results);
+    }
+
+    @Benchmark
+    public void handwrittenBFS() throws IOException {
+        service.streamShortestPathsUsingHandwrittenBFS(centerEmail, bibEntries, edgeEmails, length, adjacency, Budget.UNLIMITED, results);
+    }
+
+    @Benchmark
+    public void directionOptimizingBFS() throws IOException {
+        service.streamShortestPathsUsingDirectionOptimizingBFS(centerEmail, bibEntries, edgeEmails, length, adjacency, Budget.UNLIMITED, results);
+    }
+
+    @Benchmark
+    public void parallelBFS() throws IOException {
+        service.streamShortestPathsUsingParallelBFS(centerEmail, bibEntries, edgeEmails, length, adjacency, Budget.UNLIMITED, results);
+    }
+
+    @Benchmark
+    public void bidirectionalBFS() throws IOException {
+        service.streamShortestPathsUsingBidirectionalBFS(centerEmail, bibEntries, edgeEmails, length, adjacency, Budget.UNLIMITED, results);
+    }
+
+    @Benchmark
+    public void planned() throws IOException {
+        service.streamShortestPathsUsingPlanner(centerEmail, bibEntries, edgeEmails, length, adjacency, Budget.UNLIMITED, results);
+    }
+
+    @Benchmark
+    public void handwrittenBFSPerCenter() throws IOException {
+        for (int i = 0; i < centers.size(); i++) {
+            Map<String, Object> center = centers.get(i);
+            service.streamShortestPathsUsingHandwrittenBFS((String) center.get("center_email"),
+                (List<String>) center.get("bibliography_entries"), centerEdgeEmails.get(i), length, adjacency, Budget.UNLIMITED, results);
+        }
+    }
+
+    @Benchmark
+    public void multiSourceBFS() throws IOException {
+        service.streamShortestPathsUsingMultiSourceBFS(centers, length, adjacency, Budget.UNLIMITED, results);
+    }
+
+    @Benchmark
+    public void dijkstra() throws IOException {
+        service.streamShortestPathsUsingDijkstra(centerEmail, bibEntries, edgeEmails, maxCost, null, adjacency, Budget.UNLIMITED, results);
+    }
+}
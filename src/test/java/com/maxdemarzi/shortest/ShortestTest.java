@@ -2,6 +2,8 @@ package com.maxdemarzi.shortest;
 
 import org.junit.Rule;
 import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
 import org.neo4j.harness.junit.Neo4jRule;
 import org.neo4j.kernel.api.ReadOperations;
 import org.neo4j.test.server.HTTP;
@@ -10,12 +12,23 @@ import com.google.common.collect.ImmutableMap;
 
 import org.codehaus.jackson.map.ObjectMapper;
 
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class ShortestTest {
 
@@ -84,6 +97,82 @@ public class ShortestTest {
         assertArrayEquals(expected.toArray(), actual.toArray());
     }
 
+    @Test
+    public void shouldFindEdgeEmailCreatedAfterItWasMissing() throws Exception {
+        for (int i = 0; i < 2; i++) {
+            HTTP.Response response = HTTP.POST(neo4j.httpURI().resolve("/v1/service/query_counters").toString(),
+                    QUERY_FOUR_MAP);
+            assertArrayEquals(new Object[]{FOUR_MAP}, parseNewlineSeparated(response).toArray());
+        }
+        neo4j.getGraphDatabaseService().execute("MATCH (two:Email {email:'two@maxdemarzi.com'}) " +
+                "CREATE (two)-[:hasContact]->(:Email {email:'sixty@maxdemarzi.com'})").close();
+
+        HTTP.Response response = HTTP.POST(neo4j.httpURI().resolve("/v1/service/query_counters").toString(),
+                QUERY_FOUR_MAP);
+        HashSet<HashMap> expected = new HashSet<HashMap>() {{
+            add(FOUR_MAP);
+            add(new HashMap<String, Object>(){{
+                put("email", "sixty@maxdemarzi.com");
+                put("length", 3);
+                put("count", 1);
+            }});
+        }};
+        assertEquals(expected, new HashSet(parseNewlineSeparated(response)));
+    }
+
+    @Test
+    public void shouldFindBibliographyEntryCreatedAfterItWasMissing() throws Exception {
+        HashMap<String, Object> query = new HashMap<String, Object>(){{
+            put("center_email", "start@maxdemarzi.com");
+            put("bibliography_entries", new ArrayList<String>() {{ add("2"); }});
+            put("edge_emails", new ArrayList<String>() {{ add("threebibmail@maxdemarzi.com"); }});
+            put("length", 4);
+        }};
+        for (int i = 0; i < 2; i++) {
+            HTTP.Response response = HTTP.POST(neo4j.httpURI().resolve("/v1/service/query_counters").toString(), query);
+            assertTrue(parseNewlineSeparated(response).isEmpty());
+        }
+        neo4j.getGraphDatabaseService().execute("MATCH (three:Email {email:'threebibmail@maxdemarzi.com'}) " +
+                "CREATE (:BibliographyEntry {id: 2})-[:hasContact]->(three)").close();
+
+        HTTP.Response response = HTTP.POST(neo4j.httpURI().resolve("/v1/service/query_counters").toString(), query);
+        HashMap<String, Object> expected = new HashMap<String, Object>(){{
+            put("email", "threebibmail@maxdemarzi.com");
+            put("length", 2);
+            put("count", 1);
+        }};
+        assertArrayEquals(new Object[]{expected}, parseNewlineSeparated(response).toArray());
+    }
+
+    @Test
+    public void shouldResolveManyKeysInBulkAsOneByOne() throws Exception {
+        GraphDatabaseService db = neo4j.getGraphDatabaseService();
+        NodeCache nodeCache = NodeCache.getInstance(db);
+        // several batches, on the workers
+        List<String> emails = new ArrayList<>();
+        for (int i = 0; i < NodeCache.BATCH_SIZE * 3; i++) {
+            emails.add("bulk" + i + "@maxdemarzi.com");
+        }
+        emails.add(1500, "one@maxdemarzi.com");
+        emails.add("two@maxdemarzi.com");
+        emails.add("one@maxdemarzi.com");
+        List<String> bibEntries = Arrays.asList("1", "01", "not a number", "404");
+
+        try (Transaction tx = db.beginTx()) {
+            Long one = db.findNode(Labels.Email, "email", "one@maxdemarzi.com").getId();
+            Long two = db.findNode(Labels.Email, "email", "two@maxdemarzi.com").getId();
+            Long bib = db.findNode(Labels.BibliographyEntry, "id", 1L).getId();
+            // cold, then from the caches
+            for (int i = 0; i < 2; i++) {
+                assertEquals(Arrays.asList(one, two, one), nodeCache.getEmailNodes(emails));
+                assertEquals(Arrays.asList(bib, bib), nodeCache.getBibliographEntryNodes(bibEntries));
+            }
+            assertEquals(one, nodeCache.findEmailNode("one@maxdemarzi.com"));
+            assertEquals(null, nodeCache.findEmailNode("bulk7@maxdemarzi.com"));
+            tx.success();
+        }
+    }
+
     @Test
     public void shouldDealWithMissingCenterEmail() {
         HTTP.Response response = HTTP.POST(neo4j.httpURI().resolve("/v1/service/query").toString(),
@@ -229,6 +318,77 @@ public class ShortestTest {
         assertEquals(BIB_THREE_MAP, actual);
     }
 
+    @Test
+    public void shouldFindShortestPathBidirectionallyTwo() throws Exception {
+        HTTP.Response response = HTTP.POST(neo4j.httpURI().resolve("/v1/service/query_counters").toString(),
+                with(QUERY_TWO_MAP, "bidirectional", true));
+
+        ArrayList actual = parseNewlineSeparated(response);
+        ArrayList<HashMap> expected = new ArrayList<HashMap>() {{
+            add(ONE_MAP);
+            add(TWO_MAP);
+        }};
+        assertArrayEquals(expected.toArray(), actual.toArray());
+    }
+
+    @Test
+    public void shouldFindShortestPathBidirectionallyThree() throws Exception {
+        HTTP.Response response = HTTP.POST(neo4j.httpURI().resolve("/v1/service/query_counters").toString(),
+                with(QUERY_FOUR_MAP, "bidirectional", true));
+
+        ArrayList actual = parseNewlineSeparated(response);
+        ArrayList<HashMap> expected = new ArrayList<HashMap>() {{
+            add(THREE_MAP);
+        }};
+        assertArrayEquals(expected.toArray(), actual.toArray());
+    }
+
+    @Test
+    public void shouldFindShortestPathBidirectionallyFive() throws Exception {
+        HTTP.Response response = HTTP.POST(neo4j.httpURI().resolve("/v1/service/query_counters").toString(),
+                with(QUERY_FIVE_MAP, "bidirectional", true));
+
+        ArrayList actual = parseNewlineSeparated(response);
+        ArrayList<HashMap> expected = new ArrayList<HashMap>() {{
+            add(FIVE_MAP);
+        }};
+        assertArrayEquals(expected.toArray(), actual.toArray());
+    }
+
+    @Test
+    public void shouldFindShortestPathBidirectionallyViaBib() throws Exception {
+        HTTP.Response response = HTTP.POST(neo4j.httpURI().resolve("/v1/service/query_counters").toString(),
+                with(QUERY_BIB_THREE_MAP, "bidirectional", true));
+
+        String raw = response.rawContent();
+        Map<String,Object> actual = mapper.readValue(raw, Map.class);
+        assertEquals(BIB_THREE_MAP, actual);
+    }
+
+    @Test
+    public void shouldFindShortestPathByCountersOnSnapshot() throws Exception {
+        awaitSnapshot();
+        HTTP.Response response = HTTP.POST(neo4j.httpURI().resolve("/v1/service/query_counters").toString(),
+                with(QUERY_FOUR_MAP, "adjacency", "snapshot"));
+
+        ArrayList actual = parseNewlineSeparated(response);
+        ArrayList<HashMap> expected = new ArrayList<HashMap>() {{
+            add(FOUR_MAP);
+        }};
+        assertArrayEquals(expected.toArray(), actual.toArray());
+    }
+
+    @Test
+    public void shouldStreamFindShortestPathViaBibOnSnapshot() throws Exception {
+        awaitSnapshot();
+        HTTP.Response response = HTTP.POST(neo4j.httpURI().resolve("/v1/service/query_streaming").toString(),
+                with(QUERY_BIB_THREE_MAP, "adjacency", "snapshot"));
+
+        String raw = response.rawContent();
+        Map<String,Object> actual = mapper.readValue(raw, Map.class);
+        assertEquals(BIB_THREE_MAP, actual);
+    }
+
     // Dijkstra Tests
 
     @Test
@@ -289,6 +449,562 @@ public class ShortestTest {
         assertEquals(DIJKSTRA_BIB_MAP, actual);
     }
 
+    @Test
+    public void dijkstraShouldFindShortestPathWithWideCostRange() throws Exception {
+        // too many costs for a bucket per cost, so this goes through the heap
+        HTTP.Response response = HTTP.POST(neo4j.httpURI().resolve("/v1/service/query_shortest").toString(),
+                with(DIJKSTRA_QUERY_TWO_MAP, "max_cost", 100000));
+
+        ArrayList actual = parseNewlineSeparated(response);
+        ArrayList<HashMap> expected = new ArrayList<HashMap>() {{
+            add(DIJKSTRA_ONE_MAP);
+            add(DIJKSTRA_TWO_MAP);
+        }};
+        assertArrayEquals(expected.toArray(), actual.toArray());
+    }
+
+    @Test
+    public void dijkstraShouldFindShortestPathOnSnapshot() throws Exception {
+        awaitSnapshot();
+        HTTP.Response response = HTTP.POST(neo4j.httpURI().resolve("/v1/service/query_shortest").toString(),
+                with(DIJKSTRA_QUERY_TWO_MAP, "adjacency", "snapshot"));
+
+        ArrayList actual = parseNewlineSeparated(response);
+        ArrayList<HashMap> expected = new ArrayList<HashMap>() {{
+            add(DIJKSTRA_ONE_MAP);
+            add(DIJKSTRA_TWO_MAP);
+        }};
+        assertArrayEquals(expected.toArray(), actual.toArray());
+    }
+
+    @Test
+    public void dijkstraShouldFindShortestPathViaBibOnSnapshot() throws Exception {
+        awaitSnapshot();
+        HTTP.Response response = HTTP.POST(neo4j.httpURI().resolve("/v1/service/query_shortest").toString(),
+                with(DIJKSTRA_QUERY_BIB_MAP, "adjacency", "snapshot"));
+
+        String raw = response.rawContent();
+        Map<String,Object> actual = mapper.readValue(raw, Map.class);
+        assertEquals(DIJKSTRA_BIB_MAP, actual);
+    }
+
+    @Test
+    public void shouldFindDijkstraShortestPathInParallelTwo() throws Exception {
+        HTTP.Response response = HTTP.POST(neo4j.httpURI().resolve("/v1/service/query_shortest").toString(),
+                with(DIJKSTRA_QUERY_TWO_MAP, "parallel", true));
+
+        HashSet actual = new HashSet(parseNewlineSeparated(response));
+        HashSet<HashMap> expected = new HashSet<HashMap>() {{
+            add(DIJKSTRA_ONE_MAP);
+            add(DIJKSTRA_TWO_MAP);
+        }};
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void shouldFindDijkstraShortestPathInParallelViaBib() throws Exception {
+        HTTP.Response response = HTTP.POST(neo4j.httpURI().resolve("/v1/service/query_shortest").toString(),
+                with(DIJKSTRA_QUERY_BIB_MAP, "parallel", true));
+
+        String raw = response.rawContent();
+        Map<String,Object> actual = mapper.readValue(raw, Map.class);
+        assertEquals(DIJKSTRA_BIB_MAP, actual);
+    }
+
+    private static HashMap<String, Object> with(HashMap<String, Object> query, String option, Object value) {
+        HashMap<String, Object> optionQuery = new HashMap<>(query);
+        optionQuery.put(option, value);
+        return optionQuery;
+    }
+
+    @Test
+    public void shouldFindShortestPathInParallelTwo() throws Exception {
+        HTTP.Response response = HTTP.POST(neo4j.httpURI().resolve("/v1/service/query_counters").toString(),
+                with(QUERY_TWO_MAP, "parallel", true));
+
+        ArrayList actual = parseNewlineSeparated(response);
+        ArrayList<HashMap> expected = new ArrayList<HashMap>() {{
+            add(ONE_MAP);
+            add(TWO_MAP);
+        }};
+        assertArrayEquals(expected.toArray(), actual.toArray());
+    }
+
+    @Test
+    public void shouldFindShortestPathInParallelFive() throws Exception {
+        HTTP.Response response = HTTP.POST(neo4j.httpURI().resolve("/v1/service/query_counters").toString(),
+                with(QUERY_FIVE_MAP, "parallel", true));
+
+        ArrayList actual = parseNewlineSeparated(response);
+        ArrayList<HashMap> expected = new ArrayList<HashMap>() {{
+            add(FIVE_MAP);
+        }};
+        assertArrayEquals(expected.toArray(), actual.toArray());
+    }
+
+    @Test
+    public void shouldFindShortestPathInParallelViaBib() throws Exception {
+        HTTP.Response response = HTTP.POST(neo4j.httpURI().resolve("/v1/service/query_counters").toString(),
+                with(QUERY_BIB_TWO_MAP, "parallel", true));
+
+        String raw = response.rawContent();
+        Map<String,Object> actual = mapper.readValue(raw, Map.class);
+        assertEquals(BIB_TWO_MAP, actual);
+    }
+
+    @Test
+    public void shouldFindShortestPathsForManyCenters() throws Exception {
+        HashMap<String, Object> fromOne = new HashMap<String, Object>(){{
+            put("center_email", "one@maxdemarzi.com");
+            put("bibliography_entries", new ArrayList<String>());
+            put("edge_emails", new ArrayList<String>() {{ add("five@maxdemarzi.com"); }});
+        }};
+        HashMap<String, Object> query = new HashMap<>();
+        query.put("centers", Arrays.asList(QUERY_TWO_MAP, QUERY_FIVE_MAP, QUERY_BIB_TWO_MAP, fromOne));
+        query.put("length", 4);
+
+        HTTP.Response response = HTTP.POST(neo4j.httpURI().resolve("/v1/service/query_counters_batch").toString(), query);
+
+        HashSet actual = new HashSet(parseNewlineSeparated(response));
+        HashSet<HashMap> expected = new HashSet<HashMap>() {{
+            add(with(ONE_MAP, "center_email", "start@maxdemarzi.com"));
+            add(with(TWO_MAP, "center_email", "start@maxdemarzi.com"));
+            add(with(FIVE_MAP, "center_email", "start@maxdemarzi.com"));
+            add(with(BIB_TWO_MAP, "center_email", "start@maxdemarzi.com"));
+            add(new HashMap<String, Object>(){{
+                put("center_email", "one@maxdemarzi.com");
+                put("email", "five@maxdemarzi.com");
+                put("length", 2);
+                put("count", 2);
+            }});
+        }};
+        assertEquals(expected, actual);
+    }
+
+    // Ego Network Cache Tests
+
+    @Test
+    public void shouldFindShortestPathsFromCachedNeighborhood() throws Exception {
+        HashSet<HashMap> expected = new HashSet<HashMap>() {{
+            add(ONE_MAP);
+            add(TWO_MAP);
+            add(THREE_MAP);
+            add(FIVE_MAP);
+        }};
+        // cold, admitted, then cached
+        for (int i = 0; i < 3; i++) {
+            HTTP.Response response = HTTP.POST(neo4j.httpURI().resolve("/v1/service/query_counters").toString(),
+                    QUERY_CACHED_MAP);
+            assertEquals(expected, new HashSet(parseNewlineSeparated(response)));
+        }
+        assertTrue(EgoNetworkCache.getInstance(neo4j.getGraphDatabaseService()).size() > 0);
+    }
+
+    @Test
+    public void shouldFindShortestPathViaBibFromCachedNeighborhood() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            HTTP.Response response = HTTP.POST(neo4j.httpURI().resolve("/v1/service/query_counters").toString(),
+                    QUERY_BIB_TWO_MAP);
+            Map<String,Object> actual = mapper.readValue(response.rawContent(), Map.class);
+            assertEquals(BIB_TWO_MAP, actual);
+        }
+    }
+
+    @Test
+    public void shouldFindDijkstraShortestPathFromCachedNeighborhood() throws Exception {
+        HashSet<HashMap> expected = new HashSet<HashMap>() {{
+            add(DIJKSTRA_ONE_MAP);
+            add(DIJKSTRA_TWO_MAP);
+        }};
+        for (int i = 0; i < 3; i++) {
+            HTTP.Response response = HTTP.POST(neo4j.httpURI().resolve("/v1/service/query_shortest").toString(),
+                    DIJKSTRA_QUERY_TWO_MAP);
+            assertEquals(expected, new HashSet(parseNewlineSeparated(response)));
+        }
+        assertTrue(EgoNetworkCache.getInstance(neo4j.getGraphDatabaseService()).size() > 0);
+    }
+
+    @Test
+    public void shouldForgetCachedNeighborhoodWhenRelationshipsChange() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            HTTP.POST(neo4j.httpURI().resolve("/v1/service/query_counters").toString(), QUERY_CACHED_MAP);
+            HTTP.POST(neo4j.httpURI().resolve("/v1/service/query_shortest").toString(), DIJKSTRA_QUERY_TWO_MAP);
+        }
+        neo4j.getGraphDatabaseService().execute("MATCH (start:Email {email:'start@maxdemarzi.com'}), " +
+                "(two:Email {email:'two@maxdemarzi.com'}), (seven:Email {email:'seven@maxdemarzi.com'}) " +
+                "CREATE (start)-[:EqualTo]->(two), (two)-[:hasContact]->(seven)").close();
+
+        HTTP.Response response = HTTP.POST(neo4j.httpURI().resolve("/v1/service/query_counters").toString(),
+                QUERY_CACHED_MAP);
+        HashSet<HashMap> expected = new HashSet<HashMap>() {{
+            add(ONE_MAP);
+            add(with(TWO_MAP, "length", 1));
+            add(THREE_MAP);
+            add(with(FIVE_MAP, "length", 2));
+        }};
+        assertEquals(expected, new HashSet(parseNewlineSeparated(response)));
+
+        response = HTTP.POST(neo4j.httpURI().resolve("/v1/service/query_shortest").toString(), DIJKSTRA_QUERY_TWO_MAP);
+        expected = new HashSet<HashMap>() {{
+            add(DIJKSTRA_ONE_MAP);
+            add(with(DIJKSTRA_TWO_MAP, "length", 1));
+        }};
+        assertEquals(expected, new HashSet(parseNewlineSeparated(response)));
+    }
+
+    @Test
+    public void shouldForgetCachedForwardSearchWhenADeadEndGetsARelationship() throws Exception {
+        // leaf is explored at 120 with every relationship still affordable and, having a single one, forgotten
+        neo4j.getGraphDatabaseService().execute("MATCH (one:Email {email:'one@maxdemarzi.com'}) " +
+                "CREATE (one)-[:HasEmail]->(:Email {email:'leaf@maxdemarzi.com'})").close();
+        HashMap<String, Object> query = new HashMap<String, Object>() {{
+            put("center_email", "start@maxdemarzi.com");
+            put("bibliography_entries", new ArrayList<String>());
+            put("edge_emails", Arrays.asList("one@maxdemarzi.com", "eight@maxdemarzi.com"));
+            put("max_cost", 240);
+            put("edge_costs", ImmutableMap.of("Follows", 60, "hasContact", 60, "HasEmail", 60, "EqualTo", 60));
+        }};
+        for (int i = 0; i < 3; i++) {
+            HTTP.POST(neo4j.httpURI().resolve("/v1/service/query_shortest").toString(), query);
+        }
+        assertEquals(1, EgoNetworkCache.getInstance(neo4j.getGraphDatabaseService()).size());
+        neo4j.getGraphDatabaseService().execute("MATCH (leaf:Email {email:'leaf@maxdemarzi.com'}), " +
+                "(eight:Email {email:'eight@maxdemarzi.com'}) CREATE (leaf)-[:EqualTo]->(eight)").close();
+        assertEquals(0, EgoNetworkCache.getInstance(neo4j.getGraphDatabaseService()).size());
+
+        HTTP.Response response = HTTP.POST(neo4j.httpURI().resolve("/v1/service/query_shortest").toString(), query);
+        HashSet<HashMap> expected = new HashSet<HashMap>() {{
+            add(with(ONE_MAP, "length", 60));
+            add(new HashMap<String, Object>() {{
+                put("email", "eight@maxdemarzi.com");
+                put("length", 180);
+                put("count", 1);
+            }});
+        }};
+        assertEquals(expected, new HashSet(parseNewlineSeparated(response)));
+    }
+
+    // Budget Tests
+
+    @Test
+    public void shouldFindShortestPathWithinBudget() throws Exception {
+        HTTP.Response response = HTTP.POST(neo4j.httpURI().resolve("/v1/service/query_counters").toString(),
+                with(QUERY_TWO_MAP, "budget", budget("time_ms", 60000, "max_expanded", 1000)));
+
+        ArrayList actual = parseNewlineSeparated(response);
+        ArrayList<HashMap> expected = new ArrayList<HashMap>() {{
+            add(ONE_MAP);
+            add(TWO_MAP);
+        }};
+        assertArrayEquals(expected.toArray(), actual.toArray());
+    }
+
+    @Test
+    public void shouldReturnPartialResultsWhenOutOfBudget() throws Exception {
+        HTTP.Response response = HTTP.POST(neo4j.httpURI().resolve("/v1/service/query_counters").toString(),
+                with(QUERY_TWO_MAP, "budget", budget("max_expanded", 1)));
+
+        ArrayList actual = parseNewlineSeparated(response);
+        assertEquals(200, response.status());
+        assertEquals(TRUNCATED_EXPANDED_MAP, actual.remove(actual.size() - 1));
+        assertTrue(Arrays.asList(ONE_MAP, TWO_MAP).containsAll(actual));
+    }
+
+    @Test
+    public void dijkstraShouldReturnPartialResultsWhenOutOfBudget() throws Exception {
+        HTTP.Response response = HTTP.POST(neo4j.httpURI().resolve("/v1/service/query_shortest").toString(),
+                with(DIJKSTRA_QUERY_TWO_MAP, "budget", budget("max_visited", 1)));
+
+        ArrayList actual = parseNewlineSeparated(response);
+        assertEquals(TRUNCATED_VISITED_MAP, actual.remove(actual.size() - 1));
+        assertTrue(Arrays.asList(DIJKSTRA_ONE_MAP, DIJKSTRA_TWO_MAP).containsAll(actual));
+    }
+
+    @Test
+    public void shouldTimeOutWhenOutOfBudget() throws Exception {
+        HTTP.Response response = HTTP.POST(neo4j.httpURI().resolve("/v1/service/query_counters").toString(),
+                with(QUERY_TWO_MAP, "budget", budget("max_expanded", 1, "on_exhausted", "fail")));
+
+        assertEquals(420, response.status());
+    }
+
+    @Test
+    public void shouldRejectInvalidBudget() throws Exception {
+        HTTP.Response response = HTTP.POST(neo4j.httpURI().resolve("/v1/service/query_counters").toString(),
+                with(QUERY_TWO_MAP, "budget", budget("on_exhausted", "never")));
+
+        assertEquals(400, response.status());
+    }
+
+    @Test
+    public void shouldRejectNegativeOrOversizedCosts() throws Exception {
+        String url = neo4j.httpURI().resolve("/v1/service/query_shortest").toString();
+        assertEquals(400, HTTP.POST(url, with(DIJKSTRA_QUERY_TWO_MAP, "max_cost", -1)).status());
+        assertEquals(400, HTTP.POST(url, with(DIJKSTRA_QUERY_TWO_MAP, "max_cost", Integer.MAX_VALUE)).status());
+        assertEquals(400, HTTP.POST(url, with(DIJKSTRA_QUERY_TWO_MAP, "edge_costs", Collections.singletonMap("hasContact", -1))).status());
+        assertEquals(400, HTTP.POST(url, with(DIJKSTRA_QUERY_TWO_MAP, "edge_costs", Collections.singletonMap("hasContact", 1L << 32))).status());
+        assertEquals(400, HTTP.POST(url, with(DIJKSTRA_QUERY_TWO_MAP, "edge_costs", Collections.singletonMap("hasContact", 1.5))).status());
+
+        // the largest costs don't overflow mid-search
+        HTTP.Response response = HTTP.POST(url, with(with(DIJKSTRA_QUERY_TWO_MAP, "max_cost", Validators.MAX_COST),
+                "edge_costs", Collections.singletonMap("hasContact", Integer.MAX_VALUE)));
+        assertEquals(200, response.status());
+    }
+
+    @Test
+    public void shouldEndWithProfileWhenAsked() throws Exception {
+        HTTP.Response response = HTTP.POST(neo4j.httpURI().resolve("/v1/service/query_counters").toString(),
+                with(QUERY_TWO_MAP, "profile", true));
+
+        ArrayList actual = parseNewlineSeparated(response);
+        Map profile = (Map) ((Map) actual.remove(actual.size() - 1)).get("profile");
+        ArrayList<HashMap> expected = new ArrayList<HashMap>() {{
+            add(ONE_MAP);
+            add(TWO_MAP);
+        }};
+        assertArrayEquals(expected.toArray(), actual.toArray());
+
+        assertEquals("bfs", profile.get("engine"));
+        assertEquals(Arrays.asList(1, 1), profile.get("levels"));
+        assertTrue(((Map) profile.get("relationships")).containsKey("Follows"));
+        for (String time : new String[]{"resolve_us", "expand_us", "write_us"}) {
+            assertTrue(((Number) profile.get(time)).longValue() >= 0);
+        }
+    }
+
+    @Test
+    public void shouldEndWithProfileOfCostBandsWhenAsked() throws Exception {
+        HTTP.Response response = HTTP.POST(neo4j.httpURI().resolve("/v1/service/query_shortest").toString(),
+                with(DIJKSTRA_QUERY_TWO_MAP, "profile", true));
+
+        ArrayList actual = parseNewlineSeparated(response);
+        Map profile = (Map) ((Map) actual.remove(actual.size() - 1)).get("profile");
+        assertEquals(new HashSet<>(Arrays.asList(DIJKSTRA_ONE_MAP, DIJKSTRA_TWO_MAP)), new HashSet<>(actual));
+
+        assertEquals("dijkstra", profile.get("engine"));
+        assertEquals(2, profile.get("cost_band_width"));
+        long explored = 0;
+        for (Object nodes : (List) profile.get("cost_bands")) {
+            explored += ((Number) nodes).longValue();
+        }
+        assertTrue(explored > 0);
+        assertTrue(((Map) profile.get("relationships")).containsKey("hasContact"));
+    }
+
+    @Test
+    public void shouldProfileWhichEngineEitherChose() throws Exception {
+        HTTP.Response response = HTTP.POST(neo4j.httpURI().resolve("/v1/service/query_either").toString(),
+                with(QUERY_ONE_MAP, "profile", true));
+
+        ArrayList actual = parseNewlineSeparated(response);
+        assertEquals(ONE_MAP, actual.get(0));
+        Map profile = (Map) ((Map) actual.get(1)).get("profile");
+        Map estimates = (Map) profile.get("estimates");
+        assertEquals(new HashSet<>(Arrays.asList("bfs", "bidirectional_bfs", "dijkstra", "builtin")), estimates.keySet());
+        assertTrue(estimates.containsKey(profile.get("engine")));
+    }
+
+    @Test
+    public void shouldPlanWithoutAnyRelationshipsToSample() throws Exception {
+        neo4j.getGraphDatabaseService().execute("MATCH ()-[r]->() DELETE r").close();
+        awaitSnapshot();
+
+        for (String adjacency : new String[]{"snapshot", "kernel"}) {
+            HTTP.Response response = HTTP.POST(neo4j.httpURI().resolve("/v1/service/query_either").toString(),
+                    with(QUERY_ONE_MAP, "adjacency", adjacency));
+            assertEquals(adjacency, 200, response.status());
+            assertEquals(adjacency, 0, parseNewlineSeparated(response).size());
+        }
+    }
+
+    @Test
+    public void shouldFindTheSameByEitherWhicheverEngineIsPicked() throws Exception {
+        try {
+            for (String engine : new String[]{"bfs", "bidirectional_bfs", "dijkstra", "builtin"}) {
+                // make every other engine look too expensive
+                Planner.setWeights("bfs:1000,bidirectional_bfs:1000,dijkstra:1000,builtin:1000," + engine + ":0.001");
+                HTTP.Response response = HTTP.POST(neo4j.httpURI().resolve("/v1/service/query_either").toString(),
+                        with(QUERY_CACHED_MAP, "profile", true));
+
+                ArrayList actual = parseNewlineSeparated(response);
+                assertEquals(engine, ((Map) ((Map) actual.remove(actual.size() - 1)).get("profile")).get("engine"));
+                assertEquals(engine, new HashSet<>(Arrays.asList(ONE_MAP, TWO_MAP, THREE_MAP, FIVE_MAP)), new HashSet<>(actual));
+
+                response = HTTP.POST(neo4j.httpURI().resolve("/v1/service/query_either").toString(), QUERY_BIB_THREE_MAP);
+                assertEquals(engine, BIB_THREE_MAP, mapper.readValue(response.rawContent(), Map.class));
+            }
+        } finally {
+            Planner.setWeights(Planner.DEFAULT_WEIGHTS);
+        }
+    }
+
+    @Test
+    public void shouldCountPathsThroughABibliographyEntryNextToTheCenterWhicheverEngineIsPicked() throws Exception {
+        neo4j.getGraphDatabaseService().execute("MATCH (start:Email {email:'start@maxdemarzi.com'}), " +
+                "(oneBib:BibliographyEntry {id: 1}) CREATE (start)-[:Follows]->(oneBib)").close();
+        HashMap<String, Object> query = with(QUERY_BIB_THREE_MAP, "edge_emails", Arrays.asList("onebibmail@maxdemarzi.com"));
+        HashMap<String, Object> expected = new HashMap<String, Object>() {{
+            put("email", "onebibmail@maxdemarzi.com");
+            put("length", 2);
+            put("count", 1);
+        }};
+        try {
+            for (String engine : new String[]{"bfs", "bidirectional_bfs", "dijkstra", "builtin"}) {
+                Planner.setWeights("bfs:1000,bidirectional_bfs:1000,dijkstra:1000,builtin:1000," + engine + ":0.001");
+                HTTP.Response response = HTTP.POST(neo4j.httpURI().resolve("/v1/service/query_either").toString(), query);
+                assertEquals(engine, expected, mapper.readValue(response.rawContent(), Map.class));
+            }
+        } finally {
+            Planner.setWeights(Planner.DEFAULT_WEIGHTS);
+        }
+    }
+
+    @Test
+    public void shouldReportMetricsPerEndpointAndEngine() throws Exception {
+        awaitSnapshot();
+        Metrics.reset();
+        HTTP.POST(neo4j.httpURI().resolve("/v1/service/query_counters").toString(), with(QUERY_TWO_MAP, "adjacency", "snapshot"));
+        HTTP.POST(neo4j.httpURI().resolve("/v1/service/query_counters").toString(), QUERY_TWO_MAP);
+        HTTP.POST(neo4j.httpURI().resolve("/v1/service/query_shortest").toString(), with(DIJKSTRA_QUERY_TWO_MAP, "parallel", true));
+        HTTP.POST(neo4j.httpURI().resolve("/v1/service/query_counters").toString(),
+                with(with(QUERY_TWO_MAP, "adjacency", "snapshot"), "budget", budget("max_expanded", 1)));
+        HTTP.POST(neo4j.httpURI().resolve("/v1/service/query_either").toString(), QUERY_THREE_MAP);
+
+        HTTP.Response response = HTTP.GET(neo4j.httpURI().resolve("/v1/service/metrics").toString());
+        assertEquals(200, response.status());
+        String metrics = response.rawContent();
+
+        String counters = "endpoint=\"/query_counters\",engine=\"direction_optimizing_bfs\"";
+        String bfs = "endpoint=\"/query_counters\",engine=\"bfs\"";
+        String dijkstra = "endpoint=\"/query_shortest\",engine=\"parallel_dijkstra\"";
+        assertTrue(metrics.contains("shortest_request_latency_seconds{" + counters + ",quantile=\"0.99\"}"));
+        assertTrue(metrics.contains("shortest_request_latency_seconds_count{" + counters + "} 2\n"));
+        assertTrue(metrics.contains("shortest_budget_exhausted_total{" + counters + "} 1\n"));
+        assertTrue(metrics.contains("shortest_request_latency_seconds_count{" + bfs + "} 1\n"));
+        assertTrue(metrics.contains("shortest_request_latency_seconds_count{" + dijkstra + "} 1\n"));
+        assertTrue(metrics.contains("# TYPE shortest_nodes_expanded_total counter"));
+        assertTrue(metrics.contains("shortest_node_lookups_total{result="));
+        assertTrue(metrics.contains("# TYPE shortest_planner_actual_to_predicted summary"));
+        assertTrue(metrics.contains("shortest_planner_predicted_relationships_total{engine="));
+        assertTrue(metrics.contains("shortest_planner_actual_relationships_total{engine="));
+        for (String line : metrics.split("\n")) {
+            if (line.startsWith("shortest_nodes_expanded_total{") || line.startsWith("shortest_relationships_scanned_total{")
+                    || line.startsWith("shortest_bytes_streamed_total{") || line.startsWith("shortest_peak_visited{")) {
+                assertTrue(line, Long.parseLong(line.substring(line.lastIndexOf(' ') + 1)) > 0);
+            }
+        }
+    }
+
+    @Test
+    public void shouldRejectEdgeEmailsThatAreNotStrings() throws Exception {
+        HTTP.Response response = HTTP.POST(neo4j.httpURI().resolve("/v1/service/query_counters").toString(),
+                with(QUERY_TWO_MAP, "edge_emails", Arrays.asList("one@maxdemarzi.com", 2)));
+
+        assertEquals(400, response.status());
+    }
+
+    @Test
+    public void shouldFindTheEdgeEmailsAmongMany() throws Exception {
+        ArrayList<String> edgeEmails = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            edgeEmails.add("unknown" + i + "@maxdemarzi.com");
+        }
+        edgeEmails.add(2500, "two@maxdemarzi.com");
+        edgeEmails.add("one@maxdemarzi.com");
+        edgeEmails.add("two@maxdemarzi.com");
+
+        for (String endpoint : new String[]{"query_counters", "query_either", "query_streaming"}) {
+            HTTP.Response response = HTTP.POST(neo4j.httpURI().resolve("/v1/service/" + endpoint).toString(),
+                    with(QUERY_TWO_MAP, "edge_emails", edgeEmails));
+
+            // two@ is asked for twice, and found once
+            ArrayList actual = parseNewlineSeparated(response);
+            assertEquals(endpoint, 2, actual.size());
+            assertEquals(endpoint, new HashSet<>(Arrays.asList(ONE_MAP, TWO_MAP)), new HashSet<>(actual));
+        }
+    }
+
+    @Test
+    public void shouldStreamNdjsonWhenAccepted() throws Exception {
+        HTTP.Response response = HTTP.withHeaders("Accept", ResultWriter.NDJSON)
+                .POST(neo4j.httpURI().resolve("/v1/service/query_counters").toString(), QUERY_TWO_MAP);
+
+        assertTrue(response.header("Content-Type").startsWith(ResultWriter.NDJSON));
+        ArrayList actual = parseNewlineSeparated(response);
+        ArrayList<HashMap> expected = new ArrayList<HashMap>() {{
+            add(ONE_MAP);
+            add(TWO_MAP);
+        }};
+        assertArrayEquals(expected.toArray(), actual.toArray());
+    }
+
+    @Test
+    public void shouldStreamBinaryRecordsWhenAccepted() throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) neo4j.httpURI().resolve("/v1/service/query_counters").toURL().openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "application/json");
+        connection.setRequestProperty("Accept", ResultWriter.BINARY);
+        mapper.writeValue(connection.getOutputStream(), with(QUERY_TWO_MAP, "profile", true));
+        assertEquals(ResultWriter.BINARY, connection.getContentType());
+
+        Map<Integer, String> emails = new HashMap<>();
+        List<Map<String, Object>> results = new ArrayList<>();
+        List<Long> nodeIds = new ArrayList<>();
+        Map profile = null;
+        try (DataInputStream in = new DataInputStream(connection.getInputStream())) {
+            int length;
+            while ((length = readLength(in)) >= 0) {
+                byte kind = in.readByte();
+                byte[] rest = new byte[length - 1];
+                in.readFully(rest);
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(rest));
+                if (kind == ResultWriter.EMAIL) {
+                    int id = record.readInt();
+                    emails.put(id, new String(rest, 4, rest.length - 4, StandardCharsets.UTF_8));
+                } else if (kind == ResultWriter.RESULT) {
+                    nodeIds.add(record.readLong());
+                    assertEquals(-1, record.readInt());
+                    HashMap<String, Object> result = new HashMap<>();
+                    result.put("email", emails.get(record.readInt()));
+                    result.put("length", record.readInt());
+                    result.put("count", record.readInt());
+                    results.add(result);
+                } else {
+                    assertEquals(ResultWriter.PROFILE, kind);
+                    profile = (Map) mapper.readValue(rest, Map.class).get("profile");
+                }
+            }
+        }
+        assertEquals(Arrays.asList(ONE_MAP, TWO_MAP), results);
+        assertEquals(NodeCache.getInstance(neo4j.getGraphDatabaseService()).getEmailNode("one@maxdemarzi.com"), nodeIds.get(0));
+        assertTrue(profile.containsKey("levels"));
+    }
+
+    private static int readLength(DataInputStream in) throws IOException {
+        try {
+            return in.readInt();
+        } catch (EOFException e) {
+            return -1;
+        }
+    }
+
+    private static HashMap<String, Object> budget(Object... limits) {
+        HashMap<String, Object> budget = new HashMap<>();
+        for (int i = 0; i < limits.length; i += 2) {
+            budget.put((String) limits[i], limits[i + 1]);
+        }
+        return budget;
+    }
+
+    // requests don't wait for the snapshot to be built, only start building it
+    private void awaitSnapshot() throws Exception {
+        AdjacencyProvider provider = AdjacencyProvider.getInstance(neo4j.getGraphDatabaseService());
+        for (int i = 0; i < 500 && provider.snapshot(AdjacencyProvider.SNAPSHOT) == null; i++) {
+            Thread.sleep(10);
+        }
+    }
+
     private ArrayList parseNewlineSeparated(HTTP.Response response) throws Exception {
         String raw = response.rawContent();
         String[] lines = raw.split("\n");
@@ -425,6 +1141,18 @@ public class ShortestTest {
         put("count", 1);
     }};
 
+    static HashMap<String, Object> QUERY_CACHED_MAP = new HashMap<String, Object>(){{
+        put("center_email", "start@maxdemarzi.com");
+        put("bibliography_entries", new ArrayList<String>());
+        put("edge_emails", new ArrayList<String>() {{
+            add("one@maxdemarzi.com");
+            add("two@maxdemarzi.com");
+            add("five@maxdemarzi.com");
+            add("seven@maxdemarzi.com");
+        }});
+        put("length", 4);
+    }};
+
     public static HashMap<String, Object> QUERY_BIB_ONE_MAP = new HashMap<String, Object>(){{
         put("center_email", "start@maxdemarzi.com");
         put("bibliography_entries", new ArrayList<String>() {{ add("1");} });
@@ -536,6 +1264,16 @@ public class ShortestTest {
         put("count", 1);
     }};
 
+    static HashMap<String, Object> TRUNCATED_EXPANDED_MAP = new HashMap<String, Object>(){{
+        put("truncated", true);
+        put("exhausted", "expanded");
+    }};
+
+    static HashMap<String, Object> TRUNCATED_VISITED_MAP = new HashMap<String, Object>(){{
+        put("truncated", true);
+        put("exhausted", "visited");
+    }};
+
     static HashMap<String, Object> DIJKSTRA_QUERY_BIB_MAP = new HashMap<String, Object>(){{
         put("center_email", "start@maxdemarzi.com");
         put("bibliography_entries", new ArrayList<String>() {{ add("1");} });
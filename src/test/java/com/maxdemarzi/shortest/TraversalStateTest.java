@@ -0,0 +1,158 @@
+package com.maxdemarzi.shortest;
+
+import net.openhft.koloboke.collect.map.hash.HashLongIntMap;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TraversalStateTest {
+
+    @Test
+    public void shouldForgetEveryNodeOnClear() {
+        StampedNodeSet set = new StampedNodeSet();
+        assertTrue(set.add(3));
+        assertFalse(set.add(3));
+        assertTrue(set.add(1L << 30));
+        assertEquals(2, set.size());
+        assertEquals(0, set.pages());
+
+        set.clear();
+        assertEquals(0, set.size());
+        assertFalse(set.contains(3));
+        assertFalse(set.contains(1L << 30));
+        assertFalse(set.contains(Long.MAX_VALUE >>> 20));
+        assertTrue(set.add(3));
+    }
+
+    @Test
+    public void shouldStampDenseNodesAndForgetThemOnClear() {
+        StampedNodeSet set = new StampedNodeSet();
+        for (int i = 0; i < 2; i++) {
+            for (long nodeId = 0; nodeId < StampedNodeSet.HASH_LIMIT * 2; nodeId++) {
+                assertTrue(set.add(nodeId));
+            }
+            assertTrue(set.add(1L << 30));
+            assertFalse(set.add(7));
+            assertEquals(StampedNodeSet.HASH_LIMIT * 2 + 1, set.size());
+            assertTrue(set.pages() > 0);
+            assertTrue(set.contains(1L << 30));
+            assertFalse(set.contains(StampedNodeSet.HASH_LIMIT * 2));
+
+            StampedNodeSet copy = new StampedNodeSet();
+            set.addTo(copy);
+            assertEquals(set.size(), copy.size());
+            assertTrue(copy.contains(1L << 30));
+
+            set.clear();
+            assertEquals(0, set.size());
+            assertFalse(set.contains(7));
+            assertFalse(set.contains(1L << 30));
+        }
+    }
+
+    @Test
+    public void shouldNotPageScatteredNodes() {
+        StampedNodeSet set = new StampedNodeSet();
+        Random random = new Random(7);
+        Set<Long> expected = new HashSet<>();
+        for (int i = 0; i < 50_000; i++) {
+            long nodeId = random.nextInt(1 << 30);
+            assertEquals(expected.add(nodeId), set.add(nodeId));
+        }
+        assertEquals(expected.size(), set.size());
+        assertEquals(0, set.pages());
+        // pages of 4096 int stamps took 16KB for each of these
+        assertTrue(set.bytes() <= expected.size() * 16);
+        for (Long nodeId : expected) {
+            assertTrue(set.contains(nodeId));
+        }
+        set.clear();
+        assertEquals(0, set.bytes());
+    }
+
+    @Test
+    public void shouldLendTheSameStateUntilReleased() {
+        TraversalState state = TraversalState.acquire();
+        HashLongIntMap first = state.next(null);
+        first.put(1, 1);
+        HashLongIntMap second = state.next(first);
+        assertNotSame(first, second);
+        assertSame(first, state.next(second));
+        assertTrue(first.isEmpty());
+        state.visited().add(7);
+
+        // taken, a search started from within this one gets its own
+        TraversalState nested = TraversalState.acquire();
+        assertNotSame(state, nested);
+        nested.release();
+
+        state.release();
+        TraversalState again = TraversalState.acquire();
+        assertSame(state, again);
+        assertFalse(again.visited().contains(7));
+        again.release();
+    }
+
+    @Test
+    public void bitmapShouldHoldWhatAHashSetHolds() {
+        NodeBitmap bitmap = new NodeBitmap();
+        Set<Long> expected = new HashSet<>();
+        Random random = new Random(7);
+        for (int i = 0; i < 20_000; i++) {
+            // a dense chunk that turns into a bitmap, and sparse ones that stay arrays
+            long nodeId = i % 2 == 0 ? random.nextInt(65536) : random.nextInt(1 << 30);
+            assertEquals(expected.add(nodeId), bitmap.add(nodeId));
+        }
+        assertEquals(expected.size(), bitmap.size());
+        for (int i = 0; i < 20_000; i++) {
+            long nodeId = random.nextInt(1 << 30);
+            assertEquals(expected.contains(nodeId), bitmap.contains(nodeId));
+        }
+        for (Long nodeId : expected) {
+            assertTrue(bitmap.contains(nodeId));
+        }
+
+        StampedNodeSet copy = new StampedNodeSet();
+        bitmap.addTo(copy);
+        assertEquals(expected.size(), copy.size());
+
+        bitmap.clear();
+        assertEquals(0, bitmap.size());
+        for (Long nodeId : expected) {
+            assertFalse(bitmap.contains(nodeId));
+        }
+        assertTrue(bitmap.add(5));
+        assertTrue(bitmap.contains(5));
+    }
+
+    @Test
+    public void shouldSwitchToTheBitmapOnceTheFrontierIsDense() {
+        TraversalState state = TraversalState.acquire();
+        try {
+            NodeSet visited = state.visited();
+            visited.add(42);
+            visited.add(1L << 24);
+            assertSame(visited, state.visited(visited, NodeBitmap.DENSE_FRONTIER - 1));
+
+            NodeSet dense = state.visited(visited, NodeBitmap.DENSE_FRONTIER);
+            assertNotNull(dense);
+            assertTrue(dense instanceof NodeBitmap);
+            assertEquals(2, dense.size());
+            assertTrue(dense.contains(42));
+            assertTrue(dense.contains(1L << 24));
+            assertSame(dense, state.visited(dense, NodeBitmap.DENSE_FRONTIER));
+        } finally {
+            state.release();
+        }
+    }
+}